@@ -0,0 +1,333 @@
+/*
+ * Finds the fastest way to render a shader on this machine: the number of
+ * render threads, the height of the bands of rows, the order in which the
+ * pixels of a band are shaded, and for a shader with
+ * swappable noise functions (like DemoShader.noise), which implementation
+ * of the noise to call. What is fastest depends on the cores, the caches
+ * and the shader, so it is measured rather than guessed:
+ *
+ *   java ShaderMain -autotune
+ *
+ * The shader is rendered off the screen, in a copy of the panel from
+ * ShaderPanel.offscreen() with its size, temporal mode and post-processing,
+ * in short bursts of frames for each candidate.
+ * A burst is calibrated to take about BURST_NANOS, after the JIT compiler
+ * has had a burst to warm up, and the fastest frame of the burst counts.
+ * The settings are tried one after the other, each with the best of the
+ * ones before it, which is far fewer bursts than every combination and
+ * good enough, since they hardly depend on each other. A candidate has to
+ * be MARGIN faster than the one it replaces, so that noise in the timing
+ * does not decide.
+ *
+ * A noise function only takes part if it gives the same values as the one
+ * the shader uses now, so that tuning never changes the image: Improved
+ * Noise from ImprovedNoise or from NoiseGenerator.PERLIN, say, but not
+ * SimplexNoise for PerlinSimplexNoise, which is simplex noise of the same
+ * kind but with other gradients, and so another pattern. setSimilarNoise()
+ * lets those compete as well, for when the look may change.
+ *
+ * The result is kept in a profile file, under a key made of the CPU, the
+ * number of cores, the shader's identity (the class, or the script file
+ * and its version for a script), the size, and the temporal mode and
+ * post-processing if any. Later runs on the same machine just take it
+ * from there, without any bursts:
+ *
+ *   ~/.shaderframe/autotune.properties
+ *
+ * Delete the file, or tune with force, after the shader has changed.
+ *
+ */
+
+import java.awt.Dimension;
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+class Autotuner {
+
+    static final Path DEFAULT_PROFILE = Paths.get(System.getProperty("user.home"),
+        ".shaderframe", "autotune.properties");
+    static final long BURST_NANOS = 200000000L;
+    static final int[] BAND_HEIGHTS = {4, 8, 16, 32, 64};
+    static final double MARGIN = 0.03;
+    private static final int MAX_BURST_FRAMES = 50;
+    private static final int PROBES = 4096;
+    private static final String[] ORDER_NAMES = {"rows", "morton", "hilbert"};
+
+    // Where a shader gets a noise function from, usually a static field
+    interface NoiseSlot {
+        void set(NoiseFunction f);
+    }
+
+    // A noise slot and the functions that can go into it. The first one
+    // is the one it has now, and the reference for the others.
+    private static final class Slot {
+        final String name;
+        final NoiseSlot slot;
+        final List<String> names = new ArrayList<String>();
+        final List<NoiseFunction> functions = new ArrayList<NoiseFunction>();
+        int chosen;
+
+        Slot(String name, NoiseSlot slot) {
+            this.name = name;
+            this.slot = slot;
+        }
+    }
+
+    private final ShaderPanel panel;
+    private final Path profile;
+    private final Map<String, Slot> slots = new LinkedHashMap<String, Slot>();
+    private boolean similarNoise;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int bandHeight = ShaderPanel.BAND_HEIGHT;
+    private int traversalOrder = ShaderPanel.ORDER_ROWS;
+    private double frameMillis;
+    private boolean fromProfile;
+
+    Autotuner(ShaderPanel panel) {
+        this(panel, DEFAULT_PROFILE);
+    }
+
+    Autotuner(ShaderPanel panel, Path profile) {
+        this.panel = panel;
+        this.profile = profile;
+    }
+
+    // Offer a noise function for a slot. The first one for each slot
+    // must be the one that is in it now.
+    void addNoise(String slotName, NoiseSlot slot, String name, NoiseFunction f) {
+        Slot s = slots.get(slotName);
+        if(s == null) slots.put(slotName, s = new Slot(slotName, slot));
+        s.names.add(name);
+        s.functions.add(f);
+    }
+
+    // Let noise functions with another pattern compete too
+    void setSimilarNoise(boolean similar) {
+        similarNoise = similar;
+    }
+
+    // Apply the settings from the profile, or if there are none for this
+    // machine and shader yet, or force is set, measure them and store them
+    // in the profile. The shader of the panel must be set.
+    void tune(boolean force) throws IOException {
+        Properties props = new Properties();
+        if(Files.exists(profile)) {
+            InputStream in = Files.newInputStream(profile);
+            try {
+                props.load(in);
+            } finally {
+                in.close();
+            }
+        }
+        String key = key();
+        fromProfile = !force && load(props, key);
+        if(!fromProfile) {
+            measure();
+            store(props, key);
+        }
+        apply(panel);
+    }
+
+    // The key of the profile entry for this machine, shader, size and the
+    // settings that are not tuned but change the work in a frame
+    String key() {
+        Dimension size = panelSize();
+        String key = cpuName() + " x" + Runtime.getRuntime().availableProcessors() + "/"
+            + panel.myShader.getIdentity() + "/" + size.width + "x" + size.height;
+        if(panel.getTemporalMode() != ShaderPanel.TEMPORAL_OFF)
+            key += "/temporal " + panel.getTemporalMode() + " " + panel.getTemporalN();
+        if(panel.getPostProcessor() != null)
+            key += "/post";
+        return key;
+    }
+
+    // Make a panel render with the chosen settings. The noise is shared.
+    void apply(ShaderPanel target) {
+        target.setRenderThreads(threads);
+        target.setBandHeight(bandHeight);
+        target.setTraversalOrder(traversalOrder);
+        for(Slot s : slots.values())
+            s.slot.set(s.functions.get(s.chosen));
+    }
+
+    int getThreads() { return threads; }
+    int getBandHeight() { return bandHeight; }
+    int getTraversalOrder() { return traversalOrder; }
+
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Autotuner[" + threads + " threads, bands of "
+            + bandHeight + " rows, " + ORDER_NAMES[traversalOrder] + " order");
+        for(Slot s : slots.values())
+            sb.append(", " + s.name + " noise " + s.names.get(s.chosen));
+        sb.append(String.format(Locale.ROOT, ", %.1f ms per frame, %s]", frameMillis,
+            fromProfile ? "from " + profile : "measured"));
+        return sb.toString();
+    }
+
+    // Take the settings from the profile, if they are all there and still make sense
+    private boolean load(Properties props, String key) {
+        try {
+            String t = props.getProperty(key + ".threads"), b = props.getProperty(key + ".band");
+            if(t == null || b == null) return false;
+            int[] chosen = new int[slots.size()];
+            int i = 0;
+            for(Slot s : slots.values()) {
+                chosen[i] = s.names.indexOf(props.getProperty(key + ".noise." + s.name, s.names.get(0)));
+                if(chosen[i++] < 0) return false; // A noise function that is gone
+            }
+            threads = Math.max(Integer.parseInt(t), 1);
+            bandHeight = Math.max(Integer.parseInt(b), 1);
+            traversalOrder = Math.max(Arrays.asList(ORDER_NAMES).indexOf(
+                props.getProperty(key + ".order", "rows")), ShaderPanel.ORDER_ROWS);
+            frameMillis = Double.parseDouble(props.getProperty(key + ".frame", "0"));
+            i = 0;
+            for(Slot s : slots.values())
+                s.chosen = chosen[i++];
+            return true;
+        } catch(NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // Write the profile to a new file and move it over the old one, so that
+    // another run that reads it at the same time never sees half of it
+    private void store(Properties props, String key) throws IOException {
+        props.setProperty(key + ".threads", Integer.toString(threads));
+        props.setProperty(key + ".band", Integer.toString(bandHeight));
+        props.setProperty(key + ".order", ORDER_NAMES[traversalOrder]);
+        for(Slot s : slots.values())
+            props.setProperty(key + ".noise." + s.name, s.names.get(s.chosen));
+        props.setProperty(key + ".frame", String.format(Locale.ROOT, "%.2f", frameMillis));
+        Path dir = profile.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, "autotune", ".tmp");
+        try {
+            OutputStream out = Files.newOutputStream(tmp);
+            try {
+                props.store(out, "ShaderFrame autotuning, see Autotuner.java");
+            } finally {
+                out.close();
+            }
+            try {
+                Files.move(tmp, profile, StandardCopyOption.REPLACE_EXISTING,
+                           StandardCopyOption.ATOMIC_MOVE);
+            } catch(AtomicMoveNotSupportedException e) {
+                Files.move(tmp, profile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    // Run the bursts, and keep the fastest of each setting
+    private void measure() {
+        OffscreenRender render = panel.offscreen();
+        ShaderPanel bench = render.panel();
+        bench.setTimeFrozen(true);
+        try {
+            apply(bench);
+            int frames = calibrate(render);
+            double best = render.best(frames);
+            for(Slot s : slots.values()) {
+                for(int i=1; i<s.functions.size(); i++) {
+                    if(!similarNoise && !sameValues(s.functions.get(0), s.functions.get(i)))
+                        continue;
+                    s.slot.set(s.functions.get(i));
+                    double time = render.best(frames);
+                    if(time < best*(1.0 - MARGIN)) {
+                        best = time;
+                        s.chosen = i;
+                    }
+                }
+                s.slot.set(s.functions.get(s.chosen));
+            }
+            for(int n : threadCounts()) {
+                if(n == threads) continue;
+                bench.setRenderThreads(n);
+                double time = render.best(frames);
+                if(time < best*(1.0 - MARGIN)) {
+                    best = time;
+                    threads = n;
+                }
+            }
+            bench.setRenderThreads(threads);
+            for(int h : BAND_HEIGHTS) {
+                if(h == bandHeight) continue;
+                bench.setBandHeight(h);
+                double time = render.best(frames);
+                if(time < best*(1.0 - MARGIN)) {
+                    best = time;
+                    bandHeight = h;
+                }
+            }
+            bench.setBandHeight(bandHeight);
+            // The order is not used with temporal subsampling
+            for(int order=ShaderPanel.ORDER_MORTON; order<=ShaderPanel.ORDER_HILBERT
+                && bench.getTemporalMode() == ShaderPanel.TEMPORAL_OFF; order++) {
+                bench.setTraversalOrder(order);
+                double time = render.best(frames);
+                if(time < best*(1.0 - MARGIN)) {
+                    best = time;
+                    traversalOrder = order;
+                }
+            }
+            frameMillis = best/1e6;
+        } finally {
+            render.close();
+            for(Slot s : slots.values())
+                s.slot.set(s.functions.get(s.chosen));
+        }
+    }
+
+    // Warm up for a burst, and find how many frames take about one burst
+    private int calibrate(OffscreenRender render) {
+        long start = System.nanoTime(), frames = 0;
+        while(System.nanoTime() - start < BURST_NANOS || frames < 2) {
+            render.frame();
+            frames++;
+        }
+        long frame = Math.max((System.nanoTime() - start)/frames, 1);
+        return (int)Math.min(Math.max(BURST_NANOS/frame, 2), MAX_BURST_FRAMES);
+    }
+
+    // 1, 2, 4 and so on up to twice the cores, and the cores
+    private static Set<Integer> threadCounts() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        Set<Integer> counts = new TreeSet<Integer>();
+        for(int n=1; n<=2*cores; n*=2)
+            counts.add(n);
+        counts.add(cores);
+        return counts;
+    }
+
+    // True if two noise functions agree on a spread of points
+    private static boolean sameValues(NoiseFunction a, NoiseFunction b) {
+        Random random = new Random(PROBES);
+        for(int i=0; i<PROBES; i++) {
+            double x = 64.0*random.nextDouble() - 32.0;
+            double y = 64.0*random.nextDouble() - 32.0;
+            double z = 64.0*random.nextDouble() - 32.0;
+            if(Math.abs(a.noise(x, y, z) - b.noise(x, y, z)) > 1e-9) return false;
+        }
+        return true;
+    }
+
+    private Dimension panelSize() {
+        return panel.getPreferredSize();
+    }
+
+    // The model of the CPU, from /proc/cpuinfo on Linux or the environment
+    // on Windows, or just the architecture
+    static String cpuName() {
+        try {
+            for(String line : Files.readAllLines(Paths.get("/proc/cpuinfo")))
+                if(line.startsWith("model name"))
+                    return line.substring(line.indexOf(':') + 1).trim();
+        } catch(IOException e) {
+            // Not Linux
+        }
+        String name = System.getenv("PROCESSOR_IDENTIFIER");
+        return name != null ? name.trim() : System.getProperty("os.arch");
+    }
+}
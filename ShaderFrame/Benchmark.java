@@ -0,0 +1,418 @@
+/*
+ * A small benchmark harness for the math and noise functions.
+ * Each case is run over an array of inputs until the JIT compiler has
+ * settled, and then timed for a number of rounds. The best round is
+ * reported, in nanoseconds per call. Approximations are also checked
+ * against their reference over a dense sample of their input range,
+ * and the largest error is reported with the time.
+ *
+ * This is not as careful as a real benchmark framework, but every case
+ * has its own loop, so that the call inside it can be inlined just like
+ * in a shader, and the results of all calls are used, so that no work
+ * can be optimized away. One loop shared by all cases would only ever
+ * time a virtual call, since the JIT compiler keeps one profile of the
+ * types at each call for all callers. So the loop is written once, in
+ * Loop, and each case runs it in a copy of that class of its own, from a
+ * class loader of its own, with a profile of its own. Run it on an
+ * otherwise idle machine.
+ *
+ * "order" renders whole 4K frames of DemoShader and of a shader made of
+ * Worley noise in each traversal order of ShaderPanel, for the effect of
+ * the order on throughput. Run it under "perf stat -e cache-misses" for
+ * one order at a time, e.g. "java Benchmark order hilbert", to see the
+ * effect on the caches as well.
+ *
+ * Usage: java Benchmark [math] [noise] [seeded] [volume] [order [rows|morton|hilbert]]
+ *
+ */
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.util.*;
+
+public class Benchmark {
+
+    private static final int INPUTS = 4096;
+    private static final int ROUNDS = 10;
+    private static final long ROUND_NANOS = 20000000L;
+    private static double sink;
+
+    // How a case is compared to its reference
+    static final int SPEED = 0, ABSOLUTE = 1, RELATIVE = 2;
+
+    // A function of one variable to time, with the reference it is compared to.
+    // It is public, for the copies of Loop in other class loaders.
+    public static abstract class Case {
+        final String name;
+        final Case reference;
+        final int error;
+        private MethodHandle loop;
+
+        Case(String name) {
+            this(name, null, SPEED);
+        }
+
+        Case(String name, Case reference, int error) {
+            this.name = name;
+            this.reference = reference;
+            this.error = error;
+        }
+
+        public abstract double f(double x);
+
+        // The sum of f() over the inputs, in this case's own copy of Loop
+        double run(double[] in) {
+            try {
+                if(loop == null) loop = loopCopy();
+                return (double)loop.invokeExact(this, in);
+            } catch(RuntimeException | Error e) {
+                throw e;
+            } catch(Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    // The timing loop, see the top of the file
+    public static final class Loop {
+        public static double run(Case c, double[] in) {
+            double s = 0.0;
+            for(double x : in) s += c.f(x);
+            return s;
+        }
+    }
+
+    // Loop.run() in a new copy of Loop, defined from its class file by a
+    // class loader that leaves all other classes to Benchmark's own
+    static MethodHandle loopCopy() throws IOException, ReflectiveOperationException {
+        final String name = Loop.class.getName();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        InputStream in = Benchmark.class.getResourceAsStream("/" + name.replace('.', '/') + ".class");
+        try {
+            byte[] buffer = new byte[4096];
+            for(int n; (n = in.read(buffer)) > 0; ) bytes.write(buffer, 0, n);
+        } finally {
+            in.close();
+        }
+        final byte[] code = bytes.toByteArray();
+        ClassLoader loader = new ClassLoader(Benchmark.class.getClassLoader()) {
+            protected Class<?> loadClass(String className, boolean resolve) throws ClassNotFoundException {
+                if(!className.equals(name)) return super.loadClass(className, resolve);
+                synchronized(getClassLoadingLock(className)) {
+                    Class<?> c = findLoadedClass(className);
+                    return c != null ? c : defineClass(className, code, 0, code.length);
+                }
+            }
+        };
+        return MethodHandles.publicLookup().findStatic(loader.loadClass(name), "run",
+            MethodType.methodType(double.class, Case.class, double[].class));
+    }
+
+    // The time of one call in nanoseconds, as the best of a number of rounds
+    static double time(Case c, double[] in) {
+        // Warm up, and find how many runs take about one round
+        long runs = 1;
+        long start = System.nanoTime();
+        while(System.nanoTime() - start < 10*ROUND_NANOS) {
+            for(long i=0; i<runs; i++) sink += c.run(in);
+            if(runs < 1000000) runs *= 2;
+        }
+        long perRound = Math.max(1, runs*ROUND_NANOS/Math.max(1, System.nanoTime() - start));
+        double best = Double.MAX_VALUE;
+        for(int round=0; round<ROUNDS; round++) {
+            long t0 = System.nanoTime();
+            for(long i=0; i<perRound; i++) sink += c.run(in);
+            best = Math.min(best, (double)(System.nanoTime() - t0)/(perRound*in.length));
+        }
+        return best;
+    }
+
+    // The largest error of a case against its reference, in [lo,hi]
+    static double maxError(Case c, double lo, double hi) {
+        double max = 0.0;
+        for(int i=0; i<=1000000; i++) {
+            double x = lo + (hi - lo)*i/1000000.0;
+            double ref = c.reference.f(x);
+            double e = Math.abs(c.f(x) - ref);
+            if(c.error == RELATIVE) e /= Math.abs(ref);
+            if(e > max) max = e;
+        }
+        return max;
+    }
+
+    // Time a group of cases over the same inputs in [lo,hi]
+    static void group(String title, double lo, double hi, Case... cases) {
+        double[] in = new double[INPUTS];
+        Random random = new Random(1);
+        for(int i=0; i<INPUTS; i++) in[i] = lo + (hi - lo)*random.nextDouble();
+        System.out.println(title + ", x in [" + lo + ", " + hi + "]");
+        Map<Case, Double> times = new HashMap<Case, Double>();
+        for(Case c : cases) {
+            double ns = time(c, in);
+            times.put(c, ns);
+            String error = "";
+            if(c.reference != null && c.error != SPEED)
+                error = String.format(Locale.ROOT, "  max %s error %.2g,",
+                    c.error == RELATIVE ? "relative" : "absolute", maxError(c, lo, hi));
+            if(c.reference != null)
+                error += String.format(Locale.ROOT, (error.isEmpty() ? "  " : " ") + "%.2fx the speed of %s",
+                    times.get(c.reference)/ns, c.reference.name);
+            System.out.println(String.format(Locale.ROOT, "  %-28s %7.2f ns%s", c.name, ns, error));
+        }
+    }
+
+    static void math() {
+        Case sin = new Case("Math.sin") {
+            public double f(double x) { return Math.sin(x); }
+        };
+        group("sin", -100.0, 100.0, sin,
+            new Case("ShaderMath.sinRough", sin, ABSOLUTE) {
+                public double f(double x) { return ShaderMath.sinRough(x); }
+            },
+            new Case("ShaderMath.sinFast", sin, ABSOLUTE) {
+                public double f(double x) { return ShaderMath.sinFast(x); }
+            });
+
+        Case cos = new Case("Math.cos") {
+            public double f(double x) { return Math.cos(x); }
+        };
+        group("cos", -100.0, 100.0, cos,
+            new Case("ShaderMath.cosRough", cos, ABSOLUTE) {
+                public double f(double x) { return ShaderMath.cosRough(x); }
+            },
+            new Case("ShaderMath.cosFast", cos, ABSOLUTE) {
+                public double f(double x) { return ShaderMath.cosFast(x); }
+            });
+
+        Case exp = new Case("Math.exp") {
+            public double f(double x) { return Math.exp(x); }
+        };
+        group("exp", -20.0, 20.0, exp,
+            new Case("ShaderMath.expRough", exp, RELATIVE) {
+                public double f(double x) { return ShaderMath.expRough(x); }
+            },
+            new Case("ShaderMath.expFast", exp, RELATIVE) {
+                public double f(double x) { return ShaderMath.expFast(x); }
+            });
+
+        Case log = new Case("Math.log") {
+            public double f(double x) { return Math.log(x); }
+        };
+        group("log", 1e-3, 1e3, log,
+            new Case("ShaderMath.logRough", log, ABSOLUTE) {
+                public double f(double x) { return ShaderMath.logRough(x); }
+            },
+            new Case("ShaderMath.logFast", log, ABSOLUTE) {
+                public double f(double x) { return ShaderMath.logFast(x); }
+            });
+
+        Case pow = new Case("Math.pow(x, 2.2)") {
+            public double f(double x) { return Math.pow(x, 2.2); }
+        };
+        group("pow", 1e-3, 10.0, pow,
+            new Case("ShaderMath.powRough(x, 2.2)", pow, RELATIVE) {
+                public double f(double x) { return ShaderMath.powRough(x, 2.2); }
+            },
+            new Case("ShaderMath.powFast(x, 2.2)", pow, RELATIVE) {
+                public double f(double x) { return ShaderMath.powFast(x, 2.2); }
+            });
+
+        Case pow2 = new Case("Math.pow(x, 2.0)") {
+            public double f(double x) { return Math.pow(x, 2.0); }
+        };
+        Case pow3 = new Case("Math.pow(x, 3.0)") {
+            public double f(double x) { return Math.pow(x, 3.0); }
+        };
+        group("Integer powers", -10.0, 10.0, pow2,
+            new Case("ShaderMath.sq(x)", pow2, RELATIVE) {
+                public double f(double x) { return ShaderMath.sq(x); }
+            },
+            pow3,
+            new Case("ShaderMath.powi(x, 3)", pow3, RELATIVE) {
+                public double f(double x) { return ShaderMath.powi(x, 3); }
+            });
+
+        Case sqrt = new Case("Math.sqrt") {
+            public double f(double x) { return Math.sqrt(x); }
+        };
+        Case invSqrt = new Case("1/Math.sqrt") {
+            public double f(double x) { return 1.0/Math.sqrt(x); }
+        };
+        Case hypot = new Case("Math.hypot(x, 0.7)") {
+            public double f(double x) { return Math.hypot(x, 0.7); }
+        };
+        group("sqrt", 1e-3, 1e3, sqrt,
+            new Case("ShaderMath.sqrtFast", sqrt, RELATIVE) {
+                public double f(double x) { return ShaderMath.sqrtFast(x); }
+            },
+            invSqrt,
+            new Case("ShaderMath.invSqrtFast", invSqrt, RELATIVE) {
+                public double f(double x) { return ShaderMath.invSqrtFast(x); }
+            },
+            new Case("ShaderMath.invSqrtRough", invSqrt, RELATIVE) {
+                public double f(double x) { return ShaderMath.invSqrtRough(x); }
+            },
+            hypot,
+            new Case("ShaderMath.length(x, 0.7)", hypot, RELATIVE) {
+                public double f(double x) { return ShaderMath.length(x, 0.7); }
+            });
+
+        Case smoothstep = new Case("ShaderCompiler.smoothstep") {
+            public double f(double x) { return ShaderCompiler.smoothstep(0.2, 0.7, x); }
+        };
+        group("smoothstep(0.2, 0.7, x)", -1.0, 2.0, smoothstep,
+            new Case("ShaderMath.smoothstep", smoothstep, ABSOLUTE) {
+                public double f(double x) { return ShaderMath.smoothstep(0.2, 0.7, x); }
+            },
+            new Case("ShaderMath.smoothstepInv", smoothstep, ABSOLUTE) {
+                public double f(double x) { return ShaderMath.smoothstepInv(0.2, 2.0, x); }
+            });
+    }
+
+    static void noise() {
+        // 2D and 1D noise against 3D noise with constant coordinates, along a line
+        Case noise3 = new Case("noise(x, 0.37x, 0.0)") {
+            public double f(double x) { return ImprovedNoise.noise(x, 0.37*x, 0.0); }
+        };
+        Case noise31 = new Case("noise(x, 0.0, 0.0)") {
+            public double f(double x) { return ImprovedNoise.noise(x, 0.0, 0.0); }
+        };
+        group("ImprovedNoise, floating point", -100.0, 100.0, noise3,
+            new Case("noise(x, 0.37x)", noise3, ABSOLUTE) {
+                public double f(double x) { return ImprovedNoise.noise(x, 0.37*x); }
+            },
+            noise31,
+            new Case("noise(x)", noise31, SPEED) {
+                public double f(double x) { return ImprovedNoise.noise(x); }
+            },
+            new Case("noise(x, 0.37x, 0.5x, 0.6x)", noise3, SPEED) {
+                public double f(double x) { return ImprovedNoise.noise(x, 0.37*x, 0.5*x, 0.6*x); }
+            });
+
+        Case fixed3 = new Case("noise(x, 0.37x, 0), fixed") {
+            public double f(double x) { int i = (int)(x*65536.0); return ImprovedNoise.noise(i, 37*i/100, 0); }
+        };
+        Case fixed31 = new Case("noise(x, 0, 0), fixed") {
+            public double f(double x) { return ImprovedNoise.noise((int)(x*65536.0), 0, 0); }
+        };
+        group("ImprovedNoise, 16:16 fixed point", -100.0, 100.0, fixed3,
+            new Case("noise(x, 0.37x), fixed", fixed3, ABSOLUTE) {
+                public double f(double x) { int i = (int)(x*65536.0); return ImprovedNoise.noise(i, 37*i/100); }
+            },
+            fixed31,
+            new Case("noise(x), fixed", fixed31, SPEED) {
+                public double f(double x) { return ImprovedNoise.noise((int)(x*65536.0)); }
+            });
+    }
+
+    static void seeded() {
+        final NoiseGenerator seeded = new NoiseGenerator(42);
+        Case improved = new Case("ImprovedNoise.noise") {
+            public double f(double x) { return ImprovedNoise.noise(x, 0.37*x, 0.21*x); }
+        };
+        group("Improved noise, static and seeded", -100.0, 100.0, improved,
+            new Case("NoiseGenerator.PERLIN", improved, ABSOLUTE) {
+                public double f(double x) { return NoiseGenerator.PERLIN.improved(x, 0.37*x, 0.21*x); }
+            },
+            new Case("new NoiseGenerator(42)", improved, SPEED) {
+                public double f(double x) { return seeded.improved(x, 0.37*x, 0.21*x); }
+            });
+
+        Case simplex2 = new Case("SimplexNoise.noise 2D") {
+            public double f(double x) { return SimplexNoise.noise(x, 0.37*x); }
+        };
+        Case simplex3 = new Case("SimplexNoise.noise 3D") {
+            public double f(double x) { return SimplexNoise.noise(x, 0.37*x, 0.21*x); }
+        };
+        Case simplex4 = new Case("SimplexNoise.noise 4D") {
+            public double f(double x) { return SimplexNoise.noise(x, 0.37*x, 0.21*x, 0.6*x); }
+        };
+        group("Simplex noise, static and seeded", -100.0, 100.0, simplex2,
+            new Case("NoiseGenerator.PERLIN 2D", simplex2, ABSOLUTE) {
+                public double f(double x) { return NoiseGenerator.PERLIN.simplex(x, 0.37*x); }
+            },
+            new Case("new NoiseGenerator(42) 2D", simplex2, SPEED) {
+                public double f(double x) { return seeded.simplex(x, 0.37*x); }
+            },
+            simplex3,
+            new Case("NoiseGenerator.PERLIN 3D", simplex3, ABSOLUTE) {
+                public double f(double x) { return NoiseGenerator.PERLIN.simplex(x, 0.37*x, 0.21*x); }
+            },
+            new Case("new NoiseGenerator(42) 3D", simplex3, SPEED) {
+                public double f(double x) { return seeded.simplex(x, 0.37*x, 0.21*x); }
+            },
+            simplex4,
+            new Case("NoiseGenerator.PERLIN 4D", simplex4, ABSOLUTE) {
+                public double f(double x) { return NoiseGenerator.PERLIN.simplex(x, 0.37*x, 0.21*x, 0.6*x); }
+            },
+            new Case("new NoiseGenerator(42) 4D", simplex4, SPEED) {
+                public double f(double x) { return seeded.simplex(x, 0.37*x, 0.21*x, 0.6*x); }
+            });
+    }
+
+    static void volume() {
+        String[] names = {"ImprovedNoise", "SimplexNoise", "WorleyNoise.f1"};
+        for(int kind=NoiseVolume.IMPROVED; kind<=NoiseVolume.WORLEY_F1; kind++) {
+            final NoiseFunction exact = NoiseVolume.source(kind);
+            final NoiseFunction fast = NoiseVolume.tier(kind, ShaderMath.FAST);
+            final NoiseFunction rough = NoiseVolume.tier(kind, ShaderMath.ROUGH);
+            Case reference = new Case(names[kind]) {
+                public double f(double x) { return exact.noise(x, 0.37*x, 0.21*x); }
+            };
+            group(names[kind] + " and its baked volumes", 0.0, 31.5, reference,
+                new Case("NoiseVolume, 256^3", reference, ABSOLUTE) {
+                    public double f(double x) { return fast.noise(x, 0.37*x, 0.21*x); }
+                },
+                new Case("NoiseVolume, 128^3", reference, ABSOLUTE) {
+                    public double f(double x) { return rough.noise(x, 0.37*x, 0.21*x); }
+                });
+        }
+    }
+
+    // Render 4K frames in the traversal orders, and report the best of a few frames
+    static void order(List<String> args) {
+        final int width = 3840, height = 2160, frames = 3;
+        Shader worley = new Shader() {
+            void shader(double[] p, double u, double v, double t) {
+                double f = WorleyNoise.f1(u*48.0, v*27.0, t*0.1) + 0.5*WorleyNoise.f1(u*96.0, v*54.0, t*0.2);
+                p[0] = p[1] = p[2] = 0.5*f;
+            }
+        };
+        Shader[] shaders = {new DemoShader(), worley};
+        String[] shaderNames = {"DemoShader", "WorleyNoise.f1, 2 octaves"};
+        String[] orderNames = {"rows", "morton", "hilbert"};
+        List<Integer> orders = new ArrayList<Integer>();
+        for(int order=ShaderPanel.ORDER_ROWS; order<=ShaderPanel.ORDER_HILBERT; order++)
+            if(args.contains(orderNames[order])) orders.add(order);
+        if(orders.isEmpty()) orders = Arrays.asList(ShaderPanel.ORDER_ROWS, ShaderPanel.ORDER_MORTON,
+                                                    ShaderPanel.ORDER_HILBERT);
+        for(int s=0; s<shaders.length; s++) {
+            OffscreenRender render = new OffscreenRender(width, height, shaders[s]);
+            ShaderPanel panel = render.panel();
+            panel.setTimeFrozen(true);
+            System.out.println(shaderNames[s] + ", " + width + "x" + height + ", "
+                + panel.getRenderThreads() + " threads");
+            double rows = 0.0;
+            for(int order : orders) {
+                panel.setTraversalOrder(order);
+                long best = render.best(frames);
+                if(order == ShaderPanel.ORDER_ROWS) rows = best;
+                System.out.println(String.format(Locale.ROOT, "  %-8s %3d rows %8.1f ms %7.2f Mpixels/s%s",
+                    orderNames[order], panel.getFrameBandHeight(), best/1e6, (double)width*height*1e3/best,
+                    rows > 0.0 && order != ShaderPanel.ORDER_ROWS
+                        ? String.format(Locale.ROOT, "  %.3fx the speed of rows", rows/best) : ""));
+            }
+            render.close();
+        }
+    }
+
+    public static void main(String[] args) {
+        List<String> groups = Arrays.asList(args.length > 0 ? args : new String[] {"math", "noise", "seeded", "volume"});
+        if(groups.contains("math")) math();
+        if(groups.contains("noise")) noise();
+        if(groups.contains("seeded")) seeded();
+        if(groups.contains("volume")) volume();
+        if(groups.contains("order")) order(groups);
+        if(sink == 42.0) System.out.println(); // Keep all the results alive
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * A pool of int[] and float[] arrays for frame buffers, so that a panel
+ * that is resized does not leave a trail of garbage arrays of several
+ * megabytes each behind it, and going back to a size that was used before
+ * does not allocate at all.
+ *
+ * Arrays are handed out in size classes: the length asked for is rounded
+ * up to the next 2^k, 1.25*2^k, 1.5*2^k or 1.75*2^k, so that no more than
+ * a quarter is wasted, and the sizes that a window goes through while it is
+ * dragged larger mostly fall into a few classes. An array is longer than
+ * asked for, so users of it must keep the length they asked for, and not
+ * use a.length. A released array is kept for the next one of its class,
+ * unless the pool already holds its limit in bytes, and then it is left
+ * to the garbage collector. The contents of an array from the pool are
+ * whatever its last user left in it.
+ *
+ */
+
+import java.util.*;
+
+class BufferPool {
+
+    // Shared by all panels, up to 64 MB of free buffers
+    static final BufferPool SHARED = new BufferPool(64L << 20);
+
+    private final long maxBytes;
+    private final Map<Integer, ArrayDeque<int[]>> ints = new HashMap<Integer, ArrayDeque<int[]>>();
+    private final Map<Integer, ArrayDeque<float[]>> floats = new HashMap<Integer, ArrayDeque<float[]>>();
+    private long pooledBytes;
+    private long hits, misses, discarded;
+
+    BufferPool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    // The length of the arrays that are handed out for n elements
+    static int sizeClass(int n) {
+        if(n < 0) throw new IllegalArgumentException("Bad buffer size: " + n);
+        if(n <= 8) return 8;
+        int k = 31 - Integer.numberOfLeadingZeros(n - 1) - 2; // n-1 < 8*2^k
+        int step = 1 << k;
+        int c = ((n + step - 1) >> k) << k; // Rounded up to a quarter of the power of two
+        if(c < 0) throw new IllegalArgumentException("Buffer too large: " + n);
+        return c;
+    }
+
+    // An array of at least n ints, from the pool if there is one
+    synchronized int[] ints(int n) {
+        int c = sizeClass(n);
+        ArrayDeque<int[]> free = ints.get(c);
+        int[] a = free != null ? free.poll() : null;
+        if(a == null) {
+            misses++;
+            return new int[c];
+        }
+        hits++;
+        pooledBytes -= 4L*c;
+        return a;
+    }
+
+    // An array of at least n floats, from the pool if there is one
+    synchronized float[] floats(int n) {
+        int c = sizeClass(n);
+        ArrayDeque<float[]> free = floats.get(c);
+        float[] a = free != null ? free.poll() : null;
+        if(a == null) {
+            misses++;
+            return new float[c];
+        }
+        hits++;
+        pooledBytes -= 4L*c;
+        return a;
+    }
+
+    // Give back an array from ints(). Nothing may use it after this.
+    synchronized void release(int[] a) {
+        if(a == null) return;
+        if(!keep(a.length)) return;
+        ArrayDeque<int[]> free = ints.get(a.length);
+        if(free == null) ints.put(a.length, free = new ArrayDeque<int[]>());
+        free.push(a);
+    }
+
+    // Give back an array from floats(). Nothing may use it after this.
+    synchronized void release(float[] a) {
+        if(a == null) return;
+        if(!keep(a.length)) return;
+        ArrayDeque<float[]> free = floats.get(a.length);
+        if(free == null) floats.put(a.length, free = new ArrayDeque<float[]>());
+        free.push(a);
+    }
+
+    // Make room for an array of this length, if it is one of ours and fits
+    private boolean keep(int length) {
+        if(length != sizeClass(length) || pooledBytes + 4L*length > maxBytes) {
+            discarded++;
+            return false;
+        }
+        pooledBytes += 4L*length;
+        return true;
+    }
+
+    // Drop all free arrays
+    synchronized void clear() {
+        ints.clear();
+        floats.clear();
+        pooledBytes = 0;
+    }
+
+    synchronized long getHits() { return hits; }
+    synchronized long getMisses() { return misses; }
+    synchronized long getPooledBytes() { return pooledBytes; }
+
+    public synchronized String toString() {
+        return "BufferPool[" + (pooledBytes >> 10) + " of " + (maxBytes >> 10) + " kB free, "
+            + hits + " hits, " + misses + " misses, " + discarded + " discarded]";
+    }
+}
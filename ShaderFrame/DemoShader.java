@@ -3,6 +3,13 @@ import static java.lang.Math.min;
 
 public class DemoShader extends Shader {
 
+	// The Improved Noise for the water, exact unless ShaderMain
+	// picks a baked noise volume with "-noise fast" or "-noise rough"
+	static NoiseFunction noise = ImprovedNoise::noise;
+
+	// The simplex noise for the clouds, which "-autotune similar" may swap
+	static NoiseFunction skyNoise = PerlinSimplexNoise::noise;
+
 	void shader(double[] p, double u, double v, double t) {
 
 		double r, g, b, waterPixelValue, skyPixelValue, waterLineValue;
@@ -12,18 +19,18 @@ public class DemoShader extends Shader {
 
 		//Skapa noise med med avlånga wiggles för att ge  en känsla av horsisont-perspektiv'
 		//  v adderas för att skapa intesitet närmast "solen"
-		waterPixelValue = inv_v +  0.5 * ImprovedNoise.noise(inv_v*16.0, u*6.0 + t*0.1,t*0.4);
+		waterPixelValue = inv_v +  0.5 * noise.noise(inv_v*16.0, u*6.0 + t*0.1,t*0.4);
 
 		// annan noise-funktion ovanför vattenlinjen
 		// skiljelinjen är också en noise-funktion
-		skyPixelValue = v + 1.5*PerlinSimplexNoise.noise(v*4.0, u*2.0,t*0.01);
-		waterLineValue = (0.25+ 0.001*ImprovedNoise.noise(u*32.0, v*16.0,t*0.4));
+		skyPixelValue = v + 1.5*skyNoise.noise(v*4.0, u*2.0,t*0.01);
+		waterLineValue = (0.25+ 0.001*noise.noise(u*32.0, v*16.0,t*0.4));
 
 		// sinuskurva, med hög intesitet i mitten. Tänk en kulle/berg
-		double sunReflectionFactor = 0.4*(Math.sin(2*Math.PI * ((u) - .25)) + 1.0) + 0.1;
+		double sunReflectionFactor = 0.4*(ShaderMath.sinFast(2*Math.PI * ((u) - .25)) + 1.0) + 0.1;
 
 		//smalnar av sinuskruvan lite
-		sunReflectionFactor = 50 * Math.pow(0.2 * sunReflectionFactor, 2.0);
+		sunReflectionFactor = 50 * ShaderMath.sq(0.2 * sunReflectionFactor);
 
 		//multiplicera sinusfunktionen för att skenet bara ska vara i mitten ("strimman" från solen)
 		waterPixelValue = waterPixelValue*sunReflectionFactor + 0.3 * v;
@@ -38,7 +45,7 @@ public class DemoShader extends Shader {
 
 			//göra det mörka vattnet lite blått
 			double colorIntensity = (r + g + b) * 0.33;
-			b = 0.1 * Math.pow(1 - colorIntensity, 2);
+			b = 0.1 * ShaderMath.sq(1 - colorIntensity);
 		}
 		else{  //om himmel
 			r = 0.3;
@@ -51,7 +58,7 @@ public class DemoShader extends Shader {
 			b += Math.max(0.0,skyPixelValue);
 
 			//cirkelns ekvation (x - 0.5)^2 + (y - 0.5)^2 = r^2.
-			if(Math.pow((u - 0.5), 2.0) + Math.pow((v - 0.2), 2.0) < 0.035){
+			if(ShaderMath.sq(u - 0.5) + ShaderMath.sq(v - 0.2) < 0.035){
 				//solen
 				r += 1.0;
 				g += 1.0;
@@ -0,0 +1,30 @@
+/*
+ * A receiver of rendered frames, for example a video file writer.
+ *
+ * The renderer calls beginFrame() before it starts on a new frame,
+ * rows() for each band of rows as soon as it is finished, and endFrame()
+ * when the whole frame is done, or cancelFrame() instead if the frame was
+ * cancelled half way and must not be used. rows() is called from the render threads,
+ * possibly for several bands at once, so any per-pixel conversion can be
+ * done right away while the pixels are still in the cache.
+ * A sink must never block the renderer for any length of time.
+ *
+ */
+
+interface FrameSink {
+
+    // A new frame of the given size, for the animation time t
+    void beginFrame(int width, int height, double t);
+
+    // Rows y0 to y1-1 of pixels[] (packed ARGB, width pixels per row) are finished
+    void rows(int[] pixels, int width, int y0, int y1);
+
+    // All rows of the frame are finished
+    void endFrame();
+
+    // The frame was cancelled, for example by a resize. Its rows are
+    // incomplete, so drop it. A sink that keeps nothing between the
+    // frames has nothing to drop.
+    default void cancelFrame() {
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * The DemoShader sunset, built as a ShaderGraph. It looks the same as
+ * DemoShader, but the common parts are only computed once, and the two
+ * ImprovedNoise calls (which have the same z coordinate) are fused into one.
+ * Run it with "java ShaderMain -graph" to see the plan before it starts.
+ *
+ */
+
+class GraphDemoShader extends Shader {
+
+    private final Shader compiled = plan().shader();
+
+    void shader(double[] p, double u, double v, double t) {
+        compiled.shader(p, u, v, t);
+    }
+
+    static ShaderGraph.Plan plan() {
+        ShaderGraph g = new ShaderGraph();
+        ShaderGraph.Value u = g.u(), v = g.v(), t = g.t();
+        ShaderGraph.Value invV = g.sub(1.0, v);
+
+        // Stretched noise for the waves, brighter towards the horizon
+        ShaderGraph.Value water = g.add(invV, g.mul(g.noise(g.mul(invV, 16.0),
+            g.add(g.mul(u, 6.0), g.mul(t, 0.1)), g.mul(t, 0.4)), 0.5));
+        ShaderGraph.Value sky = g.add(v, g.mul(g.perlinSimplexNoise(g.mul(v, 4.0),
+            g.mul(u, 2.0), g.mul(t, 0.01)), 1.5));
+        ShaderGraph.Value waterline = g.add(g.constant(0.25),
+            g.mul(g.noise(g.mul(u, 32.0), g.mul(v, 16.0), g.mul(t, 0.4)), 0.001));
+
+        // The reflection of the sun is a narrow band in the middle
+        ShaderGraph.Value reflection = g.add(g.mul(g.add(g.sin(g.mul(g.mul(g.constant(2.0),
+            g.constant(Math.PI)), g.sub(u, 0.25))), 1.0), 0.4), 0.1);
+        ShaderGraph.Value r02 = g.mul(reflection, 0.2);
+        reflection = g.mul(g.mul(r02, r02), 50.0);
+        water = g.add(g.mul(water, reflection), g.mul(v, 0.3));
+
+        // Water below the waterline, darker blue where it is dark
+        ShaderGraph.Value wr = g.mul(water, 2.0);
+        ShaderGraph.Value wg = g.sub(g.mul(water, 2.0), 0.5);
+        ShaderGraph.Value wb = g.mul(g.sub(g.mul(water, 5.0), 3.5), 0.9);
+        ShaderGraph.Value dark = g.sub(1.0, g.mul(g.add(g.add(wr, wg), wb), 0.33));
+        ShaderGraph.Color waterColor = g.color(wr, wg, g.mul(g.mul(dark, dark), 0.1));
+
+        // Sky with clouds and the sun above it
+        ShaderGraph.Value clouds = g.max(g.constant(0.0), sky);
+        ShaderGraph.Value du = g.sub(u, 0.5), dv = g.sub(v, 0.2);
+        ShaderGraph.Value sun = g.sub(1.0, g.step(g.constant(0.035),
+            g.add(g.mul(du, du), g.mul(dv, dv))));
+        ShaderGraph.Color skyColor = g.add(g.add(g.color(0.3, 0.15, 0.1),
+            g.color(clouds, clouds, clouds)), g.color(sun, sun, g.constant(0.0)));
+
+        ShaderGraph.Value below = g.sub(1.0, g.step(v, waterline));
+        g.output(g.mix(skyColor, waterColor, below));
+        return g.build();
+    }
+}
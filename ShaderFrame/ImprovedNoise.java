@@ -22,6 +22,16 @@ public final class ImprovedNoise {
  * @return Coherent noise value for (x,y,z)
  */
   public static double noise(double x, double y, double z) {
+    if(NoiseStats.ENABLED) {
+      long start = NoiseStats.start(NoiseStats.IMPROVED);
+      double n = uncounted(x, y, z);
+      NoiseStats.stop(NoiseStats.IMPROVED, start);
+      return n;
+    }
+    return uncounted(x, y, z);
+  }
+
+  private static double uncounted(double x, double y, double z) {
     int X = fastfloor(x) & 255,                 // Find the unit cube that
         Y = fastfloor(y) & 255,                 // contains the point x,y,z.
         Z = fastfloor(z) & 255;
@@ -44,11 +54,271 @@ public final class ImprovedNoise {
                                    grad(p[BB+1], x-1, y-1, z-1 ))));
   }
 
+/** Floating point Perlin noise for two points in one call, for when both
+ * values are needed together. Coordinates that are equal for the two points
+ * are only split into cell and fraction once, and the hashed indices of
+ * the cube corners are only computed once if both points are in the same
+ * unit cube. The results are exactly the same as from two noise() calls.
+ * @param out Output: out[0] is set to the noise value for (x2,y2,z2)
+ * @return Coherent noise value for (x1,y1,z1)
+ */
+  public static double noise2(double[] out, double x1, double y1, double z1,
+                              double x2, double y2, double z2) {
+    if(NoiseStats.ENABLED) {
+      long start = NoiseStats.start(NoiseStats.IMPROVED_PAIR);
+      double n = uncounted2(out, x1, y1, z1, x2, y2, z2);
+      NoiseStats.stop(NoiseStats.IMPROVED_PAIR, start);
+      return n;
+    }
+    return uncounted2(out, x1, y1, z1, x2, y2, z2);
+  }
+
+  private static double uncounted2(double[] out, double x1, double y1, double z1,
+                                   double x2, double y2, double z2) {
+    int X1 = fastfloor(x1), Y1 = fastfloor(y1), Z1 = fastfloor(z1);
+    double fx1 = x1-X1, fy1 = y1-Y1, fz1 = z1-Z1;
+    double u1 = fade(fx1), v1 = fade(fy1), w1 = fade(fz1);
+    int X2, Y2, Z2;
+    double fx2, fy2, fz2, u2, v2, w2;
+    if(x2 == x1) { X2 = X1; fx2 = fx1; u2 = u1; }
+    else { X2 = fastfloor(x2); fx2 = x2-X2; u2 = fade(fx2); }
+    if(y2 == y1) { Y2 = Y1; fy2 = fy1; v2 = v1; }
+    else { Y2 = fastfloor(y2); fy2 = y2-Y2; v2 = fade(fy2); }
+    if(z2 == z1) { Z2 = Z1; fz2 = fz1; w2 = w1; }
+    else { Z2 = fastfloor(z2); fz2 = z2-Z2; w2 = fade(fz2); }
+    X1 &= 255; Y1 &= 255; Z1 &= 255;
+    X2 &= 255; Y2 &= 255; Z2 &= 255;
+
+    int A = p[X1  ]+Y1, AA = p[A]+Z1, AB = p[A+1]+Z1,
+        B = p[X1+1]+Y1, BA = p[B]+Z1, BB = p[B+1]+Z1;
+    double n1 = corners(AA, AB, BA, BB, fx1, fy1, fz1, u1, v1, w1);
+    if(X2 != X1 || Y2 != Y1 || Z2 != Z1) {
+      A = p[X2  ]+Y2; AA = p[A]+Z2; AB = p[A+1]+Z2;
+      B = p[X2+1]+Y2; BA = p[B]+Z2; BB = p[B+1]+Z2;
+    }
+    out[0] = corners(AA, AB, BA, BB, fx2, fy2, fz2, u2, v2, w2);
+    return n1;
+  }
+
+  // Blend the gradients from the 8 corners of a cube, given its hashes
+  private static double corners(int AA, int AB, int BA, int BB,
+                                double x, double y, double z,
+                                double u, double v, double w) {
+    return lerp(w, lerp(v, lerp(u, grad(p[AA  ], x  , y  , z   ),
+                                   grad(p[BA  ], x-1, y  , z   )),
+                           lerp(u, grad(p[AB  ], x  , y-1, z   ),
+                                   grad(p[BB  ], x-1, y-1, z   ))),
+                   lerp(v, lerp(u, grad(p[AA+1], x  , y  , z-1 ),
+                                   grad(p[BA+1], x-1, y  , z-1 )),
+                           lerp(u, grad(p[AB+1], x  , y-1, z-1 ),
+                                   grad(p[BB+1], x-1, y-1, z-1 ))));
+  }
+
+/** Floating point Perlin noise in 1D. This has its own gradients,
+ * from -8 to 8, since a slice of the 3D noise has too many flat spots.
+ * @param x Input x coordinate
+ * @return Coherent noise value for x, in the range -1 to 1
+ */
+  public static double noise(double x) {
+    if(NoiseStats.ENABLED) {
+      long start = NoiseStats.start(NoiseStats.IMPROVED_1D);
+      double n = uncounted(x);
+      NoiseStats.stop(NoiseStats.IMPROVED_1D, start);
+      return n;
+    }
+    return uncounted(x);
+  }
+
+  private static double uncounted(double x) {
+    int X = fastfloor(x);
+    x -= X;
+    X &= 255;
+    return 0.25*lerp(fade(x), grad(p[X], x), grad(p[X+1], x-1));
+  }
+
+/** Floating point Perlin noise in 2D. The result is exactly the same as
+ * noise(x, y, 0.0), but only the 4 corners of a square are needed,
+ * not the 8 corners of a cube.
+ * @param x Input x coordinate
+ * @param y Input y coordinate
+ * @return Coherent noise value for (x,y)
+ */
+  public static double noise(double x, double y) {
+    if(NoiseStats.ENABLED) {
+      long start = NoiseStats.start(NoiseStats.IMPROVED_2D);
+      double n = uncounted(x, y);
+      NoiseStats.stop(NoiseStats.IMPROVED_2D, start);
+      return n;
+    }
+    return uncounted(x, y);
+  }
+
+  private static double uncounted(double x, double y) {
+    int X = fastfloor(x), Y = fastfloor(y);
+    x -= X;
+    y -= Y;
+    X &= 255;
+    Y &= 255;
+    double u = fade(x), v = fade(y);
+    int A = p[X  ]+Y, AA = p[A], AB = p[A+1],       // The hashes are the same as
+        B = p[X+1]+Y, BA = p[B], BB = p[B+1];       // for the z=0 face of a cube
+    return lerp(v, lerp(u, grad(p[AA], x  , y  ),
+                           grad(p[BA], x-1, y  )),
+                   lerp(u, grad(p[AB], x  , y-1),
+                           grad(p[BB], x-1, y-1)));
+  }
+
+/** Floating point Perlin noise in 4D, with 16 corners and 32 gradients,
+ * after Ken Perlin's own 4D version. The 4th dimension is useful for
+ * animations that loop, see loop() below.
+ * @param x Input x coordinate
+ * @param y Input y coordinate
+ * @param z Input z coordinate
+ * @param w Input w coordinate
+ * @return Coherent noise value for (x,y,z,w)
+ */
+  public static double noise(double x, double y, double z, double w) {
+    if(NoiseStats.ENABLED) {
+      long start = NoiseStats.start(NoiseStats.IMPROVED_4D);
+      double n = uncounted(x, y, z, w);
+      NoiseStats.stop(NoiseStats.IMPROVED_4D, start);
+      return n;
+    }
+    return uncounted(x, y, z, w);
+  }
+
+  private static double uncounted(double x, double y, double z, double w) {
+    int X = fastfloor(x), Y = fastfloor(y), Z = fastfloor(z), W = fastfloor(w);
+    x -= X; y -= Y; z -= Z; w -= W;
+    X &= 255; Y &= 255; Z &= 255; W &= 255;
+    double a = fade(x), b = fade(y), c = fade(z), d = fade(w);
+    int A = p[X  ]+Y, AA = p[A]+Z, AB = p[A+1]+Z,
+        B = p[X+1]+Y, BA = p[B]+Z, BB = p[B+1]+Z,
+        AAA = p[AA]+W, AAB = p[AA+1]+W, ABA = p[AB]+W, ABB = p[AB+1]+W,
+        BAA = p[BA]+W, BAB = p[BA+1]+W, BBA = p[BB]+W, BBB = p[BB+1]+W;
+
+    return lerp(d,
+      lerp(c, lerp(b, lerp(a, grad(p[AAA], x  , y  , z  , w),
+                              grad(p[BAA], x-1, y  , z  , w)),
+                      lerp(a, grad(p[ABA], x  , y-1, z  , w),
+                              grad(p[BBA], x-1, y-1, z  , w))),
+              lerp(b, lerp(a, grad(p[AAB], x  , y  , z-1, w),
+                              grad(p[BAB], x-1, y  , z-1, w)),
+                      lerp(a, grad(p[ABB], x  , y-1, z-1, w),
+                              grad(p[BBB], x-1, y-1, z-1, w)))),
+      lerp(c, lerp(b, lerp(a, grad(p[AAA+1], x  , y  , z  , w-1),
+                              grad(p[BAA+1], x-1, y  , z  , w-1)),
+                      lerp(a, grad(p[ABA+1], x  , y-1, z  , w-1),
+                              grad(p[BBA+1], x-1, y-1, z  , w-1))),
+              lerp(b, lerp(a, grad(p[AAB+1], x  , y  , z-1, w-1),
+                              grad(p[BAB+1], x-1, y  , z-1, w-1)),
+                      lerp(a, grad(p[ABB+1], x  , y-1, z-1, w-1),
+                              grad(p[BBB+1], x-1, y-1, z-1, w-1)))));
+  }
+
+/** 2D noise that changes smoothly with time t and repeats exactly
+ * after the given period. The time moves around a circle in the zw plane
+ * of the 4D noise, at a speed of about one unit per unit of time.
+ * @param x Input x coordinate
+ * @param y Input y coordinate
+ * @param t Time
+ * @param period Time after which the noise repeats
+ * @return Coherent noise value for (x,y) at time t
+ */
+  public static double loop(double x, double y, double t, double period) {
+    double r = period/(2*Math.PI), angle = t/r;
+    return noise(x, y, r*Math.cos(angle), r*Math.sin(angle));
+  }
+
+/** Floating point Perlin noise that repeats with integer periods, so that
+ * a texture made from it tiles without seams. The lattice coordinates are
+ * wrapped to the period before they are hashed, so the noise is the same
+ * at (x+px,y,z) as at (x,y,z). With all periods 256, this is noise(x,y,z).
+ * The hash table has 256 entries, so no period can be longer than that.
+ * @param x Input x coordinate
+ * @param y Input y coordinate
+ * @param z Input z coordinate
+ * @param px Period in x, 1 to 256
+ * @param py Period in y, 1 to 256
+ * @param pz Period in z, 1 to 256
+ * @return Coherent noise value for (x,y,z)
+ */
+  public static double noise(double x, double y, double z, int px, int py, int pz) {
+    if(NoiseStats.ENABLED) {
+      long start = NoiseStats.start(NoiseStats.IMPROVED_PERIODIC);
+      double n = uncounted(x, y, z, px, py, pz);
+      NoiseStats.stop(NoiseStats.IMPROVED_PERIODIC, start);
+      return n;
+    }
+    return uncounted(x, y, z, px, py, pz);
+  }
+
+  private static double uncounted(double x, double y, double z, int px, int py, int pz) {
+    int X = fastfloor(x), Y = fastfloor(y), Z = fastfloor(z);
+    x -= X; y -= Y; z -= Z;
+    int X0 = wrap(X, px), X1 = wrap(X+1, px),           // Both sides of the
+        Y0 = wrap(Y, py), Y1 = wrap(Y+1, py),           // cube, wrapped
+        Z0 = wrap(Z, pz), Z1 = wrap(Z+1, pz);
+    double u = fade(x), v = fade(y), w = fade(z);
+    int A = p[X0], AA = p[A+Y0], AB = p[A+Y1],          // The same hashes as
+        B = p[X1], BA = p[B+Y0], BB = p[B+Y1];          // in noise(x,y,z)
+
+    return lerp(w, lerp(v, lerp(u, grad(p[AA+Z0], x  , y  , z   ),
+                                   grad(p[BA+Z0], x-1, y  , z   )),
+                           lerp(u, grad(p[AB+Z0], x  , y-1, z   ),
+                                   grad(p[BB+Z0], x-1, y-1, z   ))),
+                   lerp(v, lerp(u, grad(p[AA+Z1], x  , y  , z-1 ),
+                                   grad(p[BA+Z1], x-1, y  , z-1 )),
+                           lerp(u, grad(p[AB+Z1], x  , y-1, z-1 ),
+                                   grad(p[BB+Z1], x-1, y-1, z-1 ))));
+  }
+
+/** Floating point Perlin noise in 2D that repeats with integer periods.
+ * The result is exactly the same as noise(x, y, 0.0, px, py, 1).
+ * @param x Input x coordinate
+ * @param y Input y coordinate
+ * @param px Period in x, 1 to 256
+ * @param py Period in y, 1 to 256
+ * @return Coherent noise value for (x,y)
+ */
+  public static double noise(double x, double y, int px, int py) {
+    if(NoiseStats.ENABLED) {
+      long start = NoiseStats.start(NoiseStats.IMPROVED_PERIODIC);
+      double n = uncounted(x, y, px, py);
+      NoiseStats.stop(NoiseStats.IMPROVED_PERIODIC, start);
+      return n;
+    }
+    return uncounted(x, y, px, py);
+  }
+
+  private static double uncounted(double x, double y, int px, int py) {
+    int X = fastfloor(x), Y = fastfloor(y);
+    x -= X;
+    y -= Y;
+    int X0 = wrap(X, px), X1 = wrap(X+1, px),
+        Y0 = wrap(Y, py), Y1 = wrap(Y+1, py);
+    double u = fade(x), v = fade(y);
+    int A = p[X0], AA = p[A+Y0], AB = p[A+Y1],
+        B = p[X1], BA = p[B+Y0], BB = p[B+Y1];
+    return lerp(v, lerp(u, grad(p[AA], x  , y  ),
+                           grad(p[BA], x-1, y  )),
+                   lerp(u, grad(p[AB], x  , y-1),
+                           grad(p[BB], x-1, y-1)));
+  }
+
   // Internal helper methods and data structures for floating point version
 
   // Like in C/C++, this is a lot faster than the native method Math.floor().
   private static int fastfloor(double x) { int xi = (int)x; return x<xi ? xi-1 : xi; }
 
+  // A lattice coordinate moved into [0,period). A longer period than the
+  // table would hash two coordinates in one period the same.
+  private static int wrap(int i, int period) {
+    if(period < 1 || period > 256)
+      throw new IllegalArgumentException("The period must be 1 to 256, not " + period);
+    return Math.floorMod(i, period);
+  }
+
   // The fade function is 6t^5-15t^4+10t^3, which has zero first and second
   // derivatives at 0 and 1. This is what makes this an "improved noise".
   private static double fade(double t) { return t*t*t*(t*(t*6-15)+10); }
@@ -66,6 +336,33 @@ public final class ImprovedNoise {
     return ((h&1) == 0 ? u : -u) + ((h&2) == 0 ? v : -v);
   }
 
+  // The 1D gradients are -8 to -1 and 1 to 8
+  private static double grad(int hash, double x) {
+    int h = hash & 15;
+    double g = 1 + (h & 7);
+    return (h&8) == 0 ? g*x : -g*x;
+  }
+
+  // The same as grad(hash, x, y, 0.0)
+  private static double grad(int hash, double x, double y) {
+    int h = hash & 15;
+    double u = h<8 ? x : y;
+    double v = h<4 ? y : h==12||h==14 ? x : 0.0;
+    return ((h&1) == 0 ? u : -u) + ((h&2) == 0 ? v : -v);
+  }
+
+  // The 32 4D gradients point to the middles of the edges of a hypercube
+  private static double grad(int hash, double x, double y, double z, double w) {
+    int h = hash & 31;                      // Low 5 bits of the hash code
+    double a = y, b = z, c = w;             // select three of x,y,z,w
+    switch(h >> 3) {                        // and their signs.
+    case 1: a = w; b = x; c = y; break;
+    case 2: a = z; b = w; c = x; break;
+    case 3: a = y; b = z; c = w; break;
+    }
+    return ((h&4) == 0 ? -a : a) + ((h&2) == 0 ? -b : b) + ((h&1) == 0 ? -c : c);
+  }
+
   // Permutation array, used for both floating point and fixed point versions
   private static final int p[] = new int[512];
   private static final int permutation[] = { 151,160,137,91,90,15,
@@ -85,6 +382,9 @@ public final class ImprovedNoise {
   // ("static" code in a class is run only once, on loading of the class.)
   static { for (int i=0; i < 256 ; i++) p[256+i] = p[i] = permutation[i]; }
 
+  // A copy of Ken Perlin's permutation, for NoiseGenerator.PERLIN
+  static int[] permutation() { return permutation.clone(); }
+
 
 /** Integer, fixed-point Perlin noise - a lot faster on most platforms.
  * The fixed point representation is 16:16, so 65536 (2^16) means "1.0".
@@ -108,6 +408,33 @@ public final class ImprovedNoise {
                                      grad(p[BB+1], x-N , y-N , z-N ))));
    }
 
+/** Integer, fixed-point Perlin noise in 1D, in 16:16 format.
+ * @param x Input x coordinate
+ * @return Coherent noise value for x, 65536 means 1.0
+ */
+   public static int noise(int x) {
+      int X = x>>16 & 255, N = 1<<16;
+      x &= N-1;
+      return lerp(fade(x), grad(p[X], x) >> 2, grad(p[X+1], x-N) >> 2);
+   }
+
+/** Integer, fixed-point Perlin noise in 2D, in 16:16 format.
+ * The same as noise(x, y, 0), with 4 corners instead of 8.
+ * @param x Input x coordinate
+ * @param y Input y coordinate
+ * @return Coherent noise value for (x,y), 65536 means 1.0
+ */
+   public static int noise(int x, int y) {
+      int X = x>>16 & 255, Y = y>>16 & 255, N = 1<<16;
+      x &= N-1; y &= N-1;
+      int u=fade(x),v=fade(y), A=p[X  ]+Y, AA=p[A], AB=p[A+1],
+                               B=p[X+1]+Y, BA=p[B], BB=p[B+1];
+      return lerp(v, lerp(u, grad(p[AA], x   , y   ),
+                             grad(p[BA], x-N , y   )),
+                     lerp(u, grad(p[AB], x   , y-N ),
+                             grad(p[BB], x-N , y-N )));
+   }
+
    // Internal helper methods and data structures for fixed point version
 
    private static int lerp(int t, int a, int b) { return a+(t*(b-a)>>12); }
@@ -119,6 +446,18 @@ public final class ImprovedNoise {
       return ((h&1) == 0 ? u : -u) + ((h&2) == 0 ? v : -v);
    }
 
+   private static int grad(int hash, int x) {
+      int h = hash&15, g = 1 + (h&7);
+      return (h&8) == 0 ? g*x : -g*x;
+   }
+
+   private static int grad(int hash, int x, int y) {
+      int h = hash&15;
+      int u = h<8?x:y;
+      int v = h<4?y:h==12||h==14?x:0;
+      return ((h&1) == 0 ? u : -u) + ((h&2) == 0 ? v : -v);
+   }
+
    private static int fade(int t) {
       int t0 = fade[t >> 8], t1 = fade[Math.min(255, (t >> 8) + 1)];
       return t0 + ( (t & 255) * (t1 - t0) >> 8 );
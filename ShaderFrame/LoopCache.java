@@ -0,0 +1,322 @@
+/*
+ * A cache for the frames of an animation that repeats itself.
+ *
+ * When a shader is periodic in t, one cycle of the animation is all that
+ * ever needs to be shaded. The cycle is split into a fixed number of
+ * frames at the times i*period/frames, and each frame is stored
+ * compressed. After that, the animation is replayed from the cache, which
+ * only costs the decompression of one frame for each displayed frame.
+ *
+ * The frames are compressed with Deflater, after the difference to the
+ * pixel on the left has been taken for each color channel (like the Sub
+ * filter in PNG), which makes smooth procedural images much smaller.
+ *
+ * The cache has a limit in bytes, and a policy for when it is full:
+ *
+ *   EVICT_LRU   throw out the least recently used frame, for when only a
+ *               part of the cycle is watched, e.g. with the time frozen
+ *   KEEP_FIRST  keep the frames that are already cached and shade the
+ *               others every time they are needed. For an animation that
+ *               plays on, this is better, because LRU always throws out
+ *               exactly the frame that will be needed next.
+ *
+ * The frames belong to one shader, by its Shader.getIdentity(). When
+ * the panel's shader changes, or a script is reloaded, setShader() drops
+ * them, and frames that were shaded by the old version are not stored.
+ *
+ * The frames can also be kept in a memory-mapped file instead of on the
+ * heap. The file is reused by later runs if it was made for the same
+ * shader identity, size, period and number of frames, so that the cycle
+ * does not have to be shaded again (but delete it when a shader class
+ * has changed, since its identity is just its name). A file never evicts
+ * anything, it works like KEEP_FIRST:
+ *
+ *   offset 0   8 bytes  magic "SFLOOP01"
+ *   offset 8   int      width
+ *   offset 12  int      height
+ *   offset 16  int      number of frames
+ *   offset 20  int      hash code of the shader identity
+ *   offset 24  double   period
+ *   offset 32  long     end of the used part of the file
+ *   offset 64           a table of frames, (long offset, int length, int 0)
+ *                       for each, with the length 0 until the frame is stored
+ *   then                the compressed frames
+ *
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+class LoopCache implements Closeable {
+
+    static final int EVICT_LRU = 0, KEEP_FIRST = 1;
+
+    static final int HEADER_SIZE = 64;
+    private static final long MAGIC = 0x3130504f4f4c4653L; // "SFLOOP01"
+
+    final double period;
+    final int frames, width, height;
+    private final long maxBytes;
+    private final int eviction;
+    private long bytes;
+    private long hits, misses, evictions, rejected;
+    private String shader; // The identity of the shader that the frames are from
+
+    // On the heap, in access order for EVICT_LRU
+    private final LinkedHashMap<Integer, byte[]> stored;
+
+    // In a file
+    private final FileChannel channel;
+    private final MappedByteBuffer file;
+
+    // A cache on the heap. It stores nothing before setShader().
+    LoopCache(double period, int frames, int width, int height, long maxBytes, int eviction) {
+        this.period = period;
+        this.frames = checkFrames(frames, period);
+        this.width = width;
+        this.height = height;
+        this.maxBytes = maxBytes;
+        this.eviction = eviction;
+        stored = new LinkedHashMap<Integer, byte[]>(2*frames, 0.75f, eviction == EVICT_LRU);
+        channel = null;
+        file = null;
+    }
+
+    // A cache in a memory-mapped file of at most maxBytes, which keeps
+    // the frames from an earlier run of the shader with this identity
+    LoopCache(double period, int frames, int width, int height, long maxBytes,
+              String shader, Path path) throws IOException {
+        this.period = period;
+        this.frames = checkFrames(frames, period);
+        this.width = width;
+        this.height = height;
+        this.maxBytes = Math.min(maxBytes, Integer.MAX_VALUE);
+        this.eviction = KEEP_FIRST;
+        this.shader = shader;
+        stored = null;
+        int dataStart = HEADER_SIZE + 16*frames;
+        if(dataStart >= this.maxBytes)
+            throw new IOException("Too small for a loop cache file: " + maxBytes + " bytes");
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        boolean reuse = channel.size() == this.maxBytes;
+        if(channel.size() > this.maxBytes) channel.truncate(this.maxBytes);
+        file = channel.map(FileChannel.MapMode.READ_WRITE, 0, this.maxBytes);
+        file.order(ByteOrder.LITTLE_ENDIAN);
+        reuse = reuse && file.getLong(0) == MAGIC && file.getInt(8) == width
+            && file.getInt(12) == height && file.getInt(16) == frames
+            && file.getInt(20) == shader.hashCode() && file.getDouble(24) == period;
+        if(reuse) {
+            for(int i=0; i<frames; i++)
+                if(file.getInt(HEADER_SIZE + 16*i + 8) != 0) bytes += file.getInt(HEADER_SIZE + 16*i + 8);
+        }
+        else
+            startFile();
+    }
+
+    // Write a new header and an empty table of frames to the file
+    private void startFile() {
+        file.putLong(0, 0L);
+        file.putInt(8, width);
+        file.putInt(12, height);
+        file.putInt(16, frames);
+        file.putInt(20, shader.hashCode());
+        file.putDouble(24, period);
+        file.putLong(32, HEADER_SIZE + 16*frames);
+        for(int i=0; i<frames; i++) {
+            file.putLong(HEADER_SIZE + 16*i, 0L);
+            file.putLong(HEADER_SIZE + 16*i + 8, 0L);
+        }
+        file.putLong(0, MAGIC);
+    }
+
+    // Keep the frames of the shader with this identity from now on, and
+    // drop all frames if they are from another shader, or another version
+    synchronized void setShader(String identity) {
+        if(identity.equals(shader)) return;
+        shader = identity;
+        bytes = 0;
+        rejected = evictions = 0; // Not full any more
+        if(stored != null) stored.clear();
+        else startFile();
+    }
+
+    private static int checkFrames(int frames, double period) {
+        if(frames < 1 || !(period > 0.0))
+            throw new IllegalArgumentException("A loop needs a period > 0 and at least one frame");
+        return frames;
+    }
+
+    // The frame to show at time t
+    int frameIndex(double t) {
+        return (int)Math.floorMod((long)Math.floor(t/period*frames + 0.5), (long)frames);
+    }
+
+    // The time in the first cycle that frame i is shaded for
+    double frameTime(int i) {
+        return i*period/frames;
+    }
+
+    // Decompress frame i into pixels[], if it is in the cache
+    boolean get(int i, int[] pixels) {
+        byte[] data = null;
+        ByteBuffer buffer = null;
+        synchronized(this) {
+            if(stored != null) data = stored.get(i);
+            else {
+                int length = file.getInt(HEADER_SIZE + 16*i + 8);
+                if(length > 0) {
+                    int offset = (int)file.getLong(HEADER_SIZE + 16*i);
+                    buffer = file.duplicate().position(offset).limit(offset + length);
+                }
+            }
+            if(data == null && buffer == null) {
+                misses++;
+                return false;
+            }
+            hits++;
+        }
+        Inflater inflater = new Inflater();
+        try {
+            if(data != null) inflater.setInput(data);
+            else inflater.setInput(buffer);
+            byte[] rgb = new byte[3*width*height];
+            inflater.inflate(rgb);
+            unfilter(rgb, pixels);
+        } catch(DataFormatException e) {
+            throw new IllegalStateException("Loop cache frame " + i + " is corrupt", e);
+        } finally {
+            inflater.end();
+        }
+        return true;
+    }
+
+    // Compress and store frame i, if there is room for it, and it was
+    // shaded by the shader that the cache is for now
+    void put(int i, int[] pixels, String shader) {
+        byte[] rgb = filter(pixels);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(rgb.length/4);
+        try {
+            deflater.setInput(rgb);
+            deflater.finish();
+            byte[] chunk = new byte[65536];
+            while(!deflater.finished())
+                out.write(chunk, 0, deflater.deflate(chunk));
+        } finally {
+            deflater.end();
+        }
+        byte[] data = out.toByteArray();
+        synchronized(this) {
+            if(!shader.equals(this.shader)) return;
+            if(stored != null) store(i, data);
+            else append(i, data);
+        }
+    }
+
+    private void store(int i, byte[] data) {
+        byte[] old = stored.remove(i);
+        if(old != null) bytes -= old.length;
+        if(eviction == KEEP_FIRST && bytes + data.length > maxBytes) {
+            rejected++;
+            return;
+        }
+        stored.put(i, data);
+        bytes += data.length;
+        Iterator<byte[]> it = stored.values().iterator();
+        while(bytes > maxBytes && it.hasNext()) {
+            byte[] evicted = it.next();
+            if(evicted == data) break; // Never evict the frame we just added
+            it.remove();
+            bytes -= evicted.length;
+            evictions++;
+        }
+    }
+
+    private void append(int i, byte[] data) {
+        int entry = HEADER_SIZE + 16*i;
+        long end = file.getLong(32);
+        if(file.getInt(entry + 8) != 0) return;
+        if(end + data.length > maxBytes) {
+            rejected++;
+            return;
+        }
+        file.put((int)end, data);
+        file.putLong(entry, end);
+        file.putInt(entry + 8, data.length); // The frame is complete
+        file.putLong(32, end + data.length);
+        bytes += data.length;
+    }
+
+    // RGB bytes, each the difference to the same channel of the pixel on the left
+    private byte[] filter(int[] pixels) {
+        byte[] rgb = new byte[3*width*height];
+        int j = 0;
+        for(int y=0; y<height; y++) {
+            int left = 0;
+            for(int x=0; x<width; x++) {
+                int p = pixels[y*width + x];
+                rgb[j++] = (byte)((p >> 16) - (left >> 16));
+                rgb[j++] = (byte)((p >> 8) - (left >> 8));
+                rgb[j++] = (byte)(p - left);
+                left = p;
+            }
+        }
+        return rgb;
+    }
+
+    private void unfilter(byte[] rgb, int[] pixels) {
+        int j = 0;
+        for(int y=0; y<height; y++) {
+            int r = 0, g = 0, b = 0;
+            for(int x=0; x<width; x++) {
+                r = (r + rgb[j++]) & 255;
+                g = (g + rgb[j++]) & 255;
+                b = (b + rgb[j++]) & 255;
+                pixels[y*width + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+    }
+
+    // True when every frame of the cycle is in the cache
+    synchronized boolean isComplete() {
+        return getFrameCount() == frames;
+    }
+
+    synchronized int getFrameCount() {
+        if(stored != null) return stored.size();
+        int n = 0;
+        for(int i=0; i<frames; i++)
+            if(file.getInt(HEADER_SIZE + 16*i + 8) != 0) n++;
+        return n;
+    }
+
+    synchronized boolean contains(int i) {
+        if(stored != null) return stored.containsKey(i);
+        return file.getInt(HEADER_SIZE + 16*i + 8) != 0;
+    }
+
+    // True once a frame could not be stored, or pushed another one out
+    synchronized boolean isFull() {
+        return rejected > 0 || evictions > 0;
+    }
+
+    synchronized long getHits() { return hits; }
+    synchronized long getMisses() { return misses; }
+    synchronized long getEvictions() { return evictions; }
+    synchronized long getBytes() { return bytes; }
+
+    public synchronized String toString() {
+        return "LoopCache[" + getFrameCount() + " of " + frames + " frames, " + (bytes >> 10)
+            + " of " + (maxBytes >> 10) + " kB, " + hits + " hits, " + misses + " misses, "
+            + evictions + " evictions, " + rejected + " not stored]";
+    }
+
+    public void close() throws IOException {
+        if(channel != null) channel.close();
+    }
+}
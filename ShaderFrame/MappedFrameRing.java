@@ -0,0 +1,224 @@
+/*
+ * A ring of frame buffers in off-heap memory, optionally backed by a
+ * memory-mapped file so that another local process (a viewer, an encoder)
+ * can read the finished frames directly, without any copying.
+ *
+ * The render threads write each band straight into its place in the
+ * current slot. A sequence number protocol tells readers which slot
+ * holds the latest complete frame:
+ *
+ *   offset 0   8 bytes  magic "SFRING01"
+ *   offset 8   int      width
+ *   offset 12  int      height
+ *   offset 16  int      number of slots
+ *   offset 20  int      size of each slot in bytes (including its header)
+ *   offset 24  long     sequence number of the latest complete frame (0 = none)
+ *   offset 64           the slots, one after the other
+ *
+ * Each slot starts with a long sequence number and a double time value,
+ * followed by width*height packed ARGB pixels. All values are little-endian.
+ * Frame number s (starting at 1) goes into slot (s-1) % slots.
+ * The writer sets the slot sequence number to 0 before it changes the
+ * pixels, and to s after they are complete. Then it publishes s in the
+ * header. A reader takes the latest s from the header, reads the slot,
+ * and checks that the slot sequence number is still s afterwards.
+ * If not, the writer caught up with it and it should just try again.
+ *
+ */
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+class MappedFrameRing implements FrameSink, Closeable {
+
+    static final int HEADER_SIZE = 64;
+    static final int SLOT_HEADER_SIZE = 16;
+    private static final long MAGIC = 0x3130474e49524653L; // "SFRING01"
+
+    // Atomic access to the sequence numbers, which other processes may be reading
+    private static final VarHandle LONGS =
+        MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final ByteBuffer memory;
+    private final FileChannel channel;
+    private final int width, height, slots, slotSize;
+    private long sequence;
+    private int currentSlot = -1;
+    private double currentTime;
+    private long framesDropped;
+
+    // Create a ring of the given size, in a file or in anonymous
+    // off-heap memory if the file is null
+    MappedFrameRing(Path file, int width, int height, int slots) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.slots = Math.max(slots, 2);
+        this.slotSize = SLOT_HEADER_SIZE + 4*width*height;
+        long size = HEADER_SIZE + (long)this.slots*slotSize;
+        if(size > Integer.MAX_VALUE)
+            throw new IOException("Frame ring too large: " + size + " bytes");
+        if(file != null) {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            memory = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        else {
+            channel = null;
+            memory = ByteBuffer.allocateDirect((int)size);
+        }
+        memory.order(ByteOrder.LITTLE_ENDIAN);
+        memory.putLong(0, MAGIC);
+        memory.putInt(8, width);
+        memory.putInt(12, height);
+        memory.putInt(16, this.slots);
+        memory.putInt(20, slotSize);
+        LONGS.setRelease(memory, 24, 0L);
+    }
+
+    public void beginFrame(int w, int h, double t) {
+        if(w != width || h != height) {
+            currentSlot = -1;
+            framesDropped++;
+            return;
+        }
+        currentSlot = (int)(sequence % slots);
+        currentTime = t;
+        // Mark the slot as being written before any pixels change. A volatile
+        // store only keeps the stores before it in place, not the ones after
+        // it, so the fence is what keeps the pixels behind the zero.
+        LONGS.setVolatile(memory, slotOffset(currentSlot), 0L);
+        VarHandle.storeStoreFence();
+    }
+
+    public void rows(int[] pixels, int w, int y0, int y1) {
+        if(currentSlot < 0) return;
+        // Every band writes its own part of the slot, through its own view
+        IntBuffer ints = slotPixels(memory, currentSlot, slotSize, width*height);
+        ints.put(y0*w, pixels, y0*w, (y1-y0)*w);
+    }
+
+    public void endFrame() {
+        if(currentSlot < 0) return;
+        int offset = slotOffset(currentSlot);
+        memory.putDouble(offset + 8, currentTime);
+        sequence++;
+        LONGS.setRelease(memory, offset, sequence);
+        LONGS.setRelease(memory, 24, sequence);
+        currentSlot = -1;
+    }
+
+    // Leave the slot marked as being written, with 0, and do not publish
+    // it. The next frame goes into the same slot.
+    public void cancelFrame() {
+        if(currentSlot < 0) return;
+        currentSlot = -1;
+        framesDropped++;
+    }
+
+    // The sequence number of the latest complete frame, 0 if none yet
+    long getSequence() { return sequence; }
+    long getFramesDropped() { return framesDropped; }
+
+    public void close() throws IOException {
+        if(channel != null) channel.close();
+    }
+
+    private int slotOffset(int slot) {
+        return HEADER_SIZE + slot*slotSize;
+    }
+
+    private static IntBuffer slotPixels(ByteBuffer memory, int slot, int slotSize, int count) {
+        ByteBuffer b = memory.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        b.position(HEADER_SIZE + slot*slotSize + SLOT_HEADER_SIZE);
+        b.limit(b.position() + 4*count);
+        return b.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+
+    /*
+     * The reading side of the protocol, for use in another process
+     * (or another part of the same one).
+     */
+    static class Reader implements Closeable {
+
+        private final ByteBuffer memory;
+        private final FileChannel channel;
+        final int width, height, slots, slotSize;
+
+        Reader(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+            memory = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            memory.order(ByteOrder.LITTLE_ENDIAN);
+            if(memory.getLong(0) != MAGIC)
+                throw new IOException(file + " is not a frame ring");
+            width = memory.getInt(8);
+            height = memory.getInt(12);
+            slots = memory.getInt(16);
+            slotSize = memory.getInt(20);
+        }
+
+        // The sequence number of the latest complete frame, 0 if none yet
+        long latestSequence() {
+            return (long)LONGS.getAcquire(memory, 24);
+        }
+
+        // A read-only view of the pixels of frame s, without copying.
+        // The contents are only valid as long as isValid(s) stays true.
+        IntBuffer frame(long s) {
+            return slotPixels(memory, (int)((s-1) % slots), slotSize, width*height).asReadOnlyBuffer();
+        }
+
+        // True if frame s has not (yet) been overwritten by the writer
+        boolean isValid(long s) {
+            VarHandle.acquireFence();
+            return s > 0 && (long)LONGS.getAcquire(memory, slotOffset(s)) == s;
+        }
+
+        // The animation time of frame s
+        double time(long s) {
+            return memory.getDouble(slotOffset(s) + 8);
+        }
+
+        // Copy the latest complete frame to dst[] and return its
+        // sequence number, or 0 if there is no frame yet
+        long readLatest(int[] dst) {
+            while(true) {
+                long s = latestSequence();
+                if(s == 0) return 0;
+                if(!isValid(s)) continue; // The writer is already reusing the slot
+                frame(s).get(0, dst, 0, width*height);
+                if(isValid(s)) return s;
+            }
+        }
+
+        private int slotOffset(long s) {
+            return HEADER_SIZE + (int)((s-1) % slots)*slotSize;
+        }
+
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    // A minimal reader: print a line for every new frame in a ring file
+    public static void main(String[] args) throws Exception {
+        if(args.length < 1) {
+            System.err.println("Usage: java MappedFrameRing file.ring");
+            System.exit(1);
+        }
+        Reader reader = new Reader(Paths.get(args[0]));
+        int[] pixels = new int[reader.width*reader.height];
+        long last = 0;
+        while(true) {
+            long s = reader.readLatest(pixels);
+            if(s != last) {
+                System.out.println("Frame " + s + " at t=" + reader.time(s)
+                    + ", center pixel " + Integer.toHexString(pixels[pixels.length/2 + reader.width/2]));
+                last = s;
+            }
+            Thread.sleep(10);
+        }
+    }
+}
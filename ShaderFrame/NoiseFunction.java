@@ -0,0 +1,13 @@
+/*
+ * A noise function of (x,y,z), so that the exact noise and a faster
+ * approximation of it can be swapped at runtime, e.g.
+ *
+ *   NoiseFunction noise = ImprovedNoise::noise;
+ *   NoiseFunction noise = NoiseVolume.tier(NoiseVolume.IMPROVED, ShaderMath.FAST);
+ *
+ */
+
+interface NoiseFunction {
+
+    double noise(double x, double y, double z);
+}
@@ -0,0 +1,348 @@
+/** Seeded noise generators: Perlin's Improved Noise and simplex noise
+ * with a permutation of their own.
+ *
+ * The static noise classes all use Ken Perlin's one permutation, so
+ * all textures made with them share the same pattern. A NoiseGenerator
+ * shuffles its own permutation from a seed instead. It is stored as
+ * bytes, 512 for the permutation and 512 for the simplex gradient
+ * indices, and the gradients are flat arrays shared by all generators,
+ * so all of the tables together take less than 3 KB and stay in the
+ * L1 cache. A generator never changes after it is created, so any
+ * number of them can be used from any number of threads at once.
+ *
+ * NoiseGenerator.PERLIN has Ken Perlin's permutation and gives exactly
+ * the same values as ImprovedNoise and SimplexNoise, at the same speed
+ * (see "java Benchmark seeded").
+ *
+ */
+
+import java.util.Random;
+
+public final class NoiseGenerator {
+
+  /** The generator with Ken Perlin's permutation */
+  public static final NoiseGenerator PERLIN = new NoiseGenerator(ImprovedNoise.permutation());
+
+  private final long seed;
+  private final byte perm[] = new byte[512];      // Doubled to avoid index wrapping
+  private final byte permMod12[] = new byte[512];
+
+/** Create a generator with a permutation shuffled from the seed.
+ * The same seed always gives the same noise.
+ * @param seed Any number
+ */
+  public NoiseGenerator(long seed) {
+    this.seed = seed;
+    int p[] = new int[256];
+    for(int i=0; i<256; i++) p[i] = i;
+    Random random = new Random(seed);
+    for(int i=255; i>0; i--) { // Fisher-Yates shuffle
+      int j = random.nextInt(i+1);
+      int t = p[i]; p[i] = p[j]; p[j] = t;
+    }
+    init(p);
+  }
+
+  private NoiseGenerator(int permutation[]) {
+    seed = 0;
+    init(permutation);
+  }
+
+  private void init(int permutation[]) {
+    for(int i=0; i<512; i++) {
+      perm[i] = (byte)permutation[i & 255];
+      permMod12[i] = (byte)(permutation[i & 255] % 12);
+    }
+  }
+
+  /** The seed of this generator (0 for PERLIN) */
+  public long seed() { return seed; }
+
+  private int p(int i) { return perm[i] & 255; }
+
+/** Improved Noise in 2D, like ImprovedNoise.noise(x, y) */
+  public double improved(double x, double y) {
+    if(NoiseStats.ENABLED) {
+      long start = NoiseStats.start(NoiseStats.GENERATOR_IMPROVED);
+      double n = uncountedImproved(x, y);
+      NoiseStats.stop(NoiseStats.GENERATOR_IMPROVED, start);
+      return n;
+    }
+    return uncountedImproved(x, y);
+  }
+
+  private double uncountedImproved(double x, double y) {
+    int X = fastfloor(x), Y = fastfloor(y);
+    x -= X;
+    y -= Y;
+    X &= 255;
+    Y &= 255;
+    double u = fade(x), v = fade(y);
+    int A = p(X  )+Y, AA = p(A), AB = p(A+1),
+        B = p(X+1)+Y, BA = p(B), BB = p(B+1);
+    return lerp(v, lerp(u, grad(p(AA), x  , y  , 0.0),
+                           grad(p(BA), x-1, y  , 0.0)),
+                   lerp(u, grad(p(AB), x  , y-1, 0.0),
+                           grad(p(BB), x-1, y-1, 0.0)));
+  }
+
+/** Improved Noise in 3D, like ImprovedNoise.noise(x, y, z) */
+  public double improved(double x, double y, double z) {
+    if(NoiseStats.ENABLED) {
+      long start = NoiseStats.start(NoiseStats.GENERATOR_IMPROVED);
+      double n = uncountedImproved(x, y, z);
+      NoiseStats.stop(NoiseStats.GENERATOR_IMPROVED, start);
+      return n;
+    }
+    return uncountedImproved(x, y, z);
+  }
+
+  private double uncountedImproved(double x, double y, double z) {
+    int X = fastfloor(x), Y = fastfloor(y), Z = fastfloor(z);
+    x -= X;
+    y -= Y;
+    z -= Z;
+    X &= 255;
+    Y &= 255;
+    Z &= 255;
+    double u = fade(x), v = fade(y), w = fade(z);
+    int A = p(X  )+Y, AA = p(A)+Z, AB = p(A+1)+Z,
+        B = p(X+1)+Y, BA = p(B)+Z, BB = p(B+1)+Z;
+    return lerp(w, lerp(v, lerp(u, grad(p(AA  ), x  , y  , z   ),
+                                   grad(p(BA  ), x-1, y  , z   )),
+                           lerp(u, grad(p(AB  ), x  , y-1, z   ),
+                                   grad(p(BB  ), x-1, y-1, z   ))),
+                   lerp(v, lerp(u, grad(p(AA+1), x  , y  , z-1 ),
+                                   grad(p(BA+1), x-1, y  , z-1 )),
+                           lerp(u, grad(p(AB+1), x  , y-1, z-1 ),
+                                   grad(p(BB+1), x-1, y-1, z-1 ))));
+  }
+
+/** Simplex noise in 2D, like SimplexNoise.noise(x, y) */
+  public double simplex(double xin, double yin) {
+    if(NoiseStats.ENABLED) {
+      long start = NoiseStats.start(NoiseStats.GENERATOR_SIMPLEX);
+      double n = uncountedSimplex(xin, yin);
+      NoiseStats.stop(NoiseStats.GENERATOR_SIMPLEX, start);
+      return n;
+    }
+    return uncountedSimplex(xin, yin);
+  }
+
+  private double uncountedSimplex(double xin, double yin) {
+    double s = (xin+yin)*F2;
+    int i = fastfloor(xin+s);
+    int j = fastfloor(yin+s);
+    double t = (i+j)*G2;
+    double x0 = xin-(i-t);
+    double y0 = yin-(j-t);
+    int i1 = x0>y0 ? 1 : 0;
+    int j1 = 1-i1;
+    double x1 = x0 - i1 + G2;
+    double y1 = y0 - j1 + G2;
+    double x2 = x0 - 1.0 + 2.0 * G2;
+    double y2 = y0 - 1.0 + 2.0 * G2;
+    int ii = i & 255;
+    int jj = j & 255;
+    int gi0 = permMod12[ii+p(jj)] << 2;
+    int gi1 = permMod12[ii+i1+p(jj+j1)] << 2;
+    int gi2 = permMod12[ii+1+p(jj+1)] << 2;
+    double n = 0.0;
+    double t0 = 0.5 - x0*x0-y0*y0;
+    if(t0>=0) { t0 *= t0; n += t0 * t0 * (GRAD3[gi0]*x0 + GRAD3[gi0+1]*y0); }
+    double t1 = 0.5 - x1*x1-y1*y1;
+    if(t1>=0) { t1 *= t1; n += t1 * t1 * (GRAD3[gi1]*x1 + GRAD3[gi1+1]*y1); }
+    double t2 = 0.5 - x2*x2-y2*y2;
+    if(t2>=0) { t2 *= t2; n += t2 * t2 * (GRAD3[gi2]*x2 + GRAD3[gi2+1]*y2); }
+    return 70.0 * n;
+  }
+
+/** Simplex noise in 3D, like SimplexNoise.noise(x, y, z) */
+  public double simplex(double xin, double yin, double zin) {
+    if(NoiseStats.ENABLED) {
+      long start = NoiseStats.start(NoiseStats.GENERATOR_SIMPLEX);
+      double n = uncountedSimplex(xin, yin, zin);
+      NoiseStats.stop(NoiseStats.GENERATOR_SIMPLEX, start);
+      return n;
+    }
+    return uncountedSimplex(xin, yin, zin);
+  }
+
+  private double uncountedSimplex(double xin, double yin, double zin) {
+    double s = (xin+yin+zin)*F3;
+    int i = fastfloor(xin+s);
+    int j = fastfloor(yin+s);
+    int k = fastfloor(zin+s);
+    double t = (i+j+k)*G3;
+    double x0 = xin-(i-t);
+    double y0 = yin-(j-t);
+    double z0 = zin-(k-t);
+    int i1, j1, k1, i2, j2, k2;
+    if(x0>=y0) {
+      if(y0>=z0) { i1=1; j1=0; k1=0; i2=1; j2=1; k2=0; }
+      else if(x0>=z0) { i1=1; j1=0; k1=0; i2=1; j2=0; k2=1; }
+      else { i1=0; j1=0; k1=1; i2=1; j2=0; k2=1; }
+    }
+    else {
+      if(y0<z0) { i1=0; j1=0; k1=1; i2=0; j2=1; k2=1; }
+      else if(x0<z0) { i1=0; j1=1; k1=0; i2=0; j2=1; k2=1; }
+      else { i1=0; j1=1; k1=0; i2=1; j2=1; k2=0; }
+    }
+    double x1 = x0 - i1 + G3;
+    double y1 = y0 - j1 + G3;
+    double z1 = z0 - k1 + G3;
+    double x2 = x0 - i2 + 2.0*G3;
+    double y2 = y0 - j2 + 2.0*G3;
+    double z2 = z0 - k2 + 2.0*G3;
+    double x3 = x0 - 1.0 + 3.0*G3;
+    double y3 = y0 - 1.0 + 3.0*G3;
+    double z3 = z0 - 1.0 + 3.0*G3;
+    int ii = i & 255;
+    int jj = j & 255;
+    int kk = k & 255;
+    int gi0 = permMod12[ii+p(jj+p(kk))] << 2;
+    int gi1 = permMod12[ii+i1+p(jj+j1+p(kk+k1))] << 2;
+    int gi2 = permMod12[ii+i2+p(jj+j2+p(kk+k2))] << 2;
+    int gi3 = permMod12[ii+1+p(jj+1+p(kk+1))] << 2;
+    double n = 0.0;
+    double t0 = 0.6 - x0*x0 - y0*y0 - z0*z0;
+    if(t0>=0) { t0 *= t0; n += t0 * t0 * dot3(gi0, x0, y0, z0); }
+    double t1 = 0.6 - x1*x1 - y1*y1 - z1*z1;
+    if(t1>=0) { t1 *= t1; n += t1 * t1 * dot3(gi1, x1, y1, z1); }
+    double t2 = 0.6 - x2*x2 - y2*y2 - z2*z2;
+    if(t2>=0) { t2 *= t2; n += t2 * t2 * dot3(gi2, x2, y2, z2); }
+    double t3 = 0.6 - x3*x3 - y3*y3 - z3*z3;
+    if(t3>=0) { t3 *= t3; n += t3 * t3 * dot3(gi3, x3, y3, z3); }
+    return 32.0*n;
+  }
+
+/** Simplex noise in 4D, like SimplexNoise.noise(x, y, z, w) */
+  public double simplex(double x, double y, double z, double w) {
+    if(NoiseStats.ENABLED) {
+      long start = NoiseStats.start(NoiseStats.GENERATOR_SIMPLEX);
+      double n = uncountedSimplex(x, y, z, w);
+      NoiseStats.stop(NoiseStats.GENERATOR_SIMPLEX, start);
+      return n;
+    }
+    return uncountedSimplex(x, y, z, w);
+  }
+
+  private double uncountedSimplex(double x, double y, double z, double w) {
+    double s = (x + y + z + w) * F4;
+    int i = fastfloor(x + s);
+    int j = fastfloor(y + s);
+    int k = fastfloor(z + s);
+    int l = fastfloor(w + s);
+    double t = (i + j + k + l) * G4;
+    double x0 = x - (i - t);
+    double y0 = y - (j - t);
+    double z0 = z - (k - t);
+    double w0 = w - (l - t);
+    // Rank the coordinates by size, ties going to the later one.
+    // The corners of the simplex are then reached by stepping along the
+    // largest coordinate first, then the second largest, and so on.
+    // The comparisons are added up rather than branched on, since
+    // their outcomes are impossible to predict.
+    int xy = x0 > y0 ? 1 : 0, xz = x0 > z0 ? 1 : 0, xw = x0 > w0 ? 1 : 0;
+    int yz = y0 > z0 ? 1 : 0, yw = y0 > w0 ? 1 : 0, zw = z0 > w0 ? 1 : 0;
+    int rankx = xy + xz + xw;
+    int ranky = 1 - xy + yz + yw;
+    int rankz = 2 - xz - yz + zw;
+    int rankw = 3 - xw - yw - zw;
+    int i1 = rankx >= 3 ? 1 : 0, j1 = ranky >= 3 ? 1 : 0, k1 = rankz >= 3 ? 1 : 0, l1 = rankw >= 3 ? 1 : 0;
+    int i2 = rankx >= 2 ? 1 : 0, j2 = ranky >= 2 ? 1 : 0, k2 = rankz >= 2 ? 1 : 0, l2 = rankw >= 2 ? 1 : 0;
+    int i3 = rankx >= 1 ? 1 : 0, j3 = ranky >= 1 ? 1 : 0, k3 = rankz >= 1 ? 1 : 0, l3 = rankw >= 1 ? 1 : 0;
+    double x1 = x0 - i1 + G4;
+    double y1 = y0 - j1 + G4;
+    double z1 = z0 - k1 + G4;
+    double w1 = w0 - l1 + G4;
+    double x2 = x0 - i2 + 2.0*G4;
+    double y2 = y0 - j2 + 2.0*G4;
+    double z2 = z0 - k2 + 2.0*G4;
+    double w2 = w0 - l2 + 2.0*G4;
+    double x3 = x0 - i3 + 3.0*G4;
+    double y3 = y0 - j3 + 3.0*G4;
+    double z3 = z0 - k3 + 3.0*G4;
+    double w3 = w0 - l3 + 3.0*G4;
+    double x4 = x0 - 1.0 + 4.0*G4;
+    double y4 = y0 - 1.0 + 4.0*G4;
+    double z4 = z0 - 1.0 + 4.0*G4;
+    double w4 = w0 - 1.0 + 4.0*G4;
+    int ii = i & 255;
+    int jj = j & 255;
+    int kk = k & 255;
+    int ll = l & 255;
+    int gi0 = (p(ii+p(jj+p(kk+p(ll)))) & 31) << 2;
+    int gi1 = (p(ii+i1+p(jj+j1+p(kk+k1+p(ll+l1)))) & 31) << 2;
+    int gi2 = (p(ii+i2+p(jj+j2+p(kk+k2+p(ll+l2)))) & 31) << 2;
+    int gi3 = (p(ii+i3+p(jj+j3+p(kk+k3+p(ll+l3)))) & 31) << 2;
+    int gi4 = (p(ii+1+p(jj+1+p(kk+1+p(ll+1)))) & 31) << 2;
+    double n = 0.0;
+    double t0 = 0.6 - x0*x0 - y0*y0 - z0*z0 - w0*w0;
+    if(t0>=0) { t0 *= t0; n += t0 * t0 * dot4(gi0, x0, y0, z0, w0); }
+    double t1 = 0.6 - x1*x1 - y1*y1 - z1*z1 - w1*w1;
+    if(t1>=0) { t1 *= t1; n += t1 * t1 * dot4(gi1, x1, y1, z1, w1); }
+    double t2 = 0.6 - x2*x2 - y2*y2 - z2*z2 - w2*w2;
+    if(t2>=0) { t2 *= t2; n += t2 * t2 * dot4(gi2, x2, y2, z2, w2); }
+    double t3 = 0.6 - x3*x3 - y3*y3 - z3*z3 - w3*w3;
+    if(t3>=0) { t3 *= t3; n += t3 * t3 * dot4(gi3, x3, y3, z3, w3); }
+    double t4 = 0.6 - x4*x4 - y4*y4 - z4*z4 - w4*w4;
+    if(t4>=0) { t4 *= t4; n += t4 * t4 * dot4(gi4, x4, y4, z4, w4); }
+    return 27.0 * n;
+  }
+
+  // Internal helper methods and tables, shared by all generators
+
+  private static int fastfloor(double x) { int xi = (int)x; return x<xi ? xi-1 : xi; }
+
+  private static double fade(double t) { return t*t*t*(t*(t*6-15)+10); }
+
+  private static double lerp(double t, double a, double b) { return a+t*(b-a); }
+
+  // The same gradients as ImprovedNoise, but looked up in a table rather
+  // than chosen with branches, which a new permutation would mispredict
+  private static double grad(int hash, double x, double y, double z) {
+    int g = (hash & 15) << 2;
+    return GRADI[g]*x + GRADI[g+1]*y + GRADI[g+2]*z;
+  }
+
+  private static double dot3(int g, double x, double y, double z) {
+    return GRAD3[g]*x + GRAD3[g+1]*y + GRAD3[g+2]*z;
+  }
+
+  private static double dot4(int g, double x, double y, double z, double w) {
+    return GRAD4[g]*x + GRAD4[g+1]*y + GRAD4[g+2]*z + GRAD4[g+3]*w;
+  }
+
+  // The 12 Improved Noise gradients, with 4 of them repeated to make 16
+  private static final double GRADI[] = {
+    1,1,0,0, -1,1,0,0, 1,-1,0,0, -1,-1,0,0,
+    1,0,1,0, -1,0,1,0, 1,0,-1,0, -1,0,-1,0,
+    0,1,1,0, 0,-1,1,0, 0,1,-1,0, 0,-1,-1,0,
+    1,1,0,0, 0,-1,1,0, -1,1,0,0, 0,-1,-1,0};
+
+  // The simplex noise gradients, 4 values per gradient
+  // (the 3D ones padded with a 0) so that the index is a shift
+  private static final double GRAD3[] = {
+    1,1,0,0, -1,1,0,0, 1,-1,0,0, -1,-1,0,0,
+    1,0,1,0, -1,0,1,0, 1,0,-1,0, -1,0,-1,0,
+    0,1,1,0, 0,-1,1,0, 0,1,-1,0, 0,-1,-1,0};
+
+  private static final double GRAD4[] = {
+    0,1,1,1, 0,1,1,-1, 0,1,-1,1, 0,1,-1,-1,
+    0,-1,1,1, 0,-1,1,-1, 0,-1,-1,1, 0,-1,-1,-1,
+    1,0,1,1, 1,0,1,-1, 1,0,-1,1, 1,0,-1,-1,
+    -1,0,1,1, -1,0,1,-1, -1,0,-1,1, -1,0,-1,-1,
+    1,1,0,1, 1,1,0,-1, 1,-1,0,1, 1,-1,0,-1,
+    -1,1,0,1, -1,1,0,-1, -1,-1,0,1, -1,-1,0,-1,
+    1,1,1,0, 1,1,-1,0, 1,-1,1,0, 1,-1,-1,0,
+    -1,1,1,0, -1,1,-1,0, -1,-1,1,0, -1,-1,-1,0};
+
+  // Skewing and unskewing factors for 2, 3, and 4 dimensions
+  private static final double F2 = 0.5*(Math.sqrt(3.0)-1.0);
+  private static final double G2 = (3.0-Math.sqrt(3.0))/6.0;
+  private static final double F3 = 1.0/3.0;
+  private static final double G3 = 1.0/6.0;
+  private static final double F4 = (Math.sqrt(5.0)-1.0)/4.0;
+  private static final double G4 = (5.0-Math.sqrt(5.0))/20.0;
+}
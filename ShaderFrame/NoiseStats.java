@@ -0,0 +1,149 @@
+/*
+ * Counts the calls to each noise function, and times a sample of them,
+ * to find out which noise a shader spends its time in. It is off unless
+ * the JVM is started with
+ *
+ *   java -Dshaderframe.noisestats=true ShaderMain ...
+ *
+ * ENABLED is a constant, so when it is false the JIT compiler removes the
+ * counting from the noise functions altogether. When it is true, each call
+ * is counted in a LongAdder, and one call in SAMPLE_RATE is timed with
+ * System.nanoTime(), which costs too much to do for every call. The
+ * timings have the cost of nanoTime() itself taken out, but are still
+ * only good to a few nanoseconds.
+ *
+ * All the floating point noise functions are counted: Improved Noise in
+ * 1 to 4 dimensions, its periodic variants and noise2(), simplex noise,
+ * PerlinSimplexNoise, WorleyNoise, NoiseGenerator and NoiseVolume. The
+ * 16:16 fixed point Improved Noise is not. A lookup in a NoiseVolume
+ * outside its box is counted as a lookup and as a call to the exact noise.
+ *
+ * The calls are counted in the NoiseStats of the panel whose band the
+ * thread is rendering, which ShaderPanel sets with enter() around each
+ * band, so that several panels (ShaderMain -wall) each get their own
+ * numbers. Calls outside any band, e.g. from StreamingRenderer, are
+ * counted in OTHER, which has no frames. Each panel's RenderMetrics calls
+ * frame() on its NoiseStats after each frame, which works out the calls
+ * per frame and sends a ShaderFrame.NoiseCalls event to a running Flight
+ * Recorder for each function that was called. The HUD and the
+ * RenderMetrics MBean show the numbers for the panel's last frame.
+ *
+ */
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+final class NoiseStats {
+
+    static final boolean ENABLED = Boolean.getBoolean("shaderframe.noisestats");
+
+    static final int IMPROVED = 0, SIMPLEX_2D = 1, SIMPLEX_3D = 2, SIMPLEX_4D = 3,
+        PERLIN_SIMPLEX = 4, WORLEY_F1 = 5, IMPROVED_1D = 6, IMPROVED_2D = 7, IMPROVED_4D = 8,
+        IMPROVED_PAIR = 9, IMPROVED_PERIODIC = 10, SIMPLEX_PERIODIC = 11, WORLEY = 12,
+        GENERATOR_IMPROVED = 13, GENERATOR_SIMPLEX = 14, VOLUME = 15, FUNCTIONS = 16;
+
+    private static final String[] NAMES = {"ImprovedNoise 3D", "SimplexNoise 2D",
+        "SimplexNoise 3D", "SimplexNoise 4D", "PerlinSimplexNoise", "WorleyNoise.f1",
+        "ImprovedNoise 1D", "ImprovedNoise 2D", "ImprovedNoise 4D", "ImprovedNoise.noise2",
+        "ImprovedNoise periodic", "SimplexNoise periodic", "WorleyNoise.noise",
+        "NoiseGenerator.improved", "NoiseGenerator.simplex", "NoiseVolume"};
+
+    static final int SAMPLE_RATE = 64;
+
+    // The stats for the calls outside of any panel's bands
+    static final NoiseStats OTHER = new NoiseStats();
+
+    private static final ThreadLocal<NoiseStats> current = new ThreadLocal<NoiseStats>();
+    private static final long timerNanos = timerCost();
+
+    private final LongAdder[] calls = adders(), timed = adders(), nanos = adders();
+
+    // The totals at the end of the last frame, and the differences to the one before
+    private final long[] lastCalls = new long[FUNCTIONS], lastTimed = new long[FUNCTIONS],
+        lastNanos = new long[FUNCTIONS];
+    private final long[] frameCalls = new long[FUNCTIONS];
+    private final double[] frameNanosPerCall = new double[FUNCTIONS];
+    private long frames;
+
+    // Count the calls from this thread in stats from now on, until the next
+    // enter(). Returns the stats that were counted in before, or null.
+    static NoiseStats enter(NoiseStats stats) {
+        NoiseStats before = current.get();
+        current.set(stats);
+        return before;
+    }
+
+    private static NoiseStats current() {
+        NoiseStats stats = current.get();
+        return stats != null ? stats : OTHER;
+    }
+
+    private static LongAdder[] adders() {
+        LongAdder[] a = new LongAdder[FUNCTIONS];
+        for(int f=0; f<FUNCTIONS; f++) a[f] = new LongAdder();
+        return a;
+    }
+
+    // The time that a pair of back to back nanoTime() calls takes
+    private static long timerCost() {
+        long best = Long.MAX_VALUE;
+        for(int i=0; i<10000; i++) {
+            long t0 = System.nanoTime();
+            best = Math.min(best, System.nanoTime() - t0);
+        }
+        return best;
+    }
+
+    // Count a call to function f. Returns the time to pass on to
+    // stop() if this call is to be timed, and 0 if it is not.
+    static long start(int f) {
+        current().calls[f].increment();
+        if(ThreadLocalRandom.current().nextInt(SAMPLE_RATE) != 0) return 0;
+        return System.nanoTime();
+    }
+
+    static void stop(int f, long start) {
+        if(start == 0) return;
+        NoiseStats stats = current();
+        stats.nanos[f].add(Math.max(0, System.nanoTime() - start - timerNanos));
+        stats.timed[f].increment();
+    }
+
+    // A frame is done: work out its calls and times, and send them to
+    // the Flight Recorder
+    synchronized void frame() {
+        frames++;
+        for(int f=0; f<FUNCTIONS; f++) {
+            long c = calls[f].sum(), t = timed[f].sum(), n = nanos[f].sum();
+            frameCalls[f] = c - lastCalls[f];
+            frameNanosPerCall[f] = t > lastTimed[f] ? (double)(n - lastNanos[f])/(t - lastTimed[f]) : 0.0;
+            lastCalls[f] = c;
+            lastTimed[f] = t;
+            lastNanos[f] = n;
+            if(frameCalls[f] > 0) {
+                RenderEvents.NoiseCalls event = new RenderEvents.NoiseCalls();
+                if(event.shouldCommit()) {
+                    event.frame = frames;
+                    event.function = NAMES[f];
+                    event.calls = frameCalls[f];
+                    event.nanosPerCall = frameNanosPerCall[f];
+                    event.commit();
+                }
+            }
+        }
+    }
+
+    // The calls in the last frame, one line for each function that was called
+    synchronized List<String> summary() {
+        List<String> lines = new ArrayList<String>();
+        for(int f=0; f<FUNCTIONS; f++)
+            if(frameCalls[f] > 0)
+                lines.add(String.format(Locale.ROOT, "%s: %d calls/frame, %.1f ns/call, %.1f ms",
+                    NAMES[f], frameCalls[f], frameNanosPerCall[f], frameCalls[f]*frameNanosPerCall[f]/1e6));
+        return lines;
+    }
+
+    // The total calls to each function since the start
+    long getCalls(int f) { return calls[f].sum(); }
+}
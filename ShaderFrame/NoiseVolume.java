@@ -0,0 +1,207 @@
+/*
+ * A noise function baked into a 3D grid of samples, for previews where
+ * the exact noise is more than is needed. A lookup is a trilinear
+ * interpolation between 8 samples, which costs the same for every kind
+ * of noise, and much less than Worley noise or 3D noise of any kind.
+ *
+ * The grid covers the box [0,extent]^3 in noise units, baked from the
+ * exact noise, and a lookup outside the box falls back to the exact
+ * noise. A volume never wraps around, so it never repeats the noise where
+ * the exact noise would not repeat, it only gets slower outside its box.
+ * The box of tier() is 32 units along each side, which holds all of
+ * DemoShader's noise for the first 80 seconds (its z is t*0.4).
+ *
+ * With a file, the grid is a memory-mapped file that is baked once and
+ * reused by later runs, as long as the noise, the extent and the
+ * size are the same:
+ *
+ *   offset 0   8 bytes  magic "SFNOISE2", written after the samples
+ *   offset 8   int      kind of noise
+ *   offset 12  int      extent
+ *   offset 16  int      size n, the number of cells along each side
+ *   offset 32           (n+1)^3 floats, x fastest, then y, then z
+ *
+ * All values are little-endian.
+ *
+ * The errors against the exact noise, at random points in the box,
+ * with 256 and 128 cells along the sides of the box used by tier():
+ *
+ *                     256^3 (FAST)        128^3 (ROUGH)
+ *                     mean     max        mean     max
+ *   ImprovedNoise     0.007    0.041      0.028    0.15
+ *   SimplexNoise      0.025    0.14       0.089    0.49
+ *   WorleyNoise.f1    0.005    0.55       0.018    0.58
+ *
+ * Worley noise has its largest errors right at its feature points, where
+ * it has a sharp dip. A lookup is about 3 times as fast as Improved Noise
+ * or simplex noise, and about 25 times as fast as Worley noise, when the
+ * lookups are near each other like in a shader ("java Benchmark volume").
+ *
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.stream.IntStream;
+
+class NoiseVolume implements NoiseFunction, Closeable {
+
+    // The kinds of noise that can be baked
+    static final int IMPROVED = 0, SIMPLEX = 1, WORLEY_F1 = 2;
+
+    static final int HEADER_SIZE = 32;
+    private static final long MAGIC = 0x32455349304e4653L; // "SFNOISE2"
+
+    // The volumes behind tier(), with 8 and 4 cells per unit
+    private static final int TIER_EXTENT = 32, FAST_SIZE = 256, ROUGH_SIZE = 128;
+    private static final NoiseVolume[][] tiers = new NoiseVolume[3][3];
+
+    private final FloatBuffer samples;
+    private final FileChannel channel;
+    private final NoiseFunction exact;
+    private final int kind, extent, n, m;
+    private final double scale;
+
+    // A volume in memory, with size cells along each side
+    NoiseVolume(int kind, int extent, int size) {
+        this.kind = kind;
+        this.extent = extent;
+        this.n = size;
+        this.m = n + 1;
+        this.scale = (double)n/extent;
+        exact = source(kind);
+        channel = null;
+        samples = FloatBuffer.wrap(new float[checkedSize()]);
+        bake();
+    }
+
+    // A volume in a memory-mapped file, which is only baked
+    // if the file does not already hold the same volume
+    NoiseVolume(int kind, int extent, int size, Path file) throws IOException {
+        this.kind = kind;
+        this.extent = extent;
+        this.n = size;
+        this.m = n + 1;
+        this.scale = (double)n/extent;
+        exact = source(kind);
+        long bytes = HEADER_SIZE + 4L*checkedSize();
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        boolean reuse = channel.size() == bytes;
+        if(channel.size() > bytes) channel.truncate(bytes);
+        ByteBuffer memory = channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+        memory.order(ByteOrder.LITTLE_ENDIAN);
+        reuse = reuse && memory.getLong(0) == MAGIC && memory.getInt(8) == kind
+            && memory.getInt(12) == extent && memory.getInt(16) == size;
+        samples = memory.position(HEADER_SIZE).slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        if(!reuse) {
+            // The magic number goes last, so that a half-baked file is never reused
+            memory.putLong(0, 0L);
+            bake();
+            memory.putInt(8, kind);
+            memory.putInt(12, extent);
+            memory.putInt(16, size);
+            ((MappedByteBuffer)memory).force();
+            memory.putLong(0, MAGIC);
+        }
+    }
+
+    // A shared volume for one of the accuracy tiers in ShaderMath,
+    // or the exact noise for ShaderMath.EXACT. The volumes are baked
+    // on first use, which takes a moment.
+    static NoiseFunction tier(int kind, int accuracy) {
+        checkTier(kind, accuracy);
+        if(accuracy == ShaderMath.EXACT) return source(kind);
+        synchronized(tiers) {
+            if(tiers[kind][accuracy] == null)
+                tiers[kind][accuracy] = new NoiseVolume(kind, TIER_EXTENT,
+                    accuracy == ShaderMath.FAST ? FAST_SIZE : ROUGH_SIZE);
+            return tiers[kind][accuracy];
+        }
+    }
+
+    // The same, but with the volume in a file, which
+    // is only baked if it is not there from an earlier run
+    static NoiseFunction tier(int kind, int accuracy, Path file) throws IOException {
+        checkTier(kind, accuracy);
+        if(file == null || accuracy == ShaderMath.EXACT) return tier(kind, accuracy);
+        return new NoiseVolume(kind, TIER_EXTENT,
+            accuracy == ShaderMath.FAST ? FAST_SIZE : ROUGH_SIZE, file);
+    }
+
+    private static void checkTier(int kind, int accuracy) {
+        if(kind < IMPROVED || kind > WORLEY_F1)
+            throw new IllegalArgumentException("Unknown kind of noise: " + kind);
+        if(accuracy != ShaderMath.EXACT && accuracy != ShaderMath.FAST && accuracy != ShaderMath.ROUGH)
+            throw new IllegalArgumentException("Unknown accuracy: " + accuracy);
+    }
+
+    // The exact function that a volume is baked from
+    static NoiseFunction source(int kind) {
+        switch(kind) {
+        case IMPROVED: return ImprovedNoise::noise;
+        case SIMPLEX: return SimplexNoise::noise;
+        case WORLEY_F1: return WorleyNoise::f1;
+        }
+        throw new IllegalArgumentException("Unknown kind of noise: " + kind);
+    }
+
+    private int checkedSize() {
+        if(extent < 1 || n < 1 || (long)m*m*m > (Integer.MAX_VALUE - HEADER_SIZE)/4)
+            throw new IllegalArgumentException("Bad noise volume size: extent " + extent
+                + ", " + n + " cells");
+        return m*m*m;
+    }
+
+    // Evaluate the noise at every sample, one z layer per task
+    private void bake() {
+        double step = (double)extent/n;
+        IntStream.range(0, m).parallel().forEach(z -> {
+            for(int y=0; y<m; y++) {
+                int row = (z*m + y)*m;
+                for(int x=0; x<m; x++)
+                    samples.put(row + x, (float)exact.noise(x*step, y*step, z*step));
+            }
+        });
+    }
+
+    public double noise(double x, double y, double z) {
+        if(NoiseStats.ENABLED) {
+            long start = NoiseStats.start(NoiseStats.VOLUME);
+            double n = lookup(x, y, z);
+            NoiseStats.stop(NoiseStats.VOLUME, start);
+            return n;
+        }
+        return lookup(x, y, z);
+    }
+
+    private double lookup(double x, double y, double z) {
+        double sx = x*scale, sy = y*scale, sz = z*scale;
+        int X = fastfloor(sx), Y = fastfloor(sy), Z = fastfloor(sz);
+        // Outside the box
+        if((X | Y | Z) < 0 || X >= n || Y >= n || Z >= n)
+            return exact.noise(x, y, z);
+        x = sx - X;
+        y = sy - Y;
+        z = sz - Z;
+        int i = (Z*m + Y)*m + X;
+        int dy = m, dz = m*m;
+        FloatBuffer s = samples;
+        return lerp(z, lerp(y, lerp(x, s.get(i     ), s.get(i+1     )),
+                               lerp(x, s.get(i+dy  ), s.get(i+dy+1  ))),
+                       lerp(y, lerp(x, s.get(i+dz  ), s.get(i+dz+1  )),
+                               lerp(x, s.get(i+dz+dy), s.get(i+dz+dy+1))));
+    }
+
+    int getExtent() { return extent; }
+    int getSize() { return n; }
+
+    public void close() throws IOException {
+        if(channel != null) channel.close();
+    }
+
+    private static int fastfloor(double x) { int xi = (int)x; return x<xi ? xi-1 : xi; }
+
+    private static double lerp(double t, double a, double b) { return a + t*(b - a); }
+}
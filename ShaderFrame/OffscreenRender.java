@@ -0,0 +1,50 @@
+/*
+ * Frames rendered off the screen, in a hidden ShaderPanel of their own,
+ * for measurements that must not show in a real panel or count in its
+ * metrics: ShaderPanel.warmUp(), the Autotuner and "java Benchmark order".
+ *
+ * The hidden panel is set up like any other through panel(), or as a copy
+ * of a real one with ShaderPanel.offscreen(). close() gives its pixel,
+ * float and keyframe buffers back to its BufferPool and lets its render
+ * threads go, so nothing is left behind but what the pool keeps for the
+ * next user.
+ *
+ */
+
+import java.io.Closeable;
+
+class OffscreenRender implements Closeable {
+
+    private final ShaderPanel panel;
+
+    OffscreenRender(int width, int height, Shader shader) {
+        panel = new ShaderPanel(width, height);
+        panel.myShader = shader;
+    }
+
+    // The hidden panel, for its settings. It must not be shown.
+    ShaderPanel panel() {
+        return panel;
+    }
+
+    // Render a whole frame, and return how long it took in nanoseconds
+    long frame() {
+        long start = System.nanoTime();
+        panel.invalidateFrame();
+        panel.render();
+        return System.nanoTime() - start;
+    }
+
+    // The fastest of a number of frames, in nanoseconds, after one to warm up
+    long best(int frames) {
+        frame();
+        long best = Long.MAX_VALUE;
+        for(int i=0; i<frames; i++)
+            best = Math.min(best, frame());
+        return best;
+    }
+
+    public void close() {
+        panel.release();
+    }
+}
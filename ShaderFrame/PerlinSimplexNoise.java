@@ -18,34 +18,50 @@
 
 public final class PerlinSimplexNoise {
 
-	static int i,j,k, A[] = {0,0,0};
-	static double u,v,w;
-
 /** Floating point simplex noise - a fixed point version would be faster.
+ * The simplex corner offsets are passed around as arguments rather than
+ * kept in static variables, which makes this method safe to call from
+ * several threads at once.
  * @param x Input x coordinate
  * @param y Input y coordinate
  * @param z Input z coordinate
  * @return Coherent noise value for (x,y,z)
  */
   public static double noise(double x, double y, double z) {
+    if(NoiseStats.ENABLED) {
+      long start = NoiseStats.start(NoiseStats.PERLIN_SIMPLEX);
+      double n = uncounted(x, y, z);
+      NoiseStats.stop(NoiseStats.PERLIN_SIMPLEX, start);
+      return n;
+    }
+    return uncounted(x, y, z);
+  }
+
+  private static double uncounted(double x, double y, double z) {
 
 		double s = (x+y+z)/3.0;
-		i = fastfloor(x+s); j = fastfloor(y+s); k = fastfloor(z+s);
-		s = (i+j+k)/6.0; u = x-i+s; v = y-j+s; w = z-k+s;
-		A[0] = A[1] = A[2] = 0;
+		int i = fastfloor(x+s), j = fastfloor(y+s), k = fastfloor(z+s);
+		s = (i+j+k)/6.0;
+		double u = x-i+s, v = y-j+s, w = z-k+s;
 		int hi = (u>=w ? (u>=v ? 0 : 1) : (v>=w ? 1 : 2));
 		int lo = (u< w ? (u< v ? 0 : 1) : (v< w ? 1 : 2));
-		return 4.0 * (K(hi) + K(3-hi-lo) + K(lo) + K(0));
+		int mid = 3-hi-lo;
+		// Step from corner (0,0,0) to (1,1,1) along the largest, the middle
+		// and the smallest coordinate, in that order.
+		int a1 = 1<<(8*hi), a2 = a1 + (1<<(8*mid));
+		return 4.0 * (K(i,j,k, u,v,w, 0) + K(i,j,k, u,v,w, a1)
+		              + K(i,j,k, u,v,w, a2) + K(i,j,k, u,v,w, 0x010101));
 	}
 
-	private static double K(int a) {
-		double s = (A[0] + A[1] + A[2]) / 6.0;
-		double x = u - A[0] + s;
-		double y = v - A[1] + s;
-		double z = w - A[2] + s;
+	// The corner offset A is packed as one byte per coordinate.
+	private static double K(int i, int j, int k, double u, double v, double w, int A) {
+		int A0 = A & 255, A1 = A>>8 & 255, A2 = A>>16;
+		double s = (A0 + A1 + A2) / 6.0;
+		double x = u - A0 + s;
+		double y = v - A1 + s;
+		double z = w - A2 + s;
 		double t = 0.6 - x*x - y*y - z*z;
-		int h = shuffle(i + A[0], j + A[1], k + A[2]);
-		A[a]++;
+		int h = shuffle(i + A0, j + A1, k + A2);
 		if (t < 0)
 		  return 0;
 		int b5 = h>>5 & 1;
@@ -0,0 +1,262 @@
+/*
+ * Post-processing of a frame that was shaded in high dynamic range, where
+ * colors may be above 1.0: blur, bloom (a glow around everything that is
+ * brighter than white), tone mapping, gamma, and at last quantizing to
+ * packed ARGB pixels.
+ *
+ * The stages are not separate passes over the whole frame. The frame is
+ * processed one tile at a time, and all stages run on a tile before the
+ * next one is started, in small buffers that stay in the cache. Only the
+ * float colors are read from the frame, and only the finished pixels are
+ * written to it. The tiles are processed in parallel.
+ *
+ * A stage that looks at the pixels around each one, like a blur, needs a
+ * halo of extra pixels around the tile, and its output is smaller than its
+ * input by the halo on every side. So a tile is read with the halos of all
+ * its stages added up around it, and shrinks down to the tile as it goes
+ * through the stages. Outside the frame, the edge pixels are repeated.
+ * The halos cost some work twice, where tiles overlap: with 64x64 tiles
+ * and a bloom of radius 8, each tile reads 80x80 pixels.
+ *
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+
+class PostProcessor {
+
+    static final int TILE_SIZE = 64;
+
+    // A step of the pipeline. Point stages change the colors in place,
+    // stages with a halo filter a region into a smaller one.
+    abstract static class Stage {
+        // The number of pixels around each pixel that the stage reads
+        int halo() { return 0; }
+
+        // Change the colors of n pixels from the given pixel on, in place
+        void apply(float[] rgb, int start, int n) {}
+
+        // Filter the w x h region in src into the (w-2*halo) x (h-2*halo)
+        // region in dst, with a buffer of the same size as src to work in
+        void filter(float[] src, float[] dst, float[] work, int w, int h) {}
+    }
+
+    private final Stage[] stages;
+    private final int halo;
+    private final ThreadLocal<float[][]> buffers = new ThreadLocal<float[][]>();
+
+    PostProcessor(Stage... stages) {
+        this.stages = stages.clone();
+        int h = 0;
+        for(Stage s : stages) h += s.halo();
+        halo = h;
+    }
+
+    // A bloom around the sun and other colors above white, ACES tone
+    // mapping and then the gamma, for shaders with linear colors, like 2.2.
+    // With gamma 1 there is no gamma stage, for shaders like DemoShader
+    // whose colors are already meant for the screen.
+    static PostProcessor standard(float gamma) {
+        if(gamma == 1.0f)
+            return new PostProcessor(bloom(1.0f, 8, 0.6f), toneMap(1.0f));
+        return new PostProcessor(bloom(1.0f, 8, 0.6f), toneMap(1.0f), gamma(gamma));
+    }
+
+    // Process the float RGB colors in hdr to packed pixels. The tiles are
+    // processed on the pool, or in the calling thread if the pool is null.
+    void process(final float[] hdr, final int[] pixels, final int width, final int height,
+                 ExecutorService pool) {
+        if(pool == null) {
+            for(int ty=0; ty<height; ty+=TILE_SIZE)
+                for(int tx=0; tx<width; tx+=TILE_SIZE)
+                    tile(hdr, pixels, width, height, tx, ty);
+            return;
+        }
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for(int ty=0; ty<height; ty+=TILE_SIZE)
+            for(int tx=0; tx<width; tx+=TILE_SIZE) {
+                final int x = tx, y = ty;
+                tasks.add(new Callable<Void>() {
+                    public Void call() {
+                        tile(hdr, pixels, width, height, x, y);
+                        return null;
+                    }
+                });
+            }
+        try {
+            for(Future<Void> f : pool.invokeAll(tasks))
+                f.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch(ExecutionException e) {
+            throw new RuntimeException("Post-processing failed", e.getCause());
+        }
+    }
+
+    // All stages for one tile, from the colors in hdr to the pixels
+    private void tile(float[] hdr, int[] pixels, int width, int height, int tx, int ty) {
+        int tw = Math.min(TILE_SIZE, width - tx), th = Math.min(TILE_SIZE, height - ty);
+        int w = tw + 2*halo, h = th + 2*halo;
+        float[][] b = buffers.get();
+        if(b == null || b[0].length < 3*w*h) {
+            int size = 3*(TILE_SIZE + 2*halo)*(TILE_SIZE + 2*halo);
+            buffers.set(b = new float[][] {new float[size], new float[size], new float[size]});
+        }
+        float[] src = b[0], dst = b[1], work = b[2];
+
+        // Read the tile and its halo, with the edge pixels repeated outside the frame
+        for(int j=0; j<h; j++) {
+            int sy = Math.min(Math.max(ty - halo + j, 0), height - 1);
+            int row = sy*width, i = 0;
+            for(; i<w && tx - halo + i < 0; i++)
+                System.arraycopy(hdr, 3*row, src, 3*(j*w + i), 3);
+            int inside = Math.min(w, width - tx + halo) - i;
+            System.arraycopy(hdr, 3*(row + tx - halo + i), src, 3*(j*w + i), 3*inside);
+            for(i += inside; i<w; i++)
+                System.arraycopy(hdr, 3*(row + width - 1), src, 3*(j*w + i), 3);
+        }
+
+        for(Stage stage : stages) {
+            int r = stage.halo();
+            if(r == 0)
+                stage.apply(src, 0, w*h);
+            else {
+                stage.filter(src, dst, work, w, h);
+                w -= 2*r;
+                h -= 2*r;
+                float[] tmp = src;
+                src = dst;
+                dst = tmp;
+            }
+        }
+
+        // Quantize to packed pixels, like ShaderPanel.packRGB()
+        for(int j=0; j<th; j++) {
+            int p = (ty + j)*width + tx;
+            for(int i=0; i<tw; i++) {
+                int k = 3*(j*w + i);
+                int r = (int)(src[k]*255.0f), g = (int)(src[k+1]*255.0f), bl = (int)(src[k+2]*255.0f);
+                r = r < 0 ? 0 : r > 255 ? 255 : r;
+                g = g < 0 ? 0 : g > 255 ? 255 : g;
+                bl = bl < 0 ? 0 : bl > 255 ? 255 : bl;
+                pixels[p + i] = 0xff000000 | (r<<16) | (g<<8) | bl;
+            }
+        }
+    }
+
+    // A Gaussian blur
+    static Stage blur(final int radius) {
+        final float[] kernel = gaussian(radius);
+        return new Stage() {
+            int halo() { return radius; }
+            void filter(float[] src, float[] dst, float[] work, int w, int h) {
+                separable(kernel, src, dst, work, w, h);
+            }
+        };
+    }
+
+    // Everything above the threshold, blurred and added back on top
+    static Stage bloom(final float threshold, final int radius, final float strength) {
+        final float[] kernel = gaussian(radius);
+        for(int k=0; k<kernel.length; k++) kernel[k] *= strength;
+        return new Stage() {
+            int halo() { return radius; }
+            void filter(float[] src, float[] dst, float[] work, int w, int h) {
+                for(int i=0; i<3*w*h; i++)
+                    dst[i] = Math.max(src[i] - threshold, 0.0f);
+                separable(kernel, dst, dst, work, w, h);
+                int w2 = w - 2*radius, h2 = h - 2*radius;
+                for(int j=0; j<h2; j++)
+                    for(int i=0; i<3*w2; i++)
+                        dst[3*j*w2 + i] += src[3*((j + radius)*w + radius) + i];
+            }
+        };
+    }
+
+    // ACES filmic tone mapping (the fit by Krzysztof Narkowicz), which
+    // brings colors of any brightness into [0,1]
+    static Stage toneMap(final float exposure) {
+        return new Stage() {
+            void apply(float[] rgb, int start, int n) {
+                for(int i=3*start; i<3*(start + n); i++) {
+                    float x = Math.min(Math.max(rgb[i]*exposure, 0.0f), 1e4f); // x*x must not overflow
+                    rgb[i] = Math.min(x*(2.51f*x + 0.03f)/(x*(2.43f*x + 0.59f) + 0.14f), 1.0f);
+                }
+            }
+        };
+    }
+
+    // c^(1/gamma), from a table for colors in [0,1]
+    static Stage gamma(final float gamma) {
+        final int steps = 1024;
+        final float[] table = new float[steps + 2];
+        for(int i=0; i<=steps; i++)
+            table[i] = (float)Math.pow((double)i/steps, 1.0/gamma);
+        table[steps + 1] = table[steps];
+        return new Stage() {
+            void apply(float[] rgb, int start, int n) {
+                for(int i=3*start; i<3*(start + n); i++) {
+                    float c = rgb[i];
+                    if(c <= 0.0f)
+                        rgb[i] = 0.0f;
+                    else if(c > 1.0f)
+                        rgb[i] = (float)Math.pow(c, 1.0/gamma);
+                    else {
+                        float x = c*steps;
+                        int k = (int)x;
+                        rgb[i] = table[k] + (x - k)*(table[k+1] - table[k]);
+                    }
+                }
+            }
+        };
+    }
+
+    // Normalized Gaussian weights for -radius..radius
+    private static float[] gaussian(int radius) {
+        if(radius < 1) throw new IllegalArgumentException("Bad filter radius: " + radius);
+        float[] kernel = new float[2*radius + 1];
+        double sigma = radius/2.0, sum = 0.0;
+        for(int k=-radius; k<=radius; k++)
+            sum += Math.exp(-k*k/(2*sigma*sigma));
+        for(int k=-radius; k<=radius; k++)
+            kernel[k + radius] = (float)(Math.exp(-k*k/(2*sigma*sigma))/sum);
+        return kernel;
+    }
+
+    // Convolve with the kernel along x into work, then along y into dst,
+    // which may be the same as src
+    private static void separable(float[] kernel, float[] src, float[] dst, float[] work,
+                                  int w, int h) {
+        int r = kernel.length/2, w2 = w - 2*r, h2 = h - 2*r;
+        for(int j=0; j<h; j++)
+            for(int i=0; i<w2; i++) {
+                float sr = 0.0f, sg = 0.0f, sb = 0.0f;
+                for(int k=0; k<kernel.length; k++) {
+                    int s = 3*(j*w + i + k);
+                    float wk = kernel[k];
+                    sr += wk*src[s];
+                    sg += wk*src[s+1];
+                    sb += wk*src[s+2];
+                }
+                int d = 3*(j*w2 + i);
+                work[d] = sr;
+                work[d+1] = sg;
+                work[d+2] = sb;
+            }
+        for(int j=0; j<h2; j++)
+            for(int i=0; i<w2; i++) {
+                float sr = 0.0f, sg = 0.0f, sb = 0.0f;
+                for(int k=0; k<kernel.length; k++) {
+                    int s = 3*((j + k)*w2 + i);
+                    float wk = kernel[k];
+                    sr += wk*work[s];
+                    sg += wk*work[s+1];
+                    sb += wk*work[s+2];
+                }
+                int d = 3*(j*w2 + i);
+                dst[d] = sr;
+                dst[d+1] = sg;
+                dst[d+2] = sb;
+            }
+    }
+}
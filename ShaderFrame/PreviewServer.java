@@ -0,0 +1,305 @@
+/*
+ * A FrameSink that serves the rendered frames over HTTP as an MJPEG
+ * stream, to watch a render on a machine without a display:
+ *
+ *   java PreviewServer 8080 512 512
+ *
+ * and open http://host:8080/ in a browser. A ShaderPanel does not need to
+ * be on the screen to render, as long as it has a frame sink.
+ *
+ *   /            a page that shows the stream
+ *   /stream      multipart/x-mixed-replace JPEG frames
+ *   /frame.jpg   the latest frame
+ *
+ * The render threads only copy their rows into one of two images, and
+ * never wait. An encoder thread turns the latest captured image into a
+ * JPEG, once for all clients. If it is still busy with the last one when
+ * a frame ends, the frame is dropped. Each client has its own thread,
+ * which sends the newest JPEG whenever there is a new one. A slow client
+ * just gets fewer frames, the ones that came while it was busy are
+ * skipped, not queued. Nothing at all is captured while no one watches.
+ *
+ */
+
+import com.sun.net.httpserver.*;
+import java.awt.image.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.imageio.*;
+import javax.imageio.stream.*;
+
+class PreviewServer implements FrameSink, Closeable {
+
+    static final int MAX_CLIENTS = 16;
+    private static final String BOUNDARY = "shaderframe";
+
+    private final int width, height;
+    private final HttpServer server;
+    private final ExecutorService clientThreads;
+    private final Thread encoderThread;
+    private final float quality;
+
+    // Capture, guarded by this
+    private final Deque<BufferedImage> freeImages = new ArrayDeque<BufferedImage>();
+    private BufferedImage filled; // Captured, waiting for the encoder
+    private volatile BufferedImage capturing; // The current frame, or null if it is dropped
+    private boolean closed;
+
+    // The latest JPEG, guarded by this
+    private byte[] jpeg;
+    private long sequence;
+    private int clients;
+    private long framesCaptured, framesDropped, framesEncoded, framesSent, framesSkipped;
+
+    PreviewServer(int port, int width, int height) throws IOException {
+        this(port, width, height, 0.8f);
+    }
+
+    // Serve frames of the given size on a port, as JPEG with a quality in [0,1]
+    PreviewServer(int port, int width, int height, float quality) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.quality = quality;
+        for(int i=0; i<2; i++)
+            freeImages.add(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB));
+        clientThreads = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "PreviewServer client");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(clientThreads);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException { page(exchange); }
+        });
+        server.createContext("/stream", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException { stream(exchange); }
+        });
+        server.createContext("/frame.jpg", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException { frame(exchange); }
+        });
+        encoderThread = new Thread(new Runnable() {
+            public void run() { encodeFrames(); }
+        }, "PreviewServer encoder");
+        encoderThread.setDaemon(true);
+        encoderThread.start();
+        server.start();
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void beginFrame(int w, int h, double t) {
+        BufferedImage image = null;
+        synchronized(this) {
+            if(clients > 0 && w == width && h == height && !closed) {
+                image = freeImages.poll();
+                if(image == null) framesDropped++; // The encoder is still busy
+            }
+        }
+        capturing = image;
+    }
+
+    public void rows(int[] pixels, int w, int y0, int y1) {
+        BufferedImage image = capturing;
+        if(image == null) return;
+        int[] data = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        System.arraycopy(pixels, y0*w, data, y0*w, (y1 - y0)*w);
+    }
+
+    public void endFrame() {
+        BufferedImage image = capturing;
+        if(image == null) return;
+        capturing = null;
+        synchronized(this) {
+            if(filled != null) {
+                // Never encoded, so replace it with this newer one
+                freeImages.add(filled);
+                framesDropped++;
+            }
+            filled = image;
+            framesCaptured++;
+            notifyAll();
+        }
+    }
+
+    // Half copied, so give the image back without encoding it
+    public void cancelFrame() {
+        BufferedImage image = capturing;
+        if(image == null) return;
+        capturing = null;
+        synchronized(this) {
+            freeImages.add(image);
+            framesDropped++;
+        }
+    }
+
+    // The encoder thread: encode the latest captured frame, once for all clients
+    private void encodeFrames() {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(quality);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            while(true) {
+                BufferedImage image;
+                synchronized(this) {
+                    while(filled == null && !closed)
+                        wait();
+                    if(closed) return;
+                    image = filled;
+                    filled = null;
+                }
+                bytes.reset();
+                boolean encoded = false;
+                try {
+                    ImageOutputStream out = ImageIO.createImageOutputStream(bytes);
+                    writer.setOutput(out);
+                    writer.write(null, new IIOImage(image, null, null), param);
+                    out.close();
+                    encoded = true;
+                } catch(IOException e) {
+                    System.err.println("JPEG encoding failed: " + e);
+                }
+                synchronized(this) {
+                    freeImages.add(image);
+                    if(encoded) {
+                        jpeg = bytes.toByteArray();
+                        sequence++;
+                        framesEncoded++;
+                        notifyAll();
+                    }
+                }
+            }
+        } catch(InterruptedException e) {
+            // Just stop
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private void page(HttpExchange exchange) throws IOException {
+        byte[] html = ("<!DOCTYPE html>\n<html><head><title>ShaderFrame</title></head>\n"
+            + "<body style=\"background:#222;margin:0\"><img src=\"/stream\" width=\"" + width
+            + "\" height=\"" + height + "\"></body></html>\n").getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+        exchange.sendResponseHeaders(200, html.length);
+        exchange.getResponseBody().write(html);
+        exchange.close();
+    }
+
+    // The latest frame as a single JPEG, waiting for the first one if need be
+    private void frame(HttpExchange exchange) throws IOException {
+        byte[] data;
+        synchronized(this) {
+            clients++;
+            try {
+                while(jpeg == null && !closed)
+                    wait();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                clients--;
+            }
+            data = jpeg;
+        }
+        if(data == null) {
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "image/jpeg");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, data.length);
+        exchange.getResponseBody().write(data);
+        exchange.close();
+    }
+
+    // Send the newest frame whenever there is a new one, until the client goes away
+    private void stream(HttpExchange exchange) throws IOException {
+        synchronized(this) {
+            if(clients >= MAX_CLIENTS || closed) {
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+                return;
+            }
+            clients++;
+        }
+        try {
+            exchange.getResponseHeaders().set("Content-Type",
+                "multipart/x-mixed-replace; boundary=" + BOUNDARY);
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = exchange.getResponseBody();
+            long sent = 0;
+            while(true) {
+                byte[] data;
+                synchronized(this) {
+                    while(sequence == sent && !closed)
+                        wait();
+                    if(closed) break;
+                    if(sent > 0) framesSkipped += sequence - sent - 1;
+                    sent = sequence;
+                    data = jpeg;
+                }
+                out.write(("--" + BOUNDARY + "\r\nContent-Type: image/jpeg\r\nContent-Length: "
+                    + data.length + "\r\n\r\n").getBytes("US-ASCII"));
+                out.write(data);
+                out.write("\r\n".getBytes("US-ASCII"));
+                out.flush();
+                synchronized(this) {
+                    framesSent++;
+                }
+            }
+        } catch(InterruptedException e) {
+            // Just stop
+        } catch(IOException e) {
+            // The client has gone away
+        } finally {
+            synchronized(this) {
+                clients--;
+            }
+            exchange.close();
+        }
+    }
+
+    synchronized int getClients() { return clients; }
+    synchronized long getFramesCaptured() { return framesCaptured; }
+    synchronized long getFramesDropped() { return framesDropped; }
+    synchronized long getFramesEncoded() { return framesEncoded; }
+
+    public synchronized String toString() {
+        return "PreviewServer[port " + getPort() + ", " + clients + " clients, " + framesCaptured
+            + " captured, " + framesDropped + " dropped, " + framesEncoded + " encoded, "
+            + framesSent + " sent, " + framesSkipped + " skipped by slow clients]";
+    }
+
+    public void close() {
+        synchronized(this) {
+            closed = true;
+            notifyAll();
+        }
+        server.stop(0);
+        clientThreads.shutdownNow();
+    }
+
+    // Render a shader without a window, and serve it
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        int width = args.length > 2 ? Integer.parseInt(args[1]) : 512;
+        int height = args.length > 2 ? Integer.parseInt(args[2]) : 512;
+        String shaderName = args.length > 3 ? args[3] : "DemoShader";
+        ShaderPanel panel = new ShaderPanel(width, height);
+        panel.myShader = (Shader)Class.forName(shaderName).getDeclaredConstructor().newInstance();
+        PreviewServer preview = new PreviewServer(port, width, height);
+        panel.addFrameSink(preview);
+        System.out.println("Serving " + shaderName + " on http://localhost:" + preview.getPort() + "/");
+        new Thread(panel).start();
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Java Flight Recorder events for rendering, so that a recording shows
+ * each frame and each band of rows next to the GC pauses, JIT activity
+ * and thread states of the same moment:
+ *
+ *   java -XX:StartFlightRecording:filename=shader.jfr ShaderMain ...
+ *   jfr print --events ShaderFrame.Frame shader.jfr
+ *
+ * or open the file in JDK Mission Control, where the events are under
+ * "ShaderFrame". An event that is not enabled in the recording costs no
+ * more than a check of a flag, so they can stay in all the time.
+ *
+ */
+
+import jdk.jfr.*;
+
+class RenderEvents {
+
+    private RenderEvents() {}
+
+    @Name("ShaderFrame.Frame")
+    @Label("Frame")
+    @Category("ShaderFrame")
+    @Description("A frame rendered by a ShaderPanel")
+    static class Frame extends Event {
+        @Label("Frame Number") long frame;
+        @Label("Shader Time") @Description("The value of t, in 1/100 s") double time;
+        @Label("Mode") String mode;
+        @Label("Width") int width;
+        @Label("Height") int height;
+        @Label("Pixels Shaded") int pixels;
+        @Label("Replayed") @Description("Taken from the loop cache") boolean replayed;
+    }
+
+    @Name("ShaderFrame.Band")
+    @Label("Band")
+    @Category("ShaderFrame")
+    @Description("A band of rows of a frame, rendered by one thread")
+    static class Band extends Event {
+        @Label("Frame Number") long frame;
+        @Label("First Row") int y0;
+        @Label("End Row") @Description("One past the last row") int y1;
+        @Label("Pixels Shaded") int pixels;
+        @Label("Conversion Time") @Timespan(Timespan.NANOSECONDS) long conversion;
+    }
+
+    @Name("ShaderFrame.NoiseCalls")
+    @Label("Noise Calls")
+    @Category("ShaderFrame")
+    @Description("Calls to one noise function during a frame, from NoiseStats")
+    static class NoiseCalls extends Event {
+        @Label("Frame Number") long frame;
+        @Label("Function") String function;
+        @Label("Calls") long calls;
+        @Label("Time per Call") @Description("Sampled, in nanoseconds") double nanosPerCall;
+    }
+}
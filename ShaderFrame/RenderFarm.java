@@ -0,0 +1,562 @@
+/*
+ * Render a Shader in several JVMs on the same machine, for long offline
+ * renders where one JVM runs into its heap limit or its GC pauses.
+ *
+ * The coordinator starts a number of worker JVMs, which connect back to
+ * it over a loopback socket. The work is split into jobs: one job for
+ * each frame of an animation, written to a YUV4MPEG2 file in order, or
+ * one job for each band of rows of a single huge frame, written straight
+ * to its place in a PPM file like StreamingRenderer does. The workers
+ * shade the rows of a job with the same (u,v) mapping as ShaderPanel and
+ * send back packed ARGB pixels.
+ *
+ * A worker that dies, stops answering for the timeout, or sends garbage
+ * is killed, and its job goes back in the queue to be given to another
+ * worker. A new worker is started in its place, up to as many restarts
+ * as there are workers. A job that fails MAX_ATTEMPTS times stops the
+ * render. Frames are handed out at most 'window' frames ahead of the
+ * first one that is not written yet, which limits the memory for frames
+ * that wait to be written in order. They are written by one worker's
+ * connection thread at a time, without the lock, so that a sink that
+ * blocks does not hold up the other workers.
+ *
+ * "java RenderFarm -selftest" renders a frame in bands and a few frames
+ * with 3 workers, kills one of them part way, and compares the pixels
+ * with StreamingRenderer's byte for byte.
+ *
+ * Usage: java RenderFarm out.y4m width height -frames <n> [options]
+ *        java RenderFarm out.ppm width height [options]
+ *        java RenderFarm -selftest
+ *   -frames <n>       render n frames to a Y4M file (default: one frame
+ *                     in bands to a PPM file)
+ *   -t <time>         animation time of the (first) frame (default 0)
+ *   -fps <n>          frames per second (default 25, t is in 1/100 s)
+ *   -shader <class>   Shader class to use (default DemoShader)
+ *   -workers <n>      number of worker JVMs (default: all cores)
+ *   -band <rows>      rows per band for a single frame (default 64)
+ *   -timeout <s>      seconds to wait for a job before the worker is
+ *                     given up on (default 60)
+ *
+ * The protocol, all big-endian, after the worker has connected:
+ *
+ *   worker:       long  process id
+ *   coordinator:  UTF   shader class name, int width, int height
+ *   then for each job:
+ *   coordinator:  int   job number (-1 to stop), double t, int y0, int y1
+ *   worker:       int   job number, (y1-y0)*width ints of ARGB pixels
+ *
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class RenderFarm {
+
+    static final int MAX_ATTEMPTS = 3;
+
+    // Rows y0 to y1-1 of the frame at time t
+    private static final class Job implements Comparable<Job> {
+        final int index;
+        final double t;
+        final int y0, y1;
+        int attempts;
+
+        Job(int index, double t, int y0, int y1) {
+            this.index = index;
+            this.t = t;
+            this.y0 = y0;
+            this.y1 = y1;
+        }
+
+        public int compareTo(Job j) {
+            return Integer.compare(index, j.index);
+        }
+    }
+
+    private final String shaderName;
+    private final int width, height;
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private int timeoutMillis = 60000;
+
+    // The state of a render, guarded by this
+    private final PriorityQueue<Job> queue = new PriorityQueue<Job>();
+    private final Map<Integer, int[]> waiting = new HashMap<Integer, int[]>(); // Frames out of order
+    private final Map<Long, Process> unconnected = new HashMap<Long, Process>();
+    private final List<Process> processes = new ArrayList<Process>();
+    private final Object writing = new Object(); // Held while frames are written in order
+    private Job[] all;
+    private boolean[] done; // Pixels received
+    private int jobs, next, window, alive, restartsLeft, finishedJobs;
+    private IOException failure;
+    private FrameSink frames; // Or a PPM file:
+    private FileChannel image;
+    private long imageStart;
+    private ServerSocket server;
+
+    RenderFarm(String shaderName, int width, int height) {
+        this.shaderName = shaderName;
+        this.width = width;
+        this.height = height;
+    }
+
+    void setWorkers(int n) { workers = Math.max(n, 1); }
+    void setTimeout(int seconds) { timeoutMillis = Math.max(seconds, 1)*1000; }
+
+    // Render count frames from time t0, dt apart, to a frame sink in order
+    void renderFrames(FrameSink sink, int count, double t0, double dt)
+        throws IOException, InterruptedException {
+        List<Job> list = new ArrayList<Job>();
+        for(int i=0; i<count; i++)
+            list.add(new Job(i, t0 + i*dt, 0, height));
+        frames = sink;
+        run(list, 2*workers);
+    }
+
+    // Render one frame at time t to a PPM file, in bands of the given height
+    void renderImage(Path file, double t, int bandHeight) throws IOException, InterruptedException {
+        int rows = (int)Math.max(Math.min(bandHeight, Integer.MAX_VALUE/(4L*width)), 1);
+        List<Job> list = new ArrayList<Job>();
+        for(int y0=0; y0<height; y0+=rows)
+            list.add(new Job(list.size(), t, y0, Math.min(y0 + rows, height)));
+        image = FileChannel.open(file, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            byte[] header = ("P6\n" + width + " " + height + "\n255\n").getBytes("US-ASCII");
+            writeFully(image, ByteBuffer.wrap(header), 0);
+            imageStart = header.length;
+            run(list, Integer.MAX_VALUE);
+        } finally {
+            image.close();
+        }
+    }
+
+    private void run(List<Job> list, int window) throws IOException, InterruptedException {
+        synchronized(this) {
+            queue.addAll(list);
+            jobs = list.size();
+            all = list.toArray(new Job[jobs]);
+            done = new boolean[jobs];
+            next = 0;
+            finishedJobs = 0;
+            this.window = window;
+            alive = 0;
+            restartsLeft = workers;
+            failure = null;
+        }
+        server = new ServerSocket(0, workers, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(new Runnable() {
+            public void run() { accept(); }
+        }, "RenderFarm acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        try {
+            synchronized(this) {
+                for(int i=0; i<workers && failure == null; i++)
+                    spawn();
+                while(failure == null && next < jobs)
+                    wait();
+                if(failure != null) throw failure;
+            }
+        } finally {
+            server.close();
+            // The workers stop when there are no more jobs, or are stopped
+            List<Process> started;
+            synchronized(this) {
+                started = new ArrayList<Process>(processes);
+                notifyAll();
+            }
+            for(Process p : started) {
+                if(!p.waitFor(5, java.util.concurrent.TimeUnit.SECONDS))
+                    p.destroyForcibly();
+            }
+        }
+    }
+
+    // Start a worker JVM with the same class path
+    private void spawn() {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+            "RenderFarm", "-worker", Integer.toString(server.getLocalPort()));
+        builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        try {
+            final Process process = builder.start();
+            processes.add(process);
+            unconnected.put(process.pid(), process);
+            alive++;
+            // A worker that dies before it has connected is a failure too
+            process.onExit().thenRun(new Runnable() {
+                public void run() {
+                    synchronized(RenderFarm.this) {
+                        if(unconnected.remove(process.pid()) != null)
+                            failed(null, new IOException("Render worker exited with "
+                                + process.exitValue() + " before it connected"));
+                    }
+                }
+            });
+        } catch(IOException e) {
+            failure = e;
+            notifyAll();
+        }
+    }
+
+    private void accept() {
+        try {
+            while(true) {
+                final Socket socket = server.accept();
+                Thread handler = new Thread(new Runnable() {
+                    public void run() { serve(socket); }
+                }, "RenderFarm connection");
+                handler.setDaemon(true);
+                handler.start();
+            }
+        } catch(IOException e) {
+            // The server was closed
+        }
+    }
+
+    // Hand out jobs to one worker until there are no more
+    private void serve(Socket socket) {
+        Process process = null;
+        Job job = null;
+        try {
+            socket.setSoTimeout(timeoutMillis);
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            long pid = in.readLong();
+            synchronized(this) {
+                process = unconnected.remove(pid);
+            }
+            if(process == null) {
+                // Not a worker of ours, so not one that is counted as alive
+                System.err.println("Unknown render worker " + pid);
+                return;
+            }
+            out.writeUTF(shaderName);
+            out.writeInt(width);
+            out.writeInt(height);
+            while((job = take()) != null) {
+                out.writeInt(job.index);
+                out.writeDouble(job.t);
+                out.writeInt(job.y0);
+                out.writeInt(job.y1);
+                out.flush();
+                if(in.readInt() != job.index)
+                    throw new IOException("Render worker " + pid + " sent the wrong job");
+                byte[] data = new byte[4*(job.y1 - job.y0)*width];
+                in.readFully(data);
+                int[] pixels = new int[data.length/4];
+                ByteBuffer.wrap(data).asIntBuffer().get(pixels);
+                finished(job, pixels);
+                job = null;
+            }
+            out.writeInt(-1);
+            out.flush();
+            synchronized(this) {
+                alive--;
+            }
+        } catch(IOException e) {
+            if(process == null) {
+                // It never said who it is. If it is a worker of ours, its
+                // exit is a failure before it connected.
+                System.err.println("Render worker connection failed: " + e);
+                return;
+            }
+            process.destroyForcibly();
+            synchronized(this) {
+                failed(job, e);
+            }
+        } finally {
+            try {
+                socket.close();
+            } catch(IOException e) {}
+        }
+    }
+
+    // The next job that may be handed out, or null when there are no more
+    private synchronized Job take() {
+        while(failure == null && next < jobs) {
+            Job job = queue.peek();
+            if(job != null && job.index - next < window)
+                return queue.poll();
+            try {
+                wait();
+            } catch(InterruptedException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    // Write the pixels of a job, and any frames that were waiting for it.
+    // The writes are done without the lock.
+    private void finished(Job job, int[] pixels) {
+        synchronized(this) {
+            if(done[job.index]) return;
+            done[job.index] = true;
+            finishedJobs++;
+            if(image == null) waiting.put(job.index, pixels);
+        }
+        try {
+            if(image != null) {
+                ByteBuffer rgb = ByteBuffer.allocate(3*pixels.length);
+                for(int p : pixels) {
+                    rgb.put((byte)(p >> 16));
+                    rgb.put((byte)(p >> 8));
+                    rgb.put((byte)p);
+                }
+                rgb.flip();
+                writeFully(image, rgb, imageStart + 3L*width*job.y0);
+                synchronized(this) {
+                    while(next < jobs && done[next]) next++;
+                    notifyAll();
+                }
+            }
+            else {
+                // Only the thread that holds 'writing' moves next on, so the
+                // frames are written in order, and each of them once
+                synchronized(writing) {
+                    while(true) {
+                        int index;
+                        int[] frame;
+                        synchronized(this) {
+                            index = next;
+                            frame = waiting.remove(index);
+                        }
+                        if(frame == null) break;
+                        frames.beginFrame(width, height, all[index].t);
+                        frames.rows(frame, width, 0, height);
+                        frames.endFrame();
+                        synchronized(this) {
+                            next = index + 1;
+                            notifyAll();
+                        }
+                    }
+                }
+            }
+        } catch(IOException e) {
+            synchronized(this) {
+                failure = e;
+                notifyAll();
+            }
+        }
+    }
+
+    // A worker has failed: try its job again, and start a new worker.
+    // Called with the lock held.
+    private void failed(Job job, IOException e) {
+        alive--;
+        if(failure != null || next >= jobs) return; // Nothing more to do anyway
+        System.err.println("Render worker failed: " + e);
+        if(job != null) {
+            if(++job.attempts >= MAX_ATTEMPTS)
+                failure = new IOException("Job " + job.index + " failed " + MAX_ATTEMPTS + " times", e);
+            else
+                queue.add(job);
+        }
+        if(failure == null) {
+            if(restartsLeft > 0) {
+                restartsLeft--;
+                spawn();
+            }
+            else if(alive <= 0)
+                failure = new IOException("All render workers have failed", e);
+        }
+        notifyAll();
+    }
+
+    synchronized int getFinishedJobs() { return finishedJobs; }
+
+    // Kill a worker that has connected, as if it had crashed.
+    // Returns false if there is none.
+    synchronized boolean killWorker() {
+        for(Process p : processes)
+            if(p.isAlive() && !unconnected.containsValue(p)) {
+                p.destroyForcibly();
+                return true;
+            }
+        return false;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+        throws IOException {
+        while(buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    // A worker JVM: shade the rows of each job and send them back
+    static void work(int port) throws Exception {
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        out.writeLong(ProcessHandle.current().pid());
+        out.flush();
+        Shader shader = (Shader)Class.forName(in.readUTF()).getDeclaredConstructor().newInstance();
+        int width = in.readInt(), height = in.readInt();
+        double[] pixelcolor = {0.0, 0.0, 0.0};
+        for(int index; (index = in.readInt()) >= 0; ) {
+            double t = in.readDouble();
+            int y0 = in.readInt(), y1 = in.readInt();
+            ByteBuffer data = ByteBuffer.allocate(4*(y1 - y0)*width);
+            for(int y=y0; y<y1; y++) {
+                double v = (double)y/height;
+                for(int x=0; x<width; x++) {
+                    shader.shader(pixelcolor, (double)x/width, v, t);
+                    data.putInt(packRGB(pixelcolor));
+                }
+            }
+            out.writeInt(index);
+            out.write(data.array());
+            out.flush();
+        }
+        socket.close();
+    }
+
+    // The same as ShaderPanel.packRGB()
+    private static int packRGB(double[] RGB) {
+        int r = Math.min(Math.max((int)(RGB[0]*255.0), 0), 255);
+        int g = Math.min(Math.max((int)(RGB[1]*255.0), 0), 255);
+        int b = Math.min(Math.max((int)(RGB[2]*255.0), 0), 255);
+        return 0xff000000 | (r<<16) | (g<<8) | b;
+    }
+
+    // Render with the farm and with StreamingRenderer, and compare the pixels.
+    // Returns true if they are the same, and a worker was killed on the way.
+    static boolean selfTest() throws Exception {
+        final int width = 320, height = 180, workers = 3;
+        Path dir = Files.createTempDirectory("renderfarm");
+        try {
+            // One frame, in bands of 4 rows
+            final RenderFarm bandFarm = new RenderFarm("DemoShader", width, height);
+            bandFarm.setWorkers(workers);
+            Thread killer = killer(bandFarm);
+            bandFarm.renderImage(dir.resolve("farm.ppm"), 1.5, 4);
+            killer.join();
+            boolean killed = bandFarm.restartsLeft < workers;
+            byte[] expected = reference(dir, width, height, 1.5);
+            boolean same = Arrays.equals(Files.readAllBytes(dir.resolve("farm.ppm")), expected);
+            System.out.println("Bands:  " + (same ? "same as StreamingRenderer" : "DIFFERENT")
+                + (killed ? ", with a worker killed" : ", no worker was killed"));
+            boolean ok = same && killed;
+
+            // A few frames, in order
+            final int count = 8;
+            final double t0 = 2.0, dt = 0.5;
+            final List<byte[]> rendered = new ArrayList<byte[]>();
+            final double[] times = new double[count];
+            FrameSink sink = new FrameSink() {
+                byte[] rgb;
+                public void beginFrame(int w, int h, double t) {
+                    if(rendered.size() < count) times[rendered.size()] = t;
+                    rgb = new byte[3*w*h];
+                }
+                public void rows(int[] pixels, int w, int y0, int y1) {
+                    for(int i=y0*w; i<y1*w; i++) {
+                        rgb[3*i] = (byte)(pixels[i] >> 16);
+                        rgb[3*i+1] = (byte)(pixels[i] >> 8);
+                        rgb[3*i+2] = (byte)pixels[i];
+                    }
+                }
+                public void endFrame() { rendered.add(rgb); }
+            };
+            RenderFarm frameFarm = new RenderFarm("DemoShader", width, height);
+            frameFarm.setWorkers(workers);
+            killer = killer(frameFarm);
+            frameFarm.renderFrames(sink, count, t0, dt);
+            killer.join();
+            killed = frameFarm.restartsLeft < workers;
+            same = rendered.size() == count;
+            for(int i=0; i<count && same; i++) {
+                byte[] ppm = reference(dir, width, height, t0 + i*dt);
+                same = times[i] == t0 + i*dt && Arrays.equals(rendered.get(i),
+                    Arrays.copyOfRange(ppm, ppm.length - 3*width*height, ppm.length));
+            }
+            System.out.println("Frames: " + (same ? "same as StreamingRenderer, in order" : "DIFFERENT")
+                + (killed ? ", with a worker killed" : ", no worker was killed"));
+            return ok && same && killed;
+        } finally {
+            for(File f : dir.toFile().listFiles()) f.delete();
+            Files.delete(dir);
+        }
+    }
+
+    // A thread that kills a worker of the farm once it has finished a job
+    private static Thread killer(final RenderFarm farm) {
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while(farm.getFinishedJobs() < 1) Thread.sleep(5);
+                    farm.killWorker();
+                } catch(InterruptedException e) {}
+            }
+        }, "RenderFarm self-test");
+        thread.start();
+        return thread;
+    }
+
+    // The frame at time t from StreamingRenderer, as a PPM file
+    private static byte[] reference(Path dir, int width, int height, double t) throws Exception {
+        Path file = dir.resolve("reference.ppm");
+        StreamingRenderer renderer = new StreamingRenderer(new DemoShader(), width, height);
+        renderer.setTime(t);
+        renderer.render(file);
+        return Files.readAllBytes(file);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length == 2 && args[0].equals("-worker")) {
+            try {
+                work(Integer.parseInt(args[1]));
+            } catch(ConnectException e) {
+                // A replacement that started as the render finished
+            }
+            return;
+        }
+        if(args.length == 1 && args[0].equals("-selftest"))
+            System.exit(selfTest() ? 0 : 1);
+        if(args.length < 3) {
+            System.err.println("Usage: java RenderFarm out.y4m|out.ppm width height [-frames n]"
+                + " [-t time] [-fps n] [-shader class] [-workers n] [-band rows] [-timeout s]");
+            System.exit(1);
+        }
+        int width = Integer.parseInt(args[1]);
+        int height = Integer.parseInt(args[2]);
+        String shaderName = "DemoShader";
+        double t = 0.0;
+        int frameCount = 0, fps = 25, workers = 0, band = 64, timeout = 0;
+        for(int i=3; i+1<args.length; i+=2) {
+            if(args[i].equals("-frames")) frameCount = Integer.parseInt(args[i+1]);
+            else if(args[i].equals("-t")) t = Double.parseDouble(args[i+1]);
+            else if(args[i].equals("-fps")) fps = Integer.parseInt(args[i+1]);
+            else if(args[i].equals("-shader")) shaderName = args[i+1];
+            else if(args[i].equals("-workers")) workers = Integer.parseInt(args[i+1]);
+            else if(args[i].equals("-band")) band = Integer.parseInt(args[i+1]);
+            else if(args[i].equals("-timeout")) timeout = Integer.parseInt(args[i+1]);
+        }
+        RenderFarm farm = new RenderFarm(shaderName, width, height);
+        if(workers > 0) farm.setWorkers(workers);
+        if(timeout > 0) farm.setTimeout(timeout);
+
+        long start = System.currentTimeMillis();
+        if(frameCount > 0) {
+            Y4MWriter video = Y4MWriter.open(args[0], width, height, fps);
+            video.setBlocking(true);
+            try {
+                farm.renderFrames(video, frameCount, t, 100.0/fps);
+            } finally {
+                video.close();
+            }
+        }
+        else
+            farm.renderImage(Paths.get(args[0]), t, band);
+        long ms = System.currentTimeMillis() - start;
+        System.out.println("Rendered " + Math.max(frameCount, 1) + " frame(s) of " + width + "x"
+            + height + " pixels in " + ms + " ms");
+    }
+}
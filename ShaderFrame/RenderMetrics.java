@@ -0,0 +1,183 @@
+/*
+ * Where the frame time goes: frame render times as a histogram, shaded
+ * pixels per second, the time for each render thread, frames skipped
+ * because nothing had changed, frames dropped because they took longer
+ * than the frame period, the time spent converting colors to pixels, and
+ * how long it took to warm up to a stable frame time (ShaderPanel.warmUp).
+ *
+ * A ShaderPanel reports to its RenderMetrics as it renders. The numbers
+ * can be read through the getters, shown in the panel's HUD, or watched
+ * in jconsole or VisualVM once the metrics are registered as an MBean.
+ *
+ * The histogram has 4 buckets per factor of 2, from 0.1 ms up, so the
+ * percentiles are accurate to within about 10%.
+ *
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import javax.management.*;
+
+public class RenderMetrics implements RenderMetricsMBean {
+
+    private static final double MIN_NANOS = 100000.0; // The lower limit of bucket 1
+    private static final int BUCKETS_PER_OCTAVE = 4, BUCKETS = 80;
+
+    private final long[] histogram = new long[BUCKETS];
+    private long frames, skipped, dropped, pixels;
+    private long frameNanos, maxFrameNanos, lastFrameNanos;
+    private long conversionNanos, frameConversionNanos;
+    private final Map<String, long[]> threads = new TreeMap<String, long[]>(); // bands, nanos, pixels
+    private long warmupNanos, warmupFrames, stableUptime = -1;
+    private final NoiseStats noise = new NoiseStats();
+
+    // A frame of the given render time is finished. The conversion time
+    // of its bands is added up from band() calls since the last frame.
+    synchronized void frame(long nanos, int shadedPixels) {
+        frames++;
+        pixels += shadedPixels;
+        frameNanos += nanos;
+        lastFrameNanos = nanos;
+        maxFrameNanos = Math.max(maxFrameNanos, nanos);
+        if(NoiseStats.ENABLED) noise.frame();
+        conversionNanos += frameConversionNanos;
+        frameConversionNanos = 0;
+        histogram[bucket(nanos)]++;
+    }
+
+    // A band of rows was rendered by the current thread
+    synchronized void band(long nanos, int shadedPixels, long conversion) {
+        String name = Thread.currentThread().getName();
+        long[] t = threads.get(name);
+        if(t == null) threads.put(name, t = new long[3]);
+        t[0]++;
+        t[1] += nanos;
+        t[2] += shadedPixels;
+        frameConversionNanos += conversion;
+    }
+
+    // The warmup is done, stable or not. It is kept through reset().
+    synchronized void warmup(long nanos, int frames, boolean stable) {
+        warmupNanos = nanos;
+        warmupFrames = frames;
+        stableUptime = stable ? ManagementFactory.getRuntimeMXBean().getUptime() : -1;
+    }
+
+    synchronized void skipped() { skipped++; }
+    synchronized void dropped() { dropped++; }
+
+    private static int bucket(long nanos) {
+        if(nanos < MIN_NANOS) return 0;
+        int b = 1 + (int)(BUCKETS_PER_OCTAVE*Math.log(nanos/MIN_NANOS)/Math.log(2.0));
+        return Math.min(b, BUCKETS - 1);
+    }
+
+    // The lower limit of bucket b, in nanoseconds
+    private static double bucketStart(int b) {
+        return b == 0 ? 0.0 : MIN_NANOS*Math.pow(2.0, (double)(b - 1)/BUCKETS_PER_OCTAVE);
+    }
+
+    // The frame time that a fraction q of the frames are faster than,
+    // as the middle of its bucket
+    private synchronized double percentile(double q) {
+        if(frames == 0) return 0.0;
+        long n = 0;
+        for(int b=0; b<BUCKETS; b++) {
+            n += histogram[b];
+            if(n >= q*frames)
+                return Math.min(0.5*(bucketStart(b) + bucketStart(b + 1)), maxFrameNanos)/1e6;
+        }
+        return maxFrameNanos/1e6;
+    }
+
+    public synchronized long getFramesRendered() { return frames; }
+    public synchronized long getFramesSkipped() { return skipped; }
+    public synchronized long getFramesDropped() { return dropped; }
+    public synchronized long getPixelsShaded() { return pixels; }
+
+    public synchronized double getMeanFrameMillis() {
+        return frames == 0 ? 0.0 : frameNanos/1e6/frames;
+    }
+
+    public synchronized double getMaxFrameMillis() { return maxFrameNanos/1e6; }
+    public synchronized double getLastFrameMillis() { return lastFrameNanos/1e6; }
+    public double getFrameMillisP50() { return percentile(0.50); }
+    public double getFrameMillisP95() { return percentile(0.95); }
+    public double getFrameMillisP99() { return percentile(0.99); }
+
+    public synchronized double getPixelsPerSecond() {
+        return frameNanos == 0 ? 0.0 : pixels*1e9/frameNanos;
+    }
+
+    public synchronized double getMeanConversionMillis() {
+        return frames == 0 ? 0.0 : conversionNanos/1e6/frames;
+    }
+
+    public synchronized String[] getFrameHistogram() {
+        List<String> lines = new ArrayList<String>();
+        for(int b=0; b<BUCKETS; b++)
+            if(histogram[b] > 0)
+                lines.add(String.format(Locale.ROOT, "%8.2f - %8.2f ms: %d",
+                    bucketStart(b)/1e6, bucketStart(b + 1)/1e6, histogram[b]));
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    public synchronized String[] getThreadTimes() {
+        List<String> lines = new ArrayList<String>();
+        for(Map.Entry<String, long[]> e : threads.entrySet()) {
+            long[] t = e.getValue();
+            lines.add(String.format(Locale.ROOT, "%s: %d bands, %.1f ms, %.2f ms/band, %.1f Mpixels/s",
+                e.getKey(), t[0], t[1]/1e6, t[1]/1e6/t[0], t[1] == 0 ? 0.0 : t[2]*1e3/t[1]));
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    NoiseStats getNoiseStats() { return noise; }
+
+    public synchronized double getWarmupMillis() { return warmupNanos/1e6; }
+    public synchronized long getWarmupFrames() { return warmupFrames; }
+    public synchronized long getTimeToStableMillis() { return stableUptime; }
+
+    public String[] getNoiseCalls() {
+        List<String> lines = noise.summary();
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(histogram, 0);
+        frames = skipped = dropped = pixels = 0;
+        frameNanos = maxFrameNanos = lastFrameNanos = 0;
+        conversionNanos = frameConversionNanos = 0;
+        threads.clear();
+    }
+
+    // A few lines for the HUD
+    synchronized List<String> summary() {
+        List<String> lines = new ArrayList<String>();
+        lines.add(String.format(Locale.ROOT, "frame %.1f ms, mean %.1f, p95 %.1f, max %.1f",
+            getLastFrameMillis(), getMeanFrameMillis(), getFrameMillisP95(), getMaxFrameMillis()));
+        lines.add(String.format(Locale.ROOT, "%.2f Mpixels/s, conversion %.2f ms/frame",
+            getPixelsPerSecond()/1e6, getMeanConversionMillis()));
+        lines.add(String.format(Locale.ROOT, "%d rendered, %d skipped, %d dropped",
+            frames, skipped, dropped));
+        if(warmupFrames > 0)
+            lines.add(String.format(Locale.ROOT, "warmup %.0f ms, %d frames, %s", getWarmupMillis(),
+                warmupFrames, stableUptime >= 0 ? "stable " + stableUptime + " ms after start" : "not stable"));
+        lines.addAll(Arrays.asList(getThreadTimes()));
+        if(NoiseStats.ENABLED) lines.addAll(noise.summary());
+        return lines;
+    }
+
+    // Register with the platform MBean server, as ShaderFrame:type=RenderMetrics,name=...
+    void register(String name) {
+        try {
+            ObjectName objectName = new ObjectName("ShaderFrame:type=RenderMetrics,name="
+                + ObjectName.quote(name));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if(server.isRegistered(objectName)) server.unregisterMBean(objectName);
+            server.registerMBean(this, objectName);
+        } catch(JMException e) {
+            throw new IllegalStateException("Could not register the render metrics", e);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * The management interface of RenderMetrics, for JMX clients like
+ * jconsole and VisualVM. All times are in milliseconds.
+ *
+ */
+
+public interface RenderMetricsMBean {
+
+    long getFramesRendered();
+    long getFramesSkipped();
+    long getFramesDropped();
+
+    double getMeanFrameMillis();
+    double getMaxFrameMillis();
+    double getLastFrameMillis();
+    double getFrameMillisP50();
+    double getFrameMillisP95();
+    double getFrameMillisP99();
+
+    // The frame time histogram, one line per bucket that is in use
+    String[] getFrameHistogram();
+
+    long getPixelsShaded();
+    double getPixelsPerSecond();
+
+    // The time spent converting colors to packed pixels, per frame
+    double getMeanConversionMillis();
+
+    // Bands, time and pixels for each render thread, one line per thread
+    String[] getThreadTimes();
+
+    // The time and frames that ShaderPanel.warmUp() took, and the time
+    // from the start of the JVM until the frame time was stable, or -1
+    double getWarmupMillis();
+    long getWarmupFrames();
+    long getTimeToStableMillis();
+
+    // Calls per frame and time per call for each noise function, in the
+    // last frame. Empty unless started with -Dshaderframe.noisestats=true
+    String[] getNoiseCalls();
+
+    void reset();
+}
@@ -0,0 +1,247 @@
+/*
+ * Renders many ShaderPanels on one shared pool of threads, for a wall of
+ * previews where a thread and a pool for each panel would oversubscribe
+ * the machine and leave it to chance which panel gets the cores.
+ *
+ * A registered panel gets a new frame once every frame period, when its
+ * last frame is done and something has changed (see ShaderPanel.startFrame).
+ * The deadline of a frame is the end of its period. The bands of all the
+ * frames go into one queue, and the worker threads always take the most
+ * urgent band first: the one whose frame has the earliest deadline, with
+ * the deadline moved PRIORITY_STEP earlier for each level of priority of
+ * its panel. So the bands of a high priority panel go first, but a band
+ * of a low priority panel that has waited long enough goes before them,
+ * and no panel starves. When there is more work than the cores can do,
+ * all panels get fewer frames, and the ones with a low priority the most.
+ *
+ * Frames that end after their deadline are counted as dropped in the
+ * RenderMetrics of their panel. The run() methods of the panels are not
+ * used, the service decides when they render.
+ *
+ */
+
+import java.util.*;
+
+class RenderService {
+
+    static final int MIN_PRIORITY = 1, NORM_PRIORITY = 5, MAX_PRIORITY = 10;
+    static final long PRIORITY_STEP = 10000000L; // Nanoseconds of deadline per level
+
+    // A registered panel, and its frame in progress
+    private static final class Client {
+        final ShaderPanel panel;
+        final int priority;
+        final long period;
+        long release, deadline; // The start of the next frame, and the end of this one
+        boolean inFlight;
+        int bandsLeft, pixels;
+
+        Client(ShaderPanel panel, int priority, long period, long release) {
+            this.panel = panel;
+            this.priority = priority;
+            this.period = period;
+            this.release = release;
+        }
+    }
+
+    // A band of rows of a frame, in the queue
+    private static final class Band implements Comparable<Band> {
+        final Client client;
+        final int y0, y1;
+        final long key, order;
+
+        Band(Client client, int y0, int y1, long key, long order) {
+            this.client = client;
+            this.y0 = y0;
+            this.y1 = y1;
+            this.key = key;
+            this.order = order;
+        }
+
+        public int compareTo(Band b) {
+            if(key != b.key) return key < b.key ? -1 : 1;
+            return Long.compare(order, b.order); // First come, first served
+        }
+    }
+
+    private final PriorityQueue<Band> queue = new PriorityQueue<Band>();
+    private final List<Client> clients = new ArrayList<Client>();
+    private final Thread[] workers;
+    private final Thread dispatcher;
+    private long bandOrder, framesRendered, framesDropped;
+    private boolean stopped;
+
+    // A service with a worker thread for each processor
+    RenderService() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    RenderService(int threads) {
+        workers = new Thread[Math.max(threads, 1)];
+        for(int i=0; i<workers.length; i++) {
+            workers[i] = new Thread(new Runnable() {
+                public void run() { work(); }
+            }, "RenderService worker " + (i + 1));
+            workers[i].setDaemon(true);
+        }
+        dispatcher = new Thread(new Runnable() {
+            public void run() { dispatch(); }
+        }, "RenderService dispatcher");
+        dispatcher.setDaemon(true);
+        for(Thread worker : workers) worker.start();
+        dispatcher.start();
+    }
+
+    // Render the panel from now on, with a frame every ShaderPanel.FRAME_PERIOD
+    void register(ShaderPanel panel, int priority) {
+        register(panel, priority, ShaderPanel.FRAME_PERIOD);
+    }
+
+    synchronized void register(ShaderPanel panel, int priority, int periodMillis) {
+        if(priority < MIN_PRIORITY || priority > MAX_PRIORITY)
+            throw new IllegalArgumentException("Bad render priority: " + priority);
+        if(periodMillis < 1)
+            throw new IllegalArgumentException("Bad frame period: " + periodMillis + " ms");
+        if(panel.service != null)
+            throw new IllegalStateException("The panel is already registered with a RenderService");
+        panel.service = this;
+        clients.add(new Client(panel, priority, periodMillis*1000000L, System.nanoTime()));
+        notifyAll();
+    }
+
+    // Stop rendering the panel. A frame in progress is still finished.
+    synchronized void unregister(ShaderPanel panel) {
+        for(Iterator<Client> it = clients.iterator(); it.hasNext(); ) {
+            if(it.next().panel == panel) {
+                it.remove();
+                panel.service = null;
+            }
+        }
+    }
+
+    // Something has changed in the panel, so give it a frame right away
+    synchronized void wake(ShaderPanel panel) {
+        long now = System.nanoTime();
+        for(Client c : clients)
+            if(c.panel == panel && c.release > now) c.release = now;
+        notifyAll();
+    }
+
+    // Let the workers finish the bands in the queue, and then stop
+    synchronized void shutdown() {
+        stopped = true;
+        for(Client c : clients)
+            c.panel.service = null;
+        clients.clear();
+        notifyAll();
+    }
+
+    synchronized long getFramesRendered() { return framesRendered; }
+    synchronized long getFramesDropped() { return framesDropped; }
+
+    // Start the frames of the panels that are due, and sleep until the next one is
+    private void dispatch() {
+        List<Client> due = new ArrayList<Client>();
+        while(true) {
+            synchronized(this) {
+                long now = System.nanoTime(), next = now + 1000000000L;
+                for(Client c : clients) {
+                    if(c.inFlight) continue;
+                    if(c.release <= now) {
+                        c.inFlight = true;
+                        due.add(c);
+                    }
+                    else next = Math.min(next, c.release);
+                }
+                if(due.isEmpty()) {
+                    if(stopped) return;
+                    try {
+                        wait(Math.max((next - now)/1000000, 1));
+                    } catch(InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+            }
+            for(Client c : due) start(c);
+            due.clear();
+        }
+    }
+
+    private void start(Client c) {
+        long now = System.nanoTime();
+        List<int[]> bands = null;
+        try {
+            bands = c.panel.startFrame();
+        } catch(RuntimeException e) {
+            System.err.println("Rendering failed: " + e);
+        }
+        synchronized(this) {
+            c.release = now + c.period;
+            if(bands == null) {
+                // Nothing to render, look again in the next period
+                c.inFlight = false;
+                return;
+            }
+            c.deadline = now + c.period;
+            c.pixels = 0;
+            c.bandsLeft = bands.size();
+            long key = c.deadline - c.priority*PRIORITY_STEP;
+            for(int[] band : bands)
+                queue.add(new Band(c, band[0], band[1], key, bandOrder++));
+            notifyAll();
+        }
+        if(bands.isEmpty()) finish(c); // Replayed from the loop cache
+    }
+
+    // Render the most urgent band, over and over
+    private void work() {
+        while(true) {
+            Band band;
+            synchronized(this) {
+                while(queue.isEmpty() && !stopped) {
+                    try {
+                        wait();
+                    } catch(InterruptedException e) {
+                        return;
+                    }
+                }
+                band = queue.poll();
+                if(band == null) return; // Stopped, and nothing left to do
+            }
+            int pixels = 0;
+            try {
+                pixels = band.client.panel.renderBand(band.y0, band.y1);
+            } catch(RuntimeException e) {
+                System.err.println("Rendering failed: " + e);
+            }
+            Client c = band.client;
+            boolean done;
+            synchronized(this) {
+                c.pixels += pixels;
+                done = --c.bandsLeft == 0;
+            }
+            if(done) finish(c);
+        }
+    }
+
+    private void finish(Client c) {
+        try {
+            c.panel.finishFrame(c.pixels);
+        } finally {
+            boolean late = System.nanoTime() > c.deadline;
+            if(late) c.panel.getMetrics().dropped();
+            synchronized(this) {
+                c.inFlight = false;
+                framesRendered++;
+                if(late) framesDropped++;
+                notifyAll();
+            }
+        }
+    }
+
+    public synchronized String toString() {
+        return "RenderService[" + workers.length + " threads, " + clients.size() + " panels, "
+            + framesRendered + " frames, " + framesDropped + " dropped]";
+    }
+}
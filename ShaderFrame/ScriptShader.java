@@ -0,0 +1,98 @@
+/*
+ * A Shader that is read from a script file and compiled at runtime
+ * by ShaderCompiler. The file is checked for changes twice a second,
+ * and a new version is compiled and swapped in as soon as it is saved,
+ * without any restart. If the new version has errors, they are printed
+ * and the old version is kept.
+ *
+ */
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+class ScriptShader extends Shader {
+
+    private final Path file;
+    private volatile Shader compiled;
+    private volatile boolean animated;
+    private volatile int revision;
+    private volatile String identity;
+    private long lastModified;
+
+    // Compile the script in the file. Errors in this first version
+    // are thrown rather than printed, since there is nothing to fall back on.
+    ScriptShader(Path file) throws IOException {
+        this.file = file;
+        lastModified = Files.getLastModifiedTime(file).toMillis();
+        load();
+        Thread watcher = new Thread(new Runnable() {
+            public void run() {
+                watch();
+            }
+        }, "ScriptShader " + file.getFileName());
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    void shader(double[] p, double u, double v, double t) {
+        compiled.shader(p, u, v, t);
+    }
+
+    boolean isAnimated() {
+        return animated;
+    }
+
+    int getRevision() {
+        return revision;
+    }
+
+    // The file and a hash of the script in it, so that every script,
+    // and every version of it, has its own identity
+    String getIdentity() {
+        return identity;
+    }
+
+    private void load() throws IOException {
+        String source = read();
+        ShaderCompiler.Program program = ShaderCompiler.parse(source);
+        compiled = ShaderCompiler.define(program);
+        animated = program.usesTime();
+        identity = "ScriptShader " + file.toAbsolutePath().normalize() + " "
+            + Integer.toHexString(source.hashCode());
+        revision++;
+    }
+
+    // Recompile the script if the file has changed since the last time.
+    // Returns true if a new version was loaded.
+    synchronized boolean reloadIfChanged() {
+        try {
+            long modified = Files.getLastModifiedTime(file).toMillis();
+            if(modified == lastModified) return false;
+            lastModified = modified;
+            load();
+            System.err.println("Reloaded " + file);
+            return true;
+        } catch(IOException e) {
+            System.err.println(file + ": " + e);
+        } catch(IllegalArgumentException e) {
+            System.err.println(file + ": " + e.getMessage());
+        }
+        return false;
+    }
+
+    private String read() throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+
+    private void watch() {
+        while(true) {
+            try {
+                Thread.sleep(500);
+            } catch(InterruptedException e) {
+                return;
+            }
+            reloadIfChanged();
+        }
+    }
+}
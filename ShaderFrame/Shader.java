@@ -4,10 +4,25 @@
  * a new output array for each invocation. This saves time.
  * The input is a (u,v) texture coodinate pair and a time parameter.
  * The output is a double[3] array with RGB values.
+ * Renderers may call shader() from several threads at once,
+ * so a Shader should not keep any state of its own between calls.
  */
 
 abstract class Shader {
 
 	abstract void shader(double[] p, double u, double v, double t);
 
+	// False if the output does not depend on t, so that a renderer
+	// need not shade it again until something else changes
+	boolean isAnimated() { return true; }
+
+	// A number that changes whenever the shader itself changes,
+	// like a script that is reloaded
+	int getRevision() { return 0; }
+
+	// What the shader draws, as a string that is the same in every run
+	// for the same image, and changes with the shader. Caches that keep
+	// frames or tiles between versions, or between runs, key on it.
+	String getIdentity() { return getClass().getName(); }
+
 }
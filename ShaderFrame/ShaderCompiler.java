@@ -0,0 +1,600 @@
+/*
+ * A compiler for a small shader expression language. A shader script
+ * is translated directly to JVM bytecode for a new Shader subclass, which
+ * is loaded as a hidden class. The result runs just like a hand-written
+ * Shader, with no interpretation at all, and it can be thrown away and
+ * replaced when the script changes.
+ *
+ * A script is a list of assignments, one per statement, ending in ';'.
+ * The inputs are u, v and t, and the output is whatever is assigned to
+ * r, g and b (0.0 if nothing). Any other name is a local variable.
+ * Comments start with // or #. An example:
+ *
+ *   d = sqrt((u-0.5)*(u-0.5) + (v-0.5)*(v-0.5));
+ *   n = 0.5 + 0.5*noise(u*8.0, v*8.0, t*0.1);
+ *   r = mix(n, 1.0, step(d, 0.2));
+ *   g = n*0.8;
+ *   b = 0.2;
+ *
+ * The operators are + - * / and unary minus, with the usual precedence.
+ * Constants: pi, e. Functions:
+ *   noise(x,y,z)                  ImprovedNoise
+ *   snoise(x,y), snoise(x,y,z), snoise(x,y,z,w)   SimplexNoise
+ *   psnoise(x,y,z)                PerlinSimplexNoise
+ *   worley(x,y,z)                 WorleyNoise, distance to closest point (F1)
+ *   sin cos tan asin acos atan exp log sqrt abs floor ceil fract sign
+ *   pow(x,y) atan2(y,x) min(a,b) max(a,b) mod(x,y)
+ *   step(edge,x) mix(a,b,w) clamp(x,lo,hi) smoothstep(e0,e1,x)
+ *
+ * The generated code has no branches, so there is no need for any
+ * stack map frames in the class file. ShaderGraph builds Programs
+ * directly, without going through the parser.
+ *
+ */
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.util.*;
+
+class ShaderCompiler {
+
+    // An expression tree node
+    static final class Node {
+        static final int CONST = 0, INPUT = 1, VAR = 2, NEG = 3,
+            ADD = 4, SUB = 5, MUL = 6, DIV = 7, CALL = 8, EXTRA = 9;
+
+        final int op;
+        final double value; // For CONST
+        final int index;    // For INPUT (0=u, 1=v, 2=t), VAR and EXTRA
+        final Function function;
+        final Node[] args;
+
+        Node(int op, double value, int index, Function function, Node... args) {
+            this.op = op;
+            this.value = value;
+            this.index = index;
+            this.function = function;
+            this.args = args;
+        }
+
+        static Node constant(double c) { return new Node(CONST, c, 0, null); }
+        static Node input(int i) { return new Node(INPUT, 0.0, i, null); }
+        static Node var(int i) { return new Node(VAR, 0.0, i, null); }
+        static Node unary(int op, Node a) { return new Node(op, 0.0, 0, null, a); }
+        static Node binary(int op, Node a, Node b) { return new Node(op, 0.0, 0, null, a, b); }
+        static Node call(Function f, Node... args) { return new Node(CALL, 0.0, 0, f, args); }
+        // Extra result number i from the latest call to a function with extra results
+        static Node extra(int i) { return new Node(EXTRA, 0.0, i, null); }
+    }
+
+    // A static method that a script can call. Functions with extra results
+    // take the output array p[] as their first argument and store the
+    // extra results in it, before the final colors are written there.
+    static final class Function {
+        final String name, owner, method;
+        final int arity;
+        final int extraResults;
+
+        Function(String name, String owner, String method, int arity) {
+            this(name, owner, method, arity, 0);
+        }
+
+        Function(String name, String owner, String method, int arity, int extraResults) {
+            this.name = name;
+            this.owner = owner;
+            this.method = method;
+            this.arity = arity;
+            this.extraResults = extraResults;
+        }
+
+        String descriptor() {
+            StringBuilder d = new StringBuilder(extraResults > 0 ? "([D" : "(");
+            for(int i=0; i<arity; i++) d.append('D');
+            return d.append(")D").toString();
+        }
+    }
+
+    // A compiled program: assignments to variables, in order.
+    // Variables 0, 1 and 2 are the outputs r, g and b.
+    static final class Program {
+        final List<String> names = new ArrayList<String>(Arrays.asList("r", "g", "b"));
+        final List<Integer> targets = new ArrayList<Integer>();
+        final List<Node> values = new ArrayList<Node>();
+
+        int variable(String name) {
+            int i = names.indexOf(name);
+            if(i < 0) {
+                i = names.size();
+                names.add(name);
+            }
+            return i;
+        }
+
+        void assign(int var, Node value) {
+            targets.add(var);
+            values.add(value);
+        }
+
+        // True if any assignment reads the time t
+        boolean usesTime() {
+            for(Node value : values)
+                if(usesTime(value)) return true;
+            return false;
+        }
+
+        private static boolean usesTime(Node n) {
+            if(n.op == Node.INPUT && n.index == 2) return true;
+            for(Node a : n.args)
+                if(usesTime(a)) return true;
+            return false;
+        }
+    }
+
+    private static final Map<String, Function> FUNCTIONS = new HashMap<String, Function>();
+
+    private static void function(String name, String owner, String method, int arity) {
+        FUNCTIONS.put(name + "/" + arity, new Function(name, owner, method, arity));
+    }
+
+    static {
+        String[] math1 = {"sin", "cos", "tan", "asin", "acos", "atan", "exp", "log",
+                          "sqrt", "abs", "floor", "ceil"};
+        for(String m : math1) function(m, "java/lang/Math", m, 1);
+        function("sign", "java/lang/Math", "signum", 1);
+        function("pow", "java/lang/Math", "pow", 2);
+        function("atan2", "java/lang/Math", "atan2", 2);
+        function("min", "java/lang/Math", "min", 2);
+        function("max", "java/lang/Math", "max", 2);
+        function("fract", "ShaderCompiler", "fract", 1);
+        function("mod", "ShaderCompiler", "mod", 2);
+        function("step", "ShaderCompiler", "step", 2);
+        function("mix", "ShaderCompiler", "mix", 3);
+        function("clamp", "ShaderCompiler", "clamp", 3);
+        function("smoothstep", "ShaderCompiler", "smoothstep", 3);
+        function("noise", "ImprovedNoise", "noise", 3);
+        function("snoise", "SimplexNoise", "noise", 2);
+        function("snoise", "SimplexNoise", "noise", 3);
+        function("snoise", "SimplexNoise", "noise", 4);
+        function("psnoise", "PerlinSimplexNoise", "noise", 3);
+        function("worley", "WorleyNoise", "f1", 3);
+    }
+
+    static Function lookup(String name, int arity) {
+        return FUNCTIONS.get(name + "/" + arity);
+    }
+
+    // Helper functions for scripts, in the style of GLSL
+    static double fract(double x) { return x - Math.floor(x); }
+    static double mod(double x, double y) { return x - y*Math.floor(x/y); }
+    static double step(double edge, double x) { return x < edge ? 0.0 : 1.0; }
+    static double mix(double a, double b, double w) { return a + w*(b-a); }
+    static double clamp(double x, double lo, double hi) { return Math.min(Math.max(x, lo), hi); }
+    static double smoothstep(double e0, double e1, double x) {
+        double s = clamp((x-e0)/(e1-e0), 0.0, 1.0);
+        return s*s*(3.0-2.0*s);
+    }
+
+    // Compile a script to a new Shader.
+    // Syntax errors are reported as IllegalArgumentExceptions.
+    static Shader compile(String source) {
+        return define(parse(source));
+    }
+
+    // Load a compiled program as a hidden class and create an instance of it
+    static Shader define(Program program) {
+        byte[] classFile = new ClassWriter(program).toByteArray();
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classFile, true);
+            return (Shader)lookup.findConstructor(lookup.lookupClass(),
+                MethodType.methodType(void.class)).invoke();
+        } catch(RuntimeException e) {
+            throw e;
+        } catch(Throwable e) {
+            throw new IllegalStateException("Could not load compiled shader", e);
+        }
+    }
+
+    /*
+     * Parser: a plain recursive descent over a token list
+     */
+
+    static Program parse(String source) {
+        return new Parser(source).program();
+    }
+
+    private static final class Parser {
+        private final StreamTokenizer in;
+        private final Program program = new Program();
+
+        Parser(String source) {
+            in = new StreamTokenizer(new StringReader(source));
+            in.resetSyntax();
+            in.wordChars('a', 'z');
+            in.wordChars('A', 'Z');
+            in.wordChars('_', '_');
+            in.wordChars('0', '9');
+            in.wordChars('.', '.'); // Numbers are words too, see number()
+            in.whitespaceChars(0, ' ');
+            in.commentChar('#');
+            in.slashSlashComments(true);
+            in.slashStarComments(true);
+        }
+
+        Program program() {
+            next();
+            while(in.ttype != StreamTokenizer.TT_EOF) {
+                String name = word();
+                if(name.equals("u") || name.equals("v") || name.equals("t")
+                   || name.equals("pi") || name.equals("e"))
+                    throw error("cannot assign to " + name);
+                expect('=');
+                Node value = expression();
+                expect(';');
+                program.assign(program.variable(name), value);
+            }
+            return program;
+        }
+
+        private Node expression() {
+            Node a = term();
+            while(in.ttype == '+' || in.ttype == '-') {
+                int op = in.ttype == '+' ? Node.ADD : Node.SUB;
+                next();
+                a = Node.binary(op, a, term());
+            }
+            return a;
+        }
+
+        private Node term() {
+            Node a = factor();
+            while(in.ttype == '*' || in.ttype == '/') {
+                int op = in.ttype == '*' ? Node.MUL : Node.DIV;
+                next();
+                a = Node.binary(op, a, factor());
+            }
+            return a;
+        }
+
+        private Node factor() {
+            if(in.ttype == '-') {
+                next();
+                return Node.unary(Node.NEG, factor());
+            }
+            if(in.ttype == '+') {
+                next();
+                return factor();
+            }
+            if(in.ttype == '(') {
+                next();
+                Node a = expression();
+                expect(')');
+                return a;
+            }
+            if(in.ttype == StreamTokenizer.TT_WORD && isNumberStart(in.sval.charAt(0)))
+                return Node.constant(number());
+            String name = word();
+            if(in.ttype == '(') {
+                next();
+                List<Node> args = new ArrayList<Node>();
+                if(in.ttype != ')') {
+                    args.add(expression());
+                    while(in.ttype == ',') {
+                        next();
+                        args.add(expression());
+                    }
+                }
+                expect(')');
+                Function f = lookup(name, args.size());
+                if(f == null)
+                    throw error("unknown function " + name + " with " + args.size() + " arguments");
+                return Node.call(f, args.toArray(new Node[args.size()]));
+            }
+            if(name.equals("u")) return Node.input(0);
+            if(name.equals("v")) return Node.input(1);
+            if(name.equals("t")) return Node.input(2);
+            if(name.equals("pi")) return Node.constant(Math.PI);
+            if(name.equals("e")) return Node.constant(Math.E);
+            int var = program.names.indexOf(name);
+            if(var < 0 || (var < 3 && !program.targets.contains(var)))
+                throw error("undefined variable " + name);
+            return Node.var(var);
+        }
+
+        private static boolean isNumberStart(char c) {
+            return c >= '0' && c <= '9' || c == '.';
+        }
+
+        // A number like 2, 0.5, .5, 1e5 or 1.5e-3. It comes as one word,
+        // except for the sign of the exponent, which is a token of its own.
+        private double number() {
+            String text = in.sval;
+            next();
+            if(text.matches(MANTISSA + "[eE]") && (in.ttype == '-' || in.ttype == '+')) {
+                text += (char)in.ttype;
+                next();
+                if(in.ttype != StreamTokenizer.TT_WORD)
+                    throw error("expected an exponent after " + text);
+                text += in.sval;
+                next();
+            }
+            if(!text.matches(MANTISSA + "([eE][+-]?[0-9]+)?"))
+                throw error("bad number " + text);
+            return Double.parseDouble(text); // Correctly rounded
+        }
+
+        private static final String MANTISSA = "([0-9]+\\.?[0-9]*|\\.[0-9]+)";
+
+        private String word() {
+            if(in.ttype != StreamTokenizer.TT_WORD || isNumberStart(in.sval.charAt(0))
+               || in.sval.indexOf('.') >= 0)
+                throw error("expected a name");
+            String s = in.sval;
+            next();
+            return s;
+        }
+
+        private void expect(char c) {
+            if(in.ttype != c)
+                throw error("expected '" + c + "'");
+            next();
+        }
+
+        private void next() {
+            try {
+                in.nextToken();
+            } catch(IOException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            String near = in.ttype == StreamTokenizer.TT_EOF ? "end of script"
+                : in.ttype == StreamTokenizer.TT_WORD ? in.sval
+                : String.valueOf((char)in.ttype);
+            return new IllegalArgumentException("Line " + in.lineno() + ": " + message
+                + " near " + near);
+        }
+    }
+
+    /*
+     * Class file writer. The generated class looks like this:
+     *
+     *   final class CompiledShader extends Shader {
+     *     void shader(double[] p, double u, double v, double t) {
+     *       double r = 0, g = 0, b = 0, ...;
+     *       ... the assignments ...
+     *       p[0] = r; p[1] = g; p[2] = b;
+     *     }
+     *   }
+     */
+    private static final class ClassWriter {
+        // The few opcodes that we need
+        private static final int DCONST_0 = 0x0e, DCONST_1 = 0x0f, LDC2_W = 0x14,
+            DLOAD = 0x18, DSTORE = 0x39, ALOAD_0 = 0x2a, ALOAD_1 = 0x2b, ICONST_0 = 0x03,
+            DALOAD = 0x31, DASTORE = 0x52, DADD = 0x63, DSUB = 0x67, DMUL = 0x6b, DDIV = 0x6f, DNEG = 0x77,
+            RETURN = 0xb1, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8;
+
+        private final Program program;
+        private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+        private final Map<String, Integer> poolIndex = new HashMap<String, Integer>();
+        private int poolCount = 1;
+        private ByteArrayOutputStream code;
+        private int stack, maxStack;
+
+        ClassWriter(Program program) {
+            this.program = program;
+            if(8 + 2*program.names.size() > 255)
+                throw new IllegalArgumentException("Too many variables in shader script");
+        }
+
+        byte[] toByteArray() {
+            int thisClass = classRef("CompiledShader");
+            int superClass = classRef("Shader");
+            byte[] init = constructor();
+            byte[] shader = shaderMethod();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DataOutputStream d = new DataOutputStream(out);
+            try {
+                d.writeInt(0xcafebabe);
+                d.writeShort(0);  // Minor version
+                d.writeShort(52); // Java 8 class file format
+                d.writeShort(poolCount);
+                pool.writeTo(d);
+                d.writeShort(0x0030); // ACC_FINAL | ACC_SUPER
+                d.writeShort(thisClass);
+                d.writeShort(superClass);
+                d.writeShort(0); // Interfaces
+                d.writeShort(0); // Fields
+                d.writeShort(2); // Methods
+                d.write(init);
+                d.write(shader);
+                d.writeShort(0); // Attributes
+            } catch(IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return out.toByteArray();
+        }
+
+        private byte[] constructor() {
+            startCode();
+            op(ALOAD_0, 1);
+            op(INVOKESPECIAL, -1);
+            u2(methodRef("Shader", "<init>", "()V"));
+            op(RETURN, 0);
+            return method(0, "<init>", "()V", 1);
+        }
+
+        private byte[] shaderMethod() {
+            int vars = program.names.size();
+            startCode();
+            for(int i=0; i<vars; i++) {
+                op(DCONST_0, 2);
+                op(DSTORE, -2);
+                u1(local(i));
+            }
+            for(int i=0; i<program.targets.size(); i++) {
+                expression(program.values.get(i));
+                op(DSTORE, -2);
+                u1(local(program.targets.get(i)));
+            }
+            for(int i=0; i<3; i++) {
+                op(ALOAD_1, 1);
+                op(ICONST_0 + i, 1);
+                op(DLOAD, 2);
+                u1(local(i));
+                op(DASTORE, -4);
+            }
+            op(RETURN, 0);
+            return method(0, "shader", "([DDDD)V", 8 + 2*vars);
+        }
+
+        // Locals: this, p, u, v, t, then the variables (doubles take two slots)
+        private static int local(int var) {
+            return 8 + 2*var;
+        }
+
+        private void expression(Node n) {
+            switch(n.op) {
+            case Node.CONST:
+                if(Double.doubleToLongBits(n.value) == 0L) op(DCONST_0, 2);
+                else if(n.value == 1.0) op(DCONST_1, 2);
+                else {
+                    op(LDC2_W, 2);
+                    u2(doubleConstant(n.value));
+                }
+                break;
+            case Node.INPUT:
+                op(DLOAD, 2);
+                u1(2 + 2*n.index);
+                break;
+            case Node.VAR:
+                op(DLOAD, 2);
+                u1(local(n.index));
+                break;
+            case Node.NEG:
+                expression(n.args[0]);
+                op(DNEG, 0);
+                break;
+            case Node.ADD: case Node.SUB: case Node.MUL: case Node.DIV:
+                expression(n.args[0]);
+                expression(n.args[1]);
+                op(n.op == Node.ADD ? DADD : n.op == Node.SUB ? DSUB
+                   : n.op == Node.MUL ? DMUL : DDIV, -2);
+                break;
+            case Node.CALL:
+                if(n.function.extraResults > 0)
+                    op(ALOAD_1, 1);
+                for(Node a : n.args) expression(a);
+                op(INVOKESTATIC, 2 - 2*n.args.length - (n.function.extraResults > 0 ? 1 : 0));
+                u2(methodRef(n.function.owner, n.function.method, n.function.descriptor()));
+                break;
+            case Node.EXTRA:
+                op(ALOAD_1, 1);
+                op(ICONST_0 + n.index, 1);
+                op(DALOAD, 0);
+                break;
+            }
+        }
+
+        private void startCode() {
+            code = new ByteArrayOutputStream();
+            stack = maxStack = 0;
+        }
+
+        // Emit an opcode and keep track of the stack depth
+        private void op(int opcode, int stackChange) {
+            code.write(opcode);
+            stack += stackChange;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        private void u1(int b) {
+            code.write(b);
+        }
+
+        private void u2(int s) {
+            code.write(s >> 8);
+            code.write(s);
+        }
+
+        private byte[] method(int access, String name, String descriptor, int maxLocals) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DataOutputStream d = new DataOutputStream(out);
+            try {
+                d.writeShort(access);
+                d.writeShort(utf8(name));
+                d.writeShort(utf8(descriptor));
+                d.writeShort(1); // One attribute: Code
+                d.writeShort(utf8("Code"));
+                d.writeInt(12 + code.size());
+                d.writeShort(maxStack);
+                d.writeShort(maxLocals);
+                d.writeInt(code.size());
+                code.writeTo(d);
+                d.writeShort(0); // Exception table
+                d.writeShort(0); // Attributes
+            } catch(IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return out.toByteArray();
+        }
+
+        /*
+         * Constant pool entries, each one added only once
+         */
+
+        private int utf8(String s) {
+            Integer i = poolIndex.get("U" + s);
+            if(i != null) return i;
+            try {
+                DataOutputStream d = new DataOutputStream(pool);
+                d.writeByte(1);
+                d.writeUTF(s);
+            } catch(IOException e) {
+                throw new IllegalStateException(e);
+            }
+            poolIndex.put("U" + s, poolCount);
+            return poolCount++;
+        }
+
+        private int classRef(String name) {
+            return entry("C" + name, 7, utf8(name), -1);
+        }
+
+        private int methodRef(String owner, String name, String descriptor) {
+            int c = classRef(owner);
+            int nt = entry("N" + name + descriptor, 12, utf8(name), utf8(descriptor));
+            return entry("M" + owner + "." + name + descriptor, 10, c, nt);
+        }
+
+        private int doubleConstant(double value) {
+            String key = "D" + Double.doubleToRawLongBits(value);
+            Integer i = poolIndex.get(key);
+            if(i != null) return i;
+            try {
+                DataOutputStream d = new DataOutputStream(pool);
+                d.writeByte(6);
+                d.writeDouble(value);
+            } catch(IOException e) {
+                throw new IllegalStateException(e);
+            }
+            poolIndex.put(key, poolCount);
+            poolCount += 2; // Doubles take two constant pool slots
+            return poolCount - 2;
+        }
+
+        private int entry(String key, int tag, int a, int b) {
+            Integer i = poolIndex.get(key);
+            if(i != null) return i;
+            pool.write(tag);
+            pool.write(a >> 8);
+            pool.write(a);
+            if(b >= 0) {
+                pool.write(b >> 8);
+                pool.write(b);
+            }
+            poolIndex.put(key, poolCount);
+            return poolCount++;
+        }
+    }
+}
@@ -0,0 +1,487 @@
+/*
+ * A node-based way to build a shader in Java code, as an alternative to
+ * a shader script. Nodes are created through a ShaderGraph: the inputs
+ * u, v and t, constants, math nodes, noise nodes and colors. build() turns
+ * the graph into an evaluation Plan, which ShaderCompiler compiles to
+ * bytecode like any script.
+ *
+ * The graph is optimized as it is built and planned:
+ *  - Identical subexpressions are computed only once. Nodes are hash-consed,
+ *    so asking for the same operation on the same inputs twice gives the
+ *    same node, and every node with more than one use gets a local variable.
+ *  - Operations on constants are evaluated right away, and trivial ones
+ *    (x+0, x-0, x*1, x/1, -(-x)) are dropped.
+ *  - ImprovedNoise nodes that share a coordinate are evaluated in pairs by
+ *    ImprovedNoise.noise2(), which does the lattice work for the shared
+ *    coordinates only once, and all of the corner hashing only once if
+ *    both points fall in the same cell.
+ *
+ * The Plan estimates the cost per pixel with and without the optimizations,
+ * so it can be reported before anything is rendered. The costs are rough
+ * relative numbers, in units of about one multiplication, not measurements.
+ *
+ * GraphDemoShader builds the DemoShader sunset this way.
+ *
+ */
+
+import java.lang.invoke.*;
+import java.util.*;
+
+class ShaderGraph {
+
+    private static final int CONST = ShaderCompiler.Node.CONST, INPUT = ShaderCompiler.Node.INPUT,
+        NEG = ShaderCompiler.Node.NEG, ADD = ShaderCompiler.Node.ADD, SUB = ShaderCompiler.Node.SUB,
+        MUL = ShaderCompiler.Node.MUL, DIV = ShaderCompiler.Node.DIV, CALL = ShaderCompiler.Node.CALL;
+
+    private static final ShaderCompiler.Function NOISE = ShaderCompiler.lookup("noise", 3);
+    private static final ShaderCompiler.Function NOISE2 =
+        new ShaderCompiler.Function("noise2", "ImprovedNoise", "noise2", 6, 1);
+
+    // A node in the graph. Values are immutable and only created by their ShaderGraph.
+    static final class Value {
+        final int id;        // Creation order, so arguments always have lower ids
+        final int op;        // A ShaderCompiler.Node op: CONST, INPUT, NEG, ADD, SUB, MUL, DIV or CALL
+        final double value;  // For CONST
+        final int index;     // For INPUT
+        final ShaderCompiler.Function function; // For CALL
+        final Value[] args;
+
+        private Value(int id, int op, double value, int index,
+                      ShaderCompiler.Function function, Value[] args) {
+            this.id = id;
+            this.op = op;
+            this.value = value;
+            this.index = index;
+            this.function = function;
+            this.args = args;
+        }
+
+        boolean isConstant(double c) {
+            return op == CONST && value == c;
+        }
+    }
+
+    // A color node is just three values
+    static final class Color {
+        final Value r, g, b;
+
+        Color(Value r, Value g, Value b) {
+            this.r = r;
+            this.g = g;
+            this.b = b;
+        }
+    }
+
+    private final Map<String, Value> nodes = new HashMap<String, Value>();
+    private int nodeCount;
+    private int folded;
+    private double foldedCost;
+    private Color output;
+
+    /*
+     * Inputs and constants
+     */
+
+    Value u() { return node(INPUT, 0.0, 0, null); }
+    Value v() { return node(INPUT, 0.0, 1, null); }
+    Value t() { return node(INPUT, 0.0, 2, null); }
+
+    Value constant(double c) {
+        return node(CONST, c, 0, null);
+    }
+
+    /*
+     * Math nodes
+     */
+
+    Value add(Value a, Value b) {
+        if(a.isConstant(0.0)) return dropped(ADD, b);
+        if(b.isConstant(0.0)) return dropped(ADD, a);
+        return node(ADD, 0.0, 0, null, a, b);
+    }
+
+    Value sub(Value a, Value b) {
+        if(b.isConstant(0.0)) return dropped(SUB, a);
+        if(a.isConstant(0.0)) return neg(b);
+        return node(SUB, 0.0, 0, null, a, b);
+    }
+
+    Value mul(Value a, Value b) {
+        if(a.isConstant(1.0)) return dropped(MUL, b);
+        if(b.isConstant(1.0)) return dropped(MUL, a);
+        return node(MUL, 0.0, 0, null, a, b);
+    }
+
+    Value div(Value a, Value b) {
+        if(b.isConstant(1.0)) return dropped(DIV, a);
+        return node(DIV, 0.0, 0, null, a, b);
+    }
+
+    Value neg(Value a) {
+        if(a.op == NEG) return dropped(NEG, a.args[0]);
+        return node(NEG, 0.0, 0, null, a);
+    }
+
+    Value add(Value a, double b) { return add(a, constant(b)); }
+    Value sub(double a, Value b) { return sub(constant(a), b); }
+    Value sub(Value a, double b) { return sub(a, constant(b)); }
+    Value mul(Value a, double b) { return mul(a, constant(b)); }
+
+    // Any function that shader scripts can call, by its script name
+    Value call(String name, Value... args) {
+        ShaderCompiler.Function f = ShaderCompiler.lookup(name, args.length);
+        if(f == null)
+            throw new IllegalArgumentException("Unknown function " + name + " with " + args.length + " arguments");
+        return node(CALL, 0.0, 0, f, args);
+    }
+
+    Value sin(Value x) { return call("sin", x); }
+    Value cos(Value x) { return call("cos", x); }
+    Value min(Value a, Value b) { return call("min", a, b); }
+    Value max(Value a, Value b) { return call("max", a, b); }
+    Value step(Value edge, Value x) { return call("step", edge, x); }
+    Value mix(Value a, Value b, Value w) { return call("mix", a, b, w); }
+    Value smoothstep(Value e0, Value e1, Value x) { return call("smoothstep", e0, e1, x); }
+
+    /*
+     * Noise nodes
+     */
+
+    Value noise(Value x, Value y, Value z) { return call("noise", x, y, z); }
+    Value simplexNoise(Value x, Value y) { return call("snoise", x, y); }
+    Value simplexNoise(Value x, Value y, Value z) { return call("snoise", x, y, z); }
+    Value simplexNoise(Value x, Value y, Value z, Value w) { return call("snoise", x, y, z, w); }
+    Value perlinSimplexNoise(Value x, Value y, Value z) { return call("psnoise", x, y, z); }
+    Value worley(Value x, Value y, Value z) { return call("worley", x, y, z); }
+
+    /*
+     * Color nodes
+     */
+
+    Color color(Value r, Value g, Value b) { return new Color(r, g, b); }
+
+    Color color(double r, double g, double b) {
+        return new Color(constant(r), constant(g), constant(b));
+    }
+
+    Color add(Color a, Color b) {
+        return new Color(add(a.r, b.r), add(a.g, b.g), add(a.b, b.b));
+    }
+
+    Color mul(Color a, Value s) {
+        return new Color(mul(a.r, s), mul(a.g, s), mul(a.b, s));
+    }
+
+    Color mix(Color a, Color b, Value w) {
+        return new Color(mix(a.r, b.r, w), mix(a.g, b.g, w), mix(a.b, b.b, w));
+    }
+
+    // Set the color that the shader outputs
+    void output(Color c) {
+        output = c;
+    }
+
+    // Plan the evaluation of the output color
+    Plan build() {
+        if(output == null)
+            throw new IllegalStateException("The shader graph has no output");
+        return new Plan(this, output);
+    }
+
+    // Find or create a node. Operations on constants are evaluated here.
+    private Value node(int op, double value, int index, ShaderCompiler.Function f, Value... args) {
+        if(args.length > 0) {
+            boolean constant = true;
+            for(Value a : args) constant &= a.op == CONST;
+            if(constant) {
+                double c = evaluate(op, f, args);
+                folded++;
+                foldedCost += cost(op, f);
+                return constant(c);
+            }
+        }
+        // Commutative operations get their arguments in a fixed order
+        if((op == ADD || op == MUL) && args[0].id > args[1].id)
+            args = new Value[] {args[1], args[0]};
+        StringBuilder key = new StringBuilder().append(op).append(':');
+        if(op == CONST) key.append(Double.doubleToLongBits(value));
+        else if(op == INPUT) key.append(index);
+        else if(op == CALL) key.append(f.name).append('/').append(f.arity);
+        for(Value a : args) key.append(',').append(a.id);
+        Value n = nodes.get(key.toString());
+        if(n == null) {
+            n = new Value(nodeCount++, op, value, index, f, args);
+            nodes.put(key.toString(), n);
+        }
+        return n;
+    }
+
+    // An operation that was left out since it would not change its argument
+    private Value dropped(int op, Value a) {
+        folded++;
+        foldedCost += cost(op, null);
+        return a;
+    }
+
+    private static double evaluate(int op, ShaderCompiler.Function f, Value[] args) {
+        switch(op) {
+        case NEG: return -args[0].value;
+        case ADD: return args[0].value + args[1].value;
+        case SUB: return args[0].value - args[1].value;
+        case MUL: return args[0].value * args[1].value;
+        case DIV: return args[0].value / args[1].value;
+        default:
+            Class<?>[] types = new Class<?>[f.arity];
+            Arrays.fill(types, double.class);
+            Object[] values = new Object[f.arity];
+            for(int i=0; i<f.arity; i++) values[i] = args[i].value;
+            try {
+                MethodHandle m = MethodHandles.lookup().findStatic(Class.forName(f.owner.replace('/', '.')),
+                    f.method, MethodType.methodType(double.class, types));
+                return (Double)m.invokeWithArguments(values);
+            } catch(Throwable e) {
+                throw new IllegalStateException("Could not evaluate " + f.name, e);
+            }
+        }
+    }
+
+    /*
+     * Estimated costs, in units of about one multiplication
+     */
+
+    private static final Map<String, Double> COSTS = new HashMap<String, Double>();
+
+    static {
+        for(String m : new String[] {"abs", "floor", "ceil", "sign", "min", "max", "step", "fract", "clamp"})
+            COSTS.put(m, 2.0);
+        for(String m : new String[] {"sin", "cos", "tan", "exp", "log"})
+            COSTS.put(m, 20.0);
+        for(String m : new String[] {"asin", "acos", "atan", "atan2"})
+            COSTS.put(m, 25.0);
+        COSTS.put("sqrt", 5.0);
+        COSTS.put("mod", 6.0);
+        COSTS.put("mix", 3.0);
+        COSTS.put("smoothstep", 10.0);
+        COSTS.put("pow", 40.0);
+        COSTS.put("noise", 60.0);
+        COSTS.put("noise2", 105.0);
+        COSTS.put("snoise/2", 35.0);
+        COSTS.put("snoise/3", 55.0);
+        COSTS.put("snoise/4", 80.0);
+        COSTS.put("psnoise", 150.0);
+        COSTS.put("worley", 250.0);
+    }
+
+    private static double cost(int op, ShaderCompiler.Function f) {
+        switch(op) {
+        case CONST: case INPUT: return 0.0;
+        case NEG: case ADD: case SUB: case MUL: return 1.0;
+        case DIV: return 4.0;
+        default:
+            Double c = COSTS.get(f.name + "/" + f.arity);
+            if(c == null) c = COSTS.get(f.name);
+            return c != null ? c : 10.0;
+        }
+    }
+
+    private static final Set<String> NOISE_FUNCTIONS =
+        new HashSet<String>(Arrays.asList("noise", "snoise", "psnoise", "worley"));
+
+    private static boolean isNoise(Value n) {
+        return n.op == CALL && NOISE_FUNCTIONS.contains(n.function.name);
+    }
+
+    /*
+     * An evaluation plan: the optimized graph as a ShaderCompiler.Program,
+     * with its estimated cost per pixel
+     */
+    static final class Plan {
+
+        final ShaderCompiler.Program program = new ShaderCompiler.Program();
+        final int nodes;            // Nodes that are evaluated for each pixel
+        final int treeNodes;        // The same, if nothing was shared
+        final int folded;           // Operations removed by constant folding
+        final int fusedPairs;       // Pairs of noise calls evaluated together
+        final double cost;          // Estimated cost per pixel
+        final double unoptimizedCost; // The same, without any of the optimizations
+        private final Map<String, Integer> calls = new TreeMap<String, Integer>();
+        private final Map<Value, Value> pairs = new HashMap<Value, Value>();
+        private final ShaderCompiler.Node[] locals;
+        private final int[] uses;
+        private Shader shader;
+
+        private Plan(ShaderGraph graph, Color out) {
+            Value[] outputs = {out.r, out.g, out.b};
+            locals = new ShaderCompiler.Node[graph.nodeCount];
+            uses = new int[graph.nodeCount];
+            List<Value> live = new ArrayList<Value>();
+            double[] treeCost = new double[graph.nodeCount];
+            int[] treeSize = new int[graph.nodeCount];
+            boolean[] seen = new boolean[graph.nodeCount];
+            int treeNodes = 0;
+            double unoptimizedCost = graph.foldedCost;
+            for(Value o : outputs) {
+                collect(o, live, seen, treeCost, treeSize);
+                uses[o.id]++;
+                treeNodes += treeSize[o.id];
+                unoptimizedCost += treeCost[o.id];
+            }
+            fuseNoise(live);
+
+            double cost = 0.0;
+            int nodes = 0;
+            for(Value n : live) {
+                if(n.op == CONST || n.op == INPUT) continue;
+                nodes++;
+                if(pairs.containsKey(n)) {
+                    // Count the fused call once, for the first of the pair
+                    if(pairs.get(n).id > n.id) {
+                        cost += cost(CALL, NOISE2);
+                        count("noise2");
+                    }
+                }
+                else {
+                    cost += cost(n.op, n.function);
+                    if(n.op == CALL) count(n.function.name);
+                }
+            }
+            for(int i=0; i<3; i++)
+                program.assign(i, expression(outputs[i]));
+
+            this.nodes = nodes;
+            this.treeNodes = treeNodes;
+            this.folded = graph.folded;
+            this.fusedPairs = pairs.size()/2;
+            this.cost = cost;
+            this.unoptimizedCost = unoptimizedCost;
+        }
+
+        // The compiled shader, compiled the first time it is asked for
+        synchronized Shader shader() {
+            if(shader == null)
+                shader = ShaderCompiler.define(program);
+            return shader;
+        }
+
+        // Number of calls to each function per pixel
+        Map<String, Integer> calls() {
+            return Collections.unmodifiableMap(calls);
+        }
+
+        public String toString() {
+            StringBuilder s = new StringBuilder();
+            s.append("Shader graph plan: ").append(nodes).append(" nodes (")
+                .append(treeNodes).append(" without sharing), ")
+                .append(folded).append(" operations folded, ")
+                .append(fusedPairs).append(" fused noise pairs\n");
+            s.append(String.format(Locale.ROOT, "Estimated cost per pixel: %.0f (%.0f unoptimized)",
+                cost, unoptimizedCost));
+            if(!calls.isEmpty()) {
+                s.append("\nCalls per pixel:");
+                for(Map.Entry<String, Integer> e : calls.entrySet())
+                    s.append(' ').append(e.getKey()).append(" x").append(e.getValue());
+            }
+            return s.toString();
+        }
+
+        private void count(String name) {
+            Integer c = calls.get(name);
+            calls.put(name, c == null ? 1 : c + 1);
+        }
+
+        // Find the live nodes in creation order, count the uses of each one,
+        // and the size and cost of each subexpression as a tree
+        private void collect(Value n, List<Value> live, boolean[] seen,
+                             double[] treeCost, int[] treeSize) {
+            if(seen[n.id]) return;
+            seen[n.id] = true;
+            double c = cost(n.op, n.function);
+            int size = n.op == CONST || n.op == INPUT ? 0 : 1;
+            for(Value a : n.args) {
+                collect(a, live, seen, treeCost, treeSize);
+                uses[a.id]++;
+                c += treeCost[a.id];
+                size += treeSize[a.id];
+            }
+            treeCost[n.id] = c;
+            treeSize[n.id] = size;
+            live.add(n);
+        }
+
+        // Pair up ImprovedNoise nodes that have at least one coordinate in common,
+        // the ones with the most coordinates in common first
+        private void fuseNoise(List<Value> live) {
+            List<Value> noise = new ArrayList<Value>();
+            for(Value n : live)
+                if(n.op == CALL && n.function == NOISE) noise.add(n);
+            Collections.sort(noise, new Comparator<Value>() {
+                public int compare(Value a, Value b) { return a.id - b.id; }
+            });
+            for(int shared=3; shared>0; shared--) {
+                for(int i=0; i<noise.size(); i++) {
+                    Value a = noise.get(i);
+                    if(pairs.containsKey(a)) continue;
+                    for(int j=i+1; j<noise.size(); j++) {
+                        Value b = noise.get(j);
+                        if(pairs.containsKey(b) || sharedCoordinates(a, b) != shared) continue;
+                        // b may not need the value of a, a comes first so it can not need b
+                        if(dependsOn(b, a, new HashSet<Value>())) continue;
+                        pairs.put(a, b);
+                        pairs.put(b, a);
+                        break;
+                    }
+                }
+            }
+        }
+
+        private static int sharedCoordinates(Value a, Value b) {
+            int shared = 0;
+            for(int i=0; i<3; i++)
+                if(a.args[i] == b.args[i]) shared++;
+            return shared;
+        }
+
+        private static boolean dependsOn(Value n, Value target, Set<Value> visited) {
+            if(n == target) return true;
+            if(n.id < target.id || !visited.add(n)) return false;
+            for(Value a : n.args)
+                if(dependsOn(a, target, visited)) return true;
+            return false;
+        }
+
+        // The expression for a node. Nodes with more than one use and all noise
+        // calls are assigned to a local variable, everything else is inlined.
+        private ShaderCompiler.Node expression(Value n) {
+            if(n.op == CONST) return ShaderCompiler.Node.constant(n.value);
+            if(n.op == INPUT) return ShaderCompiler.Node.input(n.index);
+            if(locals[n.id] != null) return locals[n.id];
+            Value partner = pairs.get(n);
+            if(partner != null) {
+                // The first of a fused pair to be needed evaluates both of them
+                ShaderCompiler.Node[] args = new ShaderCompiler.Node[6];
+                for(int i=0; i<3; i++) args[i] = expression(n.args[i]);
+                for(int i=0; i<3; i++) args[i+3] = expression(partner.args[i]);
+                locals[n.id] = local(n, ShaderCompiler.Node.call(NOISE2, args));
+                locals[partner.id] = local(partner, ShaderCompiler.Node.extra(0));
+                return locals[n.id];
+            }
+            ShaderCompiler.Node[] args = new ShaderCompiler.Node[n.args.length];
+            for(int i=0; i<args.length; i++) args[i] = expression(n.args[i]);
+            ShaderCompiler.Node e;
+            if(n.op == CALL) e = ShaderCompiler.Node.call(n.function, args);
+            else if(n.op == NEG) e = ShaderCompiler.Node.unary(n.op, args[0]);
+            else e = ShaderCompiler.Node.binary(n.op, args[0], args[1]);
+            if(uses[n.id] > 1 || isNoise(n)) {
+                locals[n.id] = local(n, e);
+                return locals[n.id];
+            }
+            return e;
+        }
+
+        private ShaderCompiler.Node local(Value n, ShaderCompiler.Node e) {
+            int var = program.variable("$" + n.id);
+            program.assign(var, e);
+            return ShaderCompiler.Node.var(var);
+        }
+    }
+}
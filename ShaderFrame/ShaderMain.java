@@ -11,30 +11,256 @@ import javax.swing.*;
 public class ShaderMain {
 
 	// Entry point for the application
-	public static void main(String[] args) {
+	public static void main(String[] args) throws java.io.IOException {
 		
 		// Instantiate a JFrame and set it up.
 		JFrame frame = new JFrame();
 		frame.setTitle("Shader demo");
 		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 
+		// A wall of panels that all show the same shader, e.g. "-wall 16",
+		// rendered by a shared RenderService. The options below are for
+		// the first panel, which gets the highest priority.
+		int wall = 1;
+		for (int i = 0; i + 1 < args.length; i++)
+			if (args[i].equals("-wall"))
+				wall = Math.max(Integer.parseInt(args[i+1]), 1);
+		int columns = (int)Math.ceil(Math.sqrt(wall));
+		int side = wall > 1 ? Math.max(512/columns, 64) : 512;
+
 		// Add the content pane, we use only a single ShaderPanel here
-		ShaderPanel panel = new ShaderPanel(512, 512);
-		frame.add(panel);
+		// unless there is a wall of them
+		ShaderPanel panel = new ShaderPanel(side, side);
+		JPanel grid = new JPanel(new GridLayout(0, columns));
+		grid.add(panel);
+		frame.add(grid);
+
+		// Make the render metrics visible in jconsole and VisualVM
+		panel.getMetrics().register("ShaderMain");
 
 		
 		// Create and associate a Shader with the ShaderPanel
 		panel.myShader = new DemoShader();
 
+		boolean autotune = false, retune = false, similarNoise = false, noiseGiven = false;
+		long warmupMillis = 5000;
+
+		// Optional temporal subsampling, e.g. "-temporal rows 4 0.5"
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-wall")) {
+				i++; // Already done above
+			}
+			else if (args[i].equals("-temporal") && i + 2 < args.length) {
+				String mode = args[++i];
+				int n = Integer.parseInt(args[++i]);
+				double blend = 1.0;
+				if (i + 1 < args.length && !args[i+1].startsWith("-"))
+					blend = Double.parseDouble(args[++i]);
+				if (mode.equals("frames"))
+					panel.setTemporalMode(ShaderPanel.TEMPORAL_FRAMES, n, blend);
+				else if (mode.equals("rows"))
+					panel.setTemporalMode(ShaderPanel.TEMPORAL_ROWS, n, blend);
+				else if (mode.equals("checker"))
+					panel.setTemporalMode(ShaderPanel.TEMPORAL_CHECKER, n, blend);
+				else {
+					System.err.println("Unknown temporal mode \"" + mode
+						+ "\", usage: -temporal frames|rows|checker n [blend]");
+					System.exit(1);
+				}
+			}
+			// A shader script, compiled at runtime and reloaded when it changes
+			else if (args[i].equals("-script") && i + 1 < args.length) {
+				panel.myShader = new ScriptShader(java.nio.file.Paths.get(args[++i]));
+			}
+			// The demo shader built as an optimized shader graph,
+			// with its estimated cost reported before it starts
+			else if (args[i].equals("-graph")) {
+				ShaderGraph.Plan plan = GraphDemoShader.plan();
+				System.out.println(plan);
+				panel.myShader = plan.shader();
+			}
+			// Faster, approximate noise in the demo shader from a baked
+			// noise volume, optionally kept in a file, e.g. "-noise fast noise.vol"
+			else if (args[i].equals("-noise") && i + 1 < args.length) {
+				String tier = args[++i];
+				java.nio.file.Path file = null;
+				if (i + 1 < args.length && !args[i+1].startsWith("-"))
+					file = java.nio.file.Paths.get(args[++i]);
+				int accuracy;
+				if (tier.equals("exact"))
+					accuracy = ShaderMath.EXACT;
+				else if (tier.equals("fast"))
+					accuracy = ShaderMath.FAST;
+				else if (tier.equals("rough"))
+					accuracy = ShaderMath.ROUGH;
+				else {
+					System.err.println("Unknown noise tier \"" + tier
+						+ "\", usage: -noise exact|fast|rough [file]");
+					System.exit(1);
+					return;
+				}
+				DemoShader.noise = NoiseVolume.tier(NoiseVolume.IMPROVED, accuracy, file);
+				noiseGiven = true;
+			}
+			// Warm up for at most this many seconds before the window opens,
+			// e.g. "-warmup 10", or not at all with "-warmup 0"
+			else if (args[i].equals("-warmup") && i + 1 < args.length) {
+				warmupMillis = (long)(Double.parseDouble(args[++i])*1000.0);
+			}
+			// Shade the pixels of each band along a space-filling curve,
+			// "-order morton" or "-order hilbert", instead of row by row
+			else if (args[i].equals("-order") && i + 1 < args.length) {
+				String order = args[++i];
+				if (order.equals("rows"))
+					panel.setTraversalOrder(ShaderPanel.ORDER_ROWS);
+				else if (order.equals("morton"))
+					panel.setTraversalOrder(ShaderPanel.ORDER_MORTON);
+				else if (order.equals("hilbert"))
+					panel.setTraversalOrder(ShaderPanel.ORDER_HILBERT);
+				else {
+					System.err.println("Unknown traversal order \"" + order
+						+ "\", usage: -order rows|morton|hilbert");
+					System.exit(1);
+				}
+			}
+			// Pick the fastest render threads, bands and noise functions on
+			// this machine, from a profile or by measuring them, e.g.
+			// "-autotune", "-autotune force" to measure again, and "similar"
+			// to also try noise with another pattern
+			else if (args[i].equals("-autotune")) {
+				autotune = true;
+				while (i + 1 < args.length && !args[i+1].startsWith("-")) {
+					String option = args[++i];
+					if (option.equals("force")) retune = true;
+					else if (option.equals("similar")) similarNoise = true;
+				}
+			}
+			// Replay a looping animation from a cache of compressed frames,
+			// e.g. "-loop 100 250 64" for a period of 100 time units (10 s)
+			// in 250 frames and at most 64 MB. Then optionally "lru" to evict
+			// the least recently used frames, or a file to keep the frames in.
+			else if (args[i].equals("-loop") && i + 3 < args.length) {
+				Dimension size = panel.getPreferredSize();
+				double period = Double.parseDouble(args[++i]);
+				int frames = Integer.parseInt(args[++i]);
+				long megabytes = Long.parseLong(args[++i]);
+				String option = null;
+				if (i + 1 < args.length && !args[i+1].startsWith("-"))
+					option = args[++i];
+				if (option == null || option.equals("lru"))
+					panel.setLoop(new LoopCache(period, frames, size.width, size.height, megabytes << 20,
+						option == null ? LoopCache.KEEP_FIRST : LoopCache.EVICT_LRU));
+				else
+					panel.setLoop(new LoopCache(period, frames, size.width, size.height, megabytes << 20,
+						panel.myShader.getIdentity(), java.nio.file.Paths.get(option)));
+			}
+			// Shade in high dynamic range, with a bloom around the sun,
+			// tone mapping and optionally a gamma, e.g. "-post 2.2"
+			else if (args[i].equals("-post")) {
+				float gamma = 1.0f;
+				if (i + 1 < args.length && !args[i+1].startsWith("-"))
+					gamma = Float.parseFloat(args[++i]);
+				panel.setPostProcessor(PostProcessor.standard(gamma));
+			}
+			// Show the render metrics on top of the image (H toggles it)
+			else if (args[i].equals("-hud")) {
+				panel.setHudVisible(true);
+			}
+			// Zoomable viewport with a tile cache of the given size, e.g. "-viewport 64"
+			else if (args[i].equals("-viewport") && i + 1 < args.length) {
+				long megabytes = Long.parseLong(args[++i]);
+				panel.setViewport(new Viewport(panel.getPreferredSize().width), new TileCache(megabytes << 20));
+			}
+			// Share the frames with other processes through a memory-mapped
+			// ring of frame buffers, e.g. "-ring frames.ring 4"
+			else if (args[i].equals("-ring") && i + 2 < args.length) {
+				Dimension size = panel.getPreferredSize();
+				String file = args[++i];
+				int slots = Integer.parseInt(args[++i]);
+				panel.addFrameSink(new MappedFrameRing(java.nio.file.Paths.get(file),
+					size.width, size.height, slots));
+			}
+			// Serve the frames as an MJPEG stream over HTTP, e.g. "-preview 8080"
+			else if (args[i].equals("-preview") && i + 1 < args.length) {
+				Dimension size = panel.getPreferredSize();
+				panel.addFrameSink(new PreviewServer(Integer.parseInt(args[++i]), size.width, size.height));
+			}
+			// Stream the frames as YUV4MPEG2 video to a file, or to stdout for "-"
+			else if (args[i].equals("-y4m") && i + 1 < args.length) {
+				Dimension size = panel.getPreferredSize();
+				final Y4MWriter video = Y4MWriter.open(args[++i], size.width, size.height, 25);
+				panel.addFrameSink(video);
+				Runtime.getRuntime().addShutdownHook(new Thread() {
+					public void run() {
+						try {
+							video.close();
+						} catch(java.io.IOException e) {
+							System.err.println("Video output failed: " + e);
+						}
+					}
+				});
+			}
+		}
+
+		Autotuner tuner = null;
+		if (autotune) {
+			tuner = new Autotuner(panel);
+			tuner.setSimilarNoise(similarNoise);
+			if (panel.myShader instanceof DemoShader) {
+				Autotuner.NoiseSlot water = new Autotuner.NoiseSlot() {
+					public void set(NoiseFunction f) { DemoShader.noise = f; }
+				};
+				if (!noiseGiven) { // A baked volume stays
+					tuner.addNoise("water", water, "ImprovedNoise", ImprovedNoise::noise);
+					tuner.addNoise("water", water, "NoiseGenerator.PERLIN", NoiseGenerator.PERLIN::improved);
+				}
+				Autotuner.NoiseSlot sky = new Autotuner.NoiseSlot() {
+					public void set(NoiseFunction f) { DemoShader.skyNoise = f; }
+				};
+				tuner.addNoise("sky", sky, "PerlinSimplexNoise", PerlinSimplexNoise::noise);
+				tuner.addNoise("sky", sky, "SimplexNoise", SimplexNoise::noise);
+				tuner.addNoise("sky", sky, "SLSimplexNoise", SLSimplexNoise::noise);
+				tuner.addNoise("sky", sky, "NoiseGenerator.PERLIN", NoiseGenerator.PERLIN::simplex);
+			}
+			tuner.tune(retune);
+			System.out.println(tuner);
+		}
+
+		// The rest of the wall
+		ShaderPanel[] others = new ShaderPanel[wall - 1];
+		for (int i = 0; i < others.length; i++) {
+			others[i] = new ShaderPanel(side, side);
+			others[i].myShader = panel.myShader;
+			if (tuner != null) tuner.apply(others[i]);
+			grid.add(others[i]);
+		}
 
+		// Render off the screen until the JIT compiler is done and the
+		// frame time is stable, so that the first frames shown don't stutter
+		if (warmupMillis > 0) {
+			boolean stable = panel.warmUp(warmupMillis);
+			RenderMetrics m = panel.getMetrics();
+			System.out.println(String.format(java.util.Locale.ROOT,
+				"Warmup: %.0f ms, %d frames, %s", m.getWarmupMillis(), m.getWarmupFrames(),
+				stable ? "stable " + m.getTimeToStableMillis() + " ms after start" : "not stable yet"));
+		}
 
         // Pack and display the window
 		frame.pack();
 		frame.setVisible(true);
 
-		// Create and start the animation thread
-		Thread animationThread = new Thread(panel);
-		animationThread.start();
+		if (wall > 1) {
+			// All panels share one pool of render threads
+			RenderService service = new RenderService();
+			service.register(panel, RenderService.MAX_PRIORITY);
+			for (ShaderPanel other : others)
+				service.register(other, RenderService.NORM_PRIORITY);
+		}
+		else {
+			// Create and start the animation thread
+			Thread animationThread = new Thread(panel);
+			animationThread.start();
+		}
 	}
 
 }
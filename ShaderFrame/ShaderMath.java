@@ -0,0 +1,231 @@
+/*
+ * Faster replacements for the java.lang.Math functions that shaders use
+ * the most, for when a little less accuracy is fine. Most functions come
+ * in two accuracy tiers below java.lang.Math:
+ *
+ *   ...Fast    errors of a few parts per million
+ *   ...Rough   errors of 1e-3 or less, still well below what shows
+ *              in an 8-bit color channel (1/255)
+ *
+ * The tier can also be chosen at runtime with the EXACT, FAST and ROUGH
+ * constants, where EXACT means java.lang.Math. The error bounds below
+ * were measured with "java Benchmark math", which also times everything
+ * against java.lang.Math. There is no tier between Fast and exact: the
+ * JIT compiler replaces most of the Math functions with hand-tuned
+ * intrinsics, and a polynomial that is as accurate is no faster.
+ *
+ * Some things are faster without any approximation at all: an integer
+ * power is a few multiplications (sq(), powi()) and not a call to
+ * Math.pow(), and Math.sqrt() is already a single instruction.
+ *
+ */
+
+class ShaderMath {
+
+    static final int EXACT = 0, FAST = 1, ROUGH = 2;
+
+    private static final double TWO_PI = 2.0*Math.PI;
+    private static final double LN2 = Math.log(2.0), LOG2E = 1.0/LN2;
+
+
+    // A table of sin() over one period, with an extra entry at the end
+    private static final int SIN_BITS = 10, SIN_SIZE = 1 << SIN_BITS;
+    private static final double SIN_SCALE = SIN_SIZE/TWO_PI;
+    private static final double[] SIN_TABLE = new double[SIN_SIZE + 1];
+
+    static {
+        for(int i=0; i<=SIN_SIZE; i++)
+            SIN_TABLE[i] = Math.sin(i*TWO_PI/SIN_SIZE);
+    }
+
+    /*
+     * Integer powers
+     */
+
+    static double sq(double x) { return x*x; }
+
+    // x to an integer power, by repeated squaring. Exact for n = 2.
+    static double powi(double x, int n) {
+        if(n < 0) return 1.0/powi(x, -n);
+        double r = 1.0;
+        while(n != 0) {
+            if((n & 1) != 0) r *= x;
+            x *= x;
+            n >>>= 1;
+        }
+        return r;
+    }
+
+    /*
+     * sin and cos
+     */
+
+    // Table lookup with linear interpolation.
+    // Absolute error below 5e-6 for |x| < 1e5.
+    static double sinFast(double x) {
+        double i = x*SIN_SCALE;
+        double f = Math.floor(i);
+        int n = (int)((long)f & (SIN_SIZE - 1));
+        double a = SIN_TABLE[n];
+        return a + (i - f)*(SIN_TABLE[n + 1] - a);
+    }
+
+    static double cosFast(double x) {
+        return sinFast(x + 0.5*Math.PI);
+    }
+
+    // A polynomial of degree 7. Absolute error below 2e-4 for |x| < 1e5.
+    static double sinRough(double x) {
+        // Reduce to r in [-pi/2, pi/2], with sin(x) = +-sin(r)
+        double k = Math.rint(x*(1.0/Math.PI));
+        double r = x - k*Math.PI;
+        double r2 = r*r;
+        double s = r*(1.0 + r2*(-1.0/6 + r2*(1.0/120 + r2*(-1.0/5040))));
+        return ((long)k & 1) == 0 ? s : -s;
+    }
+
+    static double cosRough(double x) {
+        return sinRough(x + 0.5*Math.PI);
+    }
+
+    /*
+     * exp, log and pow
+     */
+
+    // Relative error below 4e-6
+    static double expFast(double x) {
+        return exp2(x, 5);
+    }
+
+    // Relative error below 1e-3
+    static double expRough(double x) {
+        return exp2(x, 3);
+    }
+
+    // exp(x) = 2^n * exp(g), with |g| <= ln(2)/2 and exp(g) as a Taylor polynomial
+    private static double exp2(double x, int degree) {
+        if(x > 709.0) return x != x ? x : Double.POSITIVE_INFINITY;
+        if(x < -708.0) return 0.0;
+        double n = Math.rint(x*LOG2E);
+        double g = x - n*LN2;
+        double e = degree == 5
+            ? 1.0 + g*(1.0 + g*(1.0/2 + g*(1.0/6 + g*(1.0/24 + g*(1.0/120)))))
+            : 1.0 + g*(1.0 + g*(1.0/2 + g*(1.0/6)));
+        return e*Double.longBitsToDouble((long)(n + 1023) << 52);
+    }
+
+    // Absolute error below 2e-6 for x > 0. NaN for x < 0.
+    static double logFast(double x) {
+        return logSeries(x, 3);
+    }
+
+    // Absolute error below 7e-5 for x > 0. NaN for x < 0.
+    static double logRough(double x) {
+        return logSeries(x, 2);
+    }
+
+    // log(x) = e*ln(2) + log(m), with x = m*2^e and m in [sqrt(1/2), sqrt(2)).
+    // log(m) = 2*atanh(s) with s = (m-1)/(m+1), as a series in s.
+    private static double logSeries(double x, int terms) {
+        if(!(x >= Double.MIN_NORMAL) || x == Double.POSITIVE_INFINITY)
+            return Math.log(x);
+        long bits = Double.doubleToRawLongBits(x);
+        int e = (int)(bits >>> 52) - 1023;
+        double m = Double.longBitsToDouble((bits & 0x000fffffffffffffL) | 0x3ff0000000000000L);
+        if(m > 1.4142135623730951) {
+            m *= 0.5;
+            e++;
+        }
+        double s = (m - 1.0)/(m + 1.0);
+        double s2 = s*s;
+        double series = terms == 3 ? 1.0 + s2*(1.0/3 + s2*(1.0/5)) : 1.0 + s2*(1.0/3);
+        return e*LN2 + 2.0*s*series;
+    }
+
+    // x^y for x >= 0, like pow() in GLSL.
+    // Relative error below 4e-6*(1 + |y*log(x)|).
+    static double powFast(double x, double y) {
+        if(x == 0.0) return y > 0.0 ? 0.0 : y == 0.0 ? 1.0 : Double.POSITIVE_INFINITY;
+        return expFast(y*logFast(x));
+    }
+
+    // x^y for x >= 0. Relative error below 1e-3*(1 + |y*log(x)|).
+    static double powRough(double x, double y) {
+        if(x == 0.0) return y > 0.0 ? 0.0 : y == 0.0 ? 1.0 : Double.POSITIVE_INFINITY;
+        return expRough(y*logRough(x));
+    }
+
+    /*
+     * sqrt
+     */
+
+    // 1/sqrt(x), from the classic bit trick and two Newton steps.
+    // Relative error below 5e-6 for normal positive x. Use it to normalize
+    // a vector with multiplications instead of a sqrt() and a division.
+    static double invSqrtFast(double x) {
+        double y = invSqrtRough(x);
+        return y*(1.5 - 0.5*x*y*y);
+    }
+
+    // The same with one Newton step. Relative error below 2e-3.
+    static double invSqrtRough(double x) {
+        double y = Double.longBitsToDouble(0x5fe6eb50c7b537a9L - (Double.doubleToRawLongBits(x) >> 1));
+        return y*(1.5 - 0.5*x*y*y);
+    }
+
+    // Math.sqrt() is a hardware instruction and hardly anything is faster,
+    // but x*invSqrtFast(x) may be, where that instruction is slow
+    static double sqrtFast(double x) {
+        return x*invSqrtFast(x);
+    }
+
+    // The length of (x,y), without the care for overflow
+    // that makes Math.hypot() much slower
+    static double length(double x, double y) {
+        return Math.sqrt(x*x + y*y);
+    }
+
+    /*
+     * smoothstep, without the branches of a clamp
+     */
+
+    static double smoothstep(double e0, double e1, double x) {
+        double s = Math.min(Math.max((x - e0)/(e1 - e0), 0.0), 1.0);
+        return s*s*(3.0 - 2.0*s);
+    }
+
+    // The same, with the division done in advance:
+    // invWidth = 1/(e1-e0), which is often a constant
+    static double smoothstepInv(double e0, double invWidth, double x) {
+        double s = Math.min(Math.max((x - e0)*invWidth, 0.0), 1.0);
+        return s*s*(3.0 - 2.0*s);
+    }
+
+    /*
+     * The tier chosen at runtime
+     */
+
+    static double sin(double x, int accuracy) {
+        return accuracy == ROUGH ? sinRough(x) : accuracy == FAST ? sinFast(x) : Math.sin(x);
+    }
+
+    static double cos(double x, int accuracy) {
+        return accuracy == ROUGH ? cosRough(x) : accuracy == FAST ? cosFast(x) : Math.cos(x);
+    }
+
+    static double exp(double x, int accuracy) {
+        return accuracy == ROUGH ? expRough(x) : accuracy == FAST ? expFast(x) : Math.exp(x);
+    }
+
+    static double log(double x, int accuracy) {
+        return accuracy == ROUGH ? logRough(x) : accuracy == FAST ? logFast(x) : Math.log(x);
+    }
+
+    static double pow(double x, double y, int accuracy) {
+        return accuracy == ROUGH ? powRough(x, y) : accuracy == FAST ? powFast(x, y) : Math.pow(x, y);
+    }
+
+    static double sqrt(double x, int accuracy) {
+        return accuracy == EXACT ? Math.sqrt(x) : sqrtFast(x);
+    }
+}
@@ -9,7 +9,11 @@
  */
 
 import java.awt.*;
+import java.awt.event.*;
 import java.awt.image.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
 import javax.swing.*;
 
 public class ShaderPanel extends JPanel implements Runnable {
@@ -26,16 +30,169 @@ public class ShaderPanel extends JPanel implements Runnable {
     private int pixels[];
     private Thread myThread;
     private MemoryImageSource mySource;
-    private Image myImage;
+    private volatile Image myImage; // Drawn without the lock
+
+    // Temporal subsampling. Slow animations don't need every pixel to be
+    // shaded in every frame. TEMPORAL_FRAMES shades a new keyframe spread
+    // out over N frames and crossfades between the two latest keyframes.
+    // TEMPORAL_ROWS and TEMPORAL_CHECKER shade a rotating 1/N subset of the
+    // pixels each frame and keep (or blend towards) older values for the rest.
+    static final int TEMPORAL_OFF = 0;
+    static final int TEMPORAL_FRAMES = 1;
+    static final int TEMPORAL_ROWS = 2;
+    static final int TEMPORAL_CHECKER = 3;
+
+    private int temporalMode = TEMPORAL_OFF;
+    private int temporalN = 1;
+    private int temporalBlend = 256; // Weight of a new sample, 256 means "replace"
+    private int frameNumber;
+    private int keyPrev[], keyCur[], keyNext[]; // Keyframes for TEMPORAL_FRAMES
+    private double keyTime;
+    private int shadedPixels; // Number of shader() calls in the last frame
+
+    // Optional zoomable, pannable view with a cache of rendered tiles.
+    // Temporal subsampling is not used for the viewport, only whole tiles.
+    private Viewport viewport;
+    private TileCache tileCache;
+    private boolean timeFrozen;
+    private double frozenTime;
+
+    // Optional cache for an animation that loops. Each frame is shaded
+    // for a time in the first cycle and replayed from the cache after that.
+    // Like the temporal modes, it is not used for the viewport.
+    private LoopCache loopCache;
+    private int loopFrame = -1;
+
+    // Render on demand. run() only renders a frame when one of its inputs
+    // has changed since the last one: the time (unless the shader is not
+    // animated, or it is the same frame of a loop), the view, the shader,
+    // or the panel itself. While the panel can't be seen, and no frame
+    // sink needs the frames, run() sleeps until it is woken up.
+    private final Object wakeup = new Object();
+    private boolean frameDirty = true;
+    private int unchangedFrames;
+    private double lastTime;
+    private Shader lastShader;
+    private int lastRevision, lastZoom;
+    private long lastX, lastY;
+    private long framesRendered, framesSkipped;
+    private Window window; // For its iconified state
+
+    // Frame times, pixel rates and so on, and an optional overlay that shows them
+    static final int FRAME_PERIOD = 40; // Milliseconds
+    private final RenderMetrics metrics = new RenderMetrics();
+    private volatile boolean hudVisible;
+
+    // Render threads. The image is split into bands of rows which are
+    // rendered in parallel, and each band is handed to the frame sinks
+    // as soon as it is finished, while the pixels are still in the cache.
+    static final int BAND_HEIGHT = 16;
+    private int bandHeight = BAND_HEIGHT; // See Autotuner
+
+    // The order in which the pixels of a band are shaded. ORDER_ROWS goes
+    // along each row. ORDER_MORTON and ORDER_HILBERT cut the band into
+    // square tiles of CURVE_TILE pixels and go through the tiles, and the
+    // pixels in each tile, along a space-filling curve, so that pixels
+    // that are shaded one after the other are close in both u and v. The
+    // bands are at least CURVE_BAND rows then, so that the curve goes
+    // through several rows of tiles and not just along one. The image is
+    // the same in any order. Only used without temporal subsampling, the
+    // viewport has its own tiles. See "java Benchmark order".
+    static final int ORDER_ROWS = 0, ORDER_MORTON = 1, ORDER_HILBERT = 2;
+    static final int CURVE_TILE = 16, CURVE_BAND = 64;
+    private static final int[] MORTON_STEPS = curveSteps(ORDER_MORTON, CURVE_TILE);
+    private static final int[] HILBERT_STEPS = curveSteps(ORDER_HILBERT, CURVE_TILE);
+    private int traversalOrder = ORDER_ROWS;
+    private int renderThreads = Runtime.getRuntime().availableProcessors();
+    private ExecutorService renderPool;
+    private int renderThreadCount;
+    private final List<FrameSink> sinks = new CopyOnWriteArrayList<FrameSink>();
+
+    // Optional post-processing. The colors are shaded to a float buffer
+    // in high dynamic range, and the post-processor turns them into the
+    // pixels when all bands are done. Not used for the viewport and
+    // TEMPORAL_FRAMES, which work on packed pixels.
+    private PostProcessor postProcessor;
+    private float[] hdr;
+
+    // Or a RenderService that renders the bands of many panels on one
+    // pool of threads, instead of run() and the panel's own threads
+    volatile RenderService service;
+    private boolean frameInFlight;
+
+    // Live resizing. The panel follows the size of the component, but a
+    // new size only takes effect when the next frame starts, so a storm of
+    // resize events while a window is dragged ends up as a single resize to
+    // the last size. The frame in progress is cancelled when the size
+    // changes: the bands stop shading at the next row, the frame is not
+    // shown, and the frame sinks drop it. The buffers come from a
+    // BufferPool, and all but the pixels of the shown image go back to it.
+    private volatile long requestedSize; // Width in the high half, height in the low, 0 for none
+    private volatile boolean frameCancelled;
+    private BufferPool bufferPool = BufferPool.SHARED;
+    private long framesCancelled, resizes;
+
+    // Per-frame state, set up by render() before the bands are rendered
+    private static final int VIEWPORT = -1;
+    private static final String[] MODE_NAMES = {"off", "frames", "rows", "checker"};
+    private int frameMode, framePhase;
+    private double frameTime;
+    private String frameShader; // The identity of the shader for this frame
+    private boolean firstKey, frameReplayed;
+    private long frameStart;
+    private RenderEvents.Frame frameEvent;
+    private float[] frameHdr; // The float buffer, if this frame is post-processed
+    private int vpZoom;
+    private long vpX, vpY;
+    private double vpScale;
     
 	// Constructor: Set up the back buffer image and the pixel data source
     ShaderPanel(int w, int h) {
     	super(); // Create the JPanel
         width = w;
         height = h;
+        startTime = System.currentTimeMillis(); // And again in run()
         setPreferredSize(new Dimension(width, height));
-        // Create a large array for the RGB pixel data
-        pixels = new int[width*height];
+        createImage();
+        // Wake up the render loop when the panel is shown, hidden or resized
+        final WindowStateListener windowState = new WindowStateListener() {
+            public void windowStateChanged(WindowEvent e) {
+                invalidateFrame();
+            }
+        };
+        addHierarchyListener(new HierarchyListener() {
+            public void hierarchyChanged(HierarchyEvent e) {
+                Window w = SwingUtilities.getWindowAncestor(ShaderPanel.this);
+                if(w != window) {
+                    if(window != null) window.removeWindowStateListener(windowState);
+                    if(w != null) w.addWindowStateListener(windowState);
+                    window = w;
+                }
+                invalidateFrame();
+            }
+        });
+        addComponentListener(new ComponentAdapter() {
+            public void componentResized(ComponentEvent e) { requestSize(getWidth(), getHeight()); }
+            public void componentShown(ComponentEvent e) { invalidateFrame(); }
+        });
+        getInputMap(WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke("H"), "hud");
+        getActionMap().put("hud", new AbstractAction() {
+            public void actionPerformed(ActionEvent e) {
+                setHudVisible(!isHudVisible());
+            }
+        });
+    }
+
+	// If no size is given, create 512x512 pixel panel
+    ShaderPanel() {
+    	this(512, 512);
+    }
+
+    // Set up the pixel array and the image for the current size
+    private void createImage() {
+        // Create a large array for the RGB pixel data. It may be longer than
+        // width*height, since it comes from the buffer pool.
+        pixels = bufferPool.ints(width*height);
         for (int i = 0; i < width*height; i++)
             pixels[i]=0xff000000;  // Fill with opaque black (A=1, R=G=B=0)
         // Create an ImageSource, to make an Image out of the pixel data
@@ -46,9 +203,52 @@ public class ShaderPanel extends JPanel implements Runnable {
         myImage = createImage(mySource);
     }
 
-	// If no size is given, create 512x512 pixel panel
-    ShaderPanel() {
-    	this(512, 512);
+    // Render at a new size from the next frame on, and cancel the frame in
+    // progress. Only the last size asked for before the next frame is used.
+    void requestSize(int w, int h) {
+        if(w <= 0 || h <= 0) return; // Not laid out yet
+        requestedSize = (long)w << 32 | h;
+        if(w != width || h != height) frameCancelled = true;
+        invalidateFrame();
+    }
+
+    // Switch to the requested size, if it differs from the current one.
+    // Called at the start of a frame, when no bands are being rendered.
+    private void applyRequestedSize() {
+        frameCancelled = false; // Before the size is read, so that a newer request cancels this frame
+        long size = requestedSize;
+        if(size == 0) return;
+        int w = (int)(size >>> 32), h = (int)size;
+        if(w == width && h == height) return;
+        Image oldImage = myImage;
+        width = w;
+        height = h;
+        createImage();
+        // The old pixels are not given back to the pool: the event thread
+        // may still be painting the old image from them, and another panel
+        // could take them and write over them. They go with the old image.
+        if(oldImage != null) oldImage.flush();
+        if(hdr != null) {
+            bufferPool.release(hdr);
+            hdr = bufferPool.floats(3*width*height);
+            Arrays.fill(hdr, 0, 3*width*height, 0.0f);
+        }
+        // Start the keyframes over
+        bufferPool.release(keyPrev);
+        bufferPool.release(keyCur);
+        bufferPool.release(keyNext);
+        keyPrev = keyCur = keyNext = null;
+        resizes++;
+    }
+
+    // The number of frames that were cancelled by a resize, and the
+    // number of times the size has changed
+    synchronized long getFramesCancelled() { return framesCancelled; }
+    synchronized long getResizes() { return resizes; }
+
+    // Take the pixel buffers from this pool from the next resize on
+    synchronized void setBufferPool(BufferPool pool) {
+        bufferPool = pool;
     }
 
     // Convert an RGB color vector (in a double[3] array) to a 32-bit integer.
@@ -74,45 +274,982 @@ public class ShaderPanel extends JPanel implements Runnable {
 
     // Update the image in a continuous loop, in a separate thread
     public void run() {
+		bakeLoop(); // Shade the whole cycle first, if there is one
 		startTime = System.currentTimeMillis();
     	while(true) { // Loop forever (until program exits)
-	    	render(); // Compute a new procedural image
+			long start = System.nanoTime();
+	    	boolean rendered = renderIfChanged(); // Compute a new procedural image, if needed
+			long elapsed = (System.nanoTime() - start)/1000000;
+			if(rendered && elapsed > FRAME_PERIOD) metrics.dropped(); // Too slow for the frame rate
+			if(!rendered && hudVisible) repaint();
 			try {
-    		Thread.sleep(40); // Delay and leave some power for other programs
+    		// Wait for the rest of the frame period, and leave some power for other programs
+    		waitForFrame(Math.max(FRAME_PERIOD - elapsed, 1));
 			} catch(InterruptedException e) {};
     	}
     }
 
+    // Render a frame if any of its inputs have changed since the last one.
+    // Returns false, and counts a skipped frame, if nothing has changed.
+    boolean renderIfChanged() {
+        synchronized(this) {
+            if(!inputsChanged()) {
+                framesSkipped++;
+                metrics.skipped();
+                return false;
+            }
+        }
+        render();
+        return true;
+    }
+
+    // Make the next frame render, whether anything has changed or not,
+    // and wake up the render loop to do it
+    void invalidateFrame() {
+        synchronized(this) {
+            frameDirty = true;
+        }
+        synchronized(wakeup) {
+            wakeup.notifyAll();
+        }
+        RenderService s = service;
+        if(s != null) s.wake(this);
+    }
+
+    // Wait the given time for the next frame, or until woken up
+    // if the frames would not be seen or used anyway
+    private void waitForFrame(long millis) throws InterruptedException {
+        synchronized(wakeup) {
+            if(isHidden() && sinks.isEmpty())
+                wakeup.wait();
+            else
+                wakeup.wait(millis);
+        }
+    }
+
+    // True if the panel is not on the screen, or its window is iconified
+    private boolean isHidden() {
+        if(!isShowing()) return true;
+        Window w = window;
+        return w instanceof Frame && (((Frame)w).getExtendedState() & Frame.ICONIFIED) != 0;
+    }
+
+    // Compare the inputs of the next frame with those of the last one
+    private boolean inputsChanged() {
+        Shader shader = myShader;
+        double t = 0.0; // Any time will do for a shader that is not animated
+        if(shader.isAnimated()) {
+            t = currentTime();
+            if(viewport == null && loopFits()) t = loopCache.frameIndex(t);
+        }
+        int zoom = 0;
+        long x = 0, y = 0;
+        if(viewport != null) {
+            synchronized(viewport) {
+                zoom = viewport.getZoom();
+                x = viewport.getOriginX();
+                y = viewport.getOriginY();
+            }
+        }
+        boolean changed = frameDirty || t != lastTime || shader != lastShader
+            || shader.getRevision() != lastRevision || zoom != lastZoom || x != lastX || y != lastY;
+        frameDirty = false;
+        lastTime = t;
+        lastShader = shader;
+        lastRevision = shader.getRevision();
+        lastZoom = zoom;
+        lastX = x;
+        lastY = y;
+        unchangedFrames = changed ? 0 : unchangedFrames + 1;
+        // The temporal modes need a few more frames to finish the image
+        int settle = temporalMode == TEMPORAL_OFF || viewport != null || loopFits()
+            ? 0 : 2*temporalN;
+        return unchangedFrames <= settle;
+    }
+
+    // The number of frames that run() has rendered, and skipped
+    // because nothing had changed
+    synchronized long getFramesRendered() { return framesRendered; }
+    synchronized long getFramesSkipped() { return framesSkipped; }
+
+    RenderMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Show the render metrics on top of the image. H toggles it.
+    void setHudVisible(boolean visible) {
+        hudVisible = visible;
+        repaint();
+    }
+
+    boolean isHudVisible() {
+        return hudVisible;
+    }
+
+    // Choose a temporal subsampling mode. Only 1/n of the pixels are shaded
+    // for each displayed frame. The blend factor (0..1] is the weight of a
+    // newly shaded pixel against its old value in the ROWS and CHECKER modes,
+    // where 1.0 replaces it and smaller values smooth it out over time.
+    synchronized void setTemporalMode(int mode, int n, double blend) {
+        awaitFrame();
+        if(n <= 1) mode = TEMPORAL_OFF;
+        temporalMode = mode;
+        temporalN = Math.max(n, 1);
+        temporalBlend = (int)(Math.min(Math.max(blend, 1.0/256.0), 1.0)*256.0);
+        bufferPool.release(keyPrev);
+        bufferPool.release(keyCur);
+        bufferPool.release(keyNext);
+        keyPrev = keyCur = keyNext = null;
+        frameDirty = true;
+    }
+
+    synchronized int getTemporalMode() {
+        return temporalMode;
+    }
+
+    synchronized int getTemporalN() {
+        return temporalN;
+    }
+
+    // Show a zoomable, pannable view of the (u,v) plane instead of the fixed
+    // [0,1) square. Drag with the mouse to pan and use the wheel to zoom.
+    // SPACE freezes the animation, so that tiles can be reused from the
+    // cache while panning, and HOME goes back to the initial view.
+    synchronized void setViewport(Viewport vp, TileCache cache) {
+        awaitFrame();
+        if(viewport == null && vp != null) {
+            MouseAdapter mouse = new MouseAdapter() {
+                int lastX, lastY;
+                public void mousePressed(MouseEvent e) {
+                    lastX = e.getX();
+                    lastY = e.getY();
+                }
+                public void mouseDragged(MouseEvent e) {
+                    Viewport v = viewport;
+                    if(v != null) v.pan(e.getX()-lastX, e.getY()-lastY);
+                    lastX = e.getX();
+                    lastY = e.getY();
+                }
+                public void mouseWheelMoved(MouseWheelEvent e) {
+                    Viewport v = viewport;
+                    if(v != null) v.zoom(-e.getWheelRotation(), e.getX(), e.getY());
+                }
+            };
+            addMouseListener(mouse);
+            addMouseMotionListener(mouse);
+            addMouseWheelListener(mouse);
+            getInputMap(WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke("SPACE"), "freeze");
+            getActionMap().put("freeze", new AbstractAction() {
+                public void actionPerformed(ActionEvent e) {
+                    setTimeFrozen(!isTimeFrozen());
+                }
+            });
+            getInputMap(WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke("HOME"), "reset");
+            getActionMap().put("reset", new AbstractAction() {
+                public void actionPerformed(ActionEvent e) {
+                    Viewport v = viewport;
+                    if(v != null) v.reset();
+                }
+            });
+        }
+        viewport = vp;
+        tileCache = cache;
+        frameDirty = true;
+    }
+
+    TileCache getTileCache() {
+        return tileCache;
+    }
+
+    // Replay a looping animation from a cache of its frames, or go back
+    // to shading every frame with null
+    synchronized void setLoop(LoopCache cache) {
+        awaitFrame();
+        if(cache != null && (cache.width != width || cache.height != height))
+            throw new IllegalArgumentException("The loop cache is for " + cache.width + "x"
+                + cache.height + " frames, not " + width + "x" + height);
+        loopCache = cache;
+        if(cache != null) cache.setShader(myShader.getIdentity());
+        frameDirty = true;
+    }
+
+    // The loop cache is only used while the panel has the size of its frames
+    private boolean loopFits() {
+        return loopCache != null && loopCache.width == width && loopCache.height == height;
+    }
+
+    LoopCache getLoopCache() {
+        return loopCache;
+    }
+
+    // Post-process every frame, or go back to plain pixels with null
+    synchronized void setPostProcessor(PostProcessor post) {
+        awaitFrame();
+        postProcessor = post;
+        bufferPool.release(hdr);
+        hdr = null;
+        if(post != null) {
+            hdr = bufferPool.floats(3*width*height);
+            Arrays.fill(hdr, 0, 3*width*height, 0.0f);
+        }
+        frameDirty = true;
+    }
+
+    PostProcessor getPostProcessor() {
+        return postProcessor;
+    }
+
+    // Shade the frames of the loop that are not in the cache yet, in
+    // parallel, with a whole frame for each task. Every frame is shown
+    // when it is done. This stops early if the cache runs out of room,
+    // or if the panel is to change its size, and the loop cache no
+    // longer fits. A frame that was not shaded all the way is not kept.
+    void bakeLoop() {
+        final LoopCache cache;
+        final PostProcessor post;
+        final Shader shader;
+        final String identity;
+        final int w, h;
+        ExecutorService pool;
+        synchronized(this) {
+            if(!loopFits()) return;
+            cache = loopCache;
+            post = postProcessor;
+            shader = myShader;
+            identity = shader.getIdentity();
+            cache.setShader(identity);
+            w = width;
+            h = height;
+            pool = renderPool();
+        }
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for(int i=0; i<cache.frames; i++) {
+            if(cache.contains(i)) continue;
+            final int frame = i;
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    if(cache.isFull() || sizeRequested(w, h)) return null;
+                    int[] dst = new int[w*h];
+                    float[] floats = post != null ? new float[3*w*h] : null;
+                    if(!bakeFrame(shader, dst, floats, w, h, cache.frameTime(frame))) return null;
+                    if(post != null) post.process(floats, dst, w, h, null);
+                    cache.put(frame, dst, identity);
+                    MemoryImageSource source = null;
+                    synchronized(ShaderPanel.this) {
+                        if(width == w && height == h) {
+                            System.arraycopy(dst, 0, pixels, 0, w*h);
+                            source = mySource;
+                        }
+                    }
+                    if(source != null) {
+                        source.newPixels(0,0,w,h);
+                        repaint();
+                    }
+                    return null;
+                }
+            });
+        }
+        try {
+            for(Future<Void> f : pool.invokeAll(tasks))
+                f.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch(ExecutionException e) {
+            throw new RuntimeException("Rendering failed", e.getCause());
+        }
+    }
+
+    // Shade a whole w*h frame of the loop for the time t, into dst[], or
+    // into floats[] as float colors (3 per pixel) if it is not null, like
+    // shadeRow() does for a frame. Returns false if a new size was asked
+    // for before it was done.
+    private boolean bakeFrame(Shader shader, int[] dst, float[] floats, int w, int h, double t) {
+        double[] pixelcolor = {0.0, 0.0, 0.0};
+        for(int y=0; y<h; y++) {
+            if(sizeRequested(w, h)) return false;
+            double v = (double)y/h;
+            for(int x=0; x<w; x++) {
+                shader.shader(pixelcolor, (double)x/w, v, t);
+                int i = y*w + x;
+                if(floats != null) {
+                    floats[3*i] = (float)pixelcolor[0];
+                    floats[3*i+1] = (float)pixelcolor[1];
+                    floats[3*i+2] = (float)pixelcolor[2];
+                }
+                else
+                    dst[i] = packRGB(pixelcolor);
+            }
+        }
+        return true;
+    }
+
+    // True if the panel has been asked to render at a size other than w*h
+    private boolean sizeRequested(int w, int h) {
+        long size = requestedSize;
+        return size != 0 && size != ((long)w << 32 | h);
+    }
+
+    // Render frames off the screen, with the shader and the settings of
+    // this panel, until the frame time is stable or maxMillis have passed.
+    // The first frames are slow while the JIT compiler is still at work on
+    // the shader, the noise and the render code, so this is best done
+    // before the panel is shown. The frames go to an off-screen copy of the
+    // panel, and not to this one, its frame sinks or its metrics, except for
+    // the result. The frame time is stable when the last WARMUP_WINDOW frames
+    // are all within WARMUP_SPREAD of their median, and that median is
+    // no more than WARMUP_SPREAD/3 faster than the one of the window before.
+    // Returns true if it got stable in time.
+    static final int WARMUP_WINDOW = 8;
+    static final double WARMUP_SPREAD = 0.15;
+
+    boolean warmUp(long maxMillis) {
+        OffscreenRender twin = offscreen();
+        long start = System.nanoTime();
+        List<Long> times = new ArrayList<Long>();
+        boolean stable = false;
+        try {
+            while(!stable && System.nanoTime() - start < maxMillis*1000000L) {
+                times.add(twin.frame());
+                int n = times.size();
+                if(n >= 2*WARMUP_WINDOW) {
+                    double last = median(times.subList(n - WARMUP_WINDOW, n));
+                    double before = median(times.subList(n - 2*WARMUP_WINDOW, n - WARMUP_WINDOW));
+                    stable = before <= last*(1.0 + WARMUP_SPREAD/3);
+                    for(long t : times.subList(n - WARMUP_WINDOW, n))
+                        if(Math.abs(t - last) > WARMUP_SPREAD*last) stable = false;
+                }
+            }
+        } finally {
+            twin.close();
+        }
+        metrics.warmup(System.nanoTime() - start, times.size(), stable);
+        return stable;
+    }
+
+    // An off-screen copy of this panel, with its size, shader and render
+    // settings, but none of its sinks, caches or metrics
+    synchronized OffscreenRender offscreen() {
+        OffscreenRender render = new OffscreenRender(width, height, myShader);
+        ShaderPanel twin = render.panel();
+        twin.bufferPool = bufferPool;
+        twin.renderThreads = renderThreads;
+        twin.bandHeight = bandHeight;
+        twin.traversalOrder = traversalOrder;
+        twin.temporalMode = temporalMode;
+        twin.temporalN = temporalN;
+        twin.temporalBlend = temporalBlend;
+        if(postProcessor != null) twin.setPostProcessor(postProcessor);
+        return render;
+    }
+
+    // Give all buffers back to the pool and let the render threads go,
+    // for a panel that will not be rendered or shown again
+    synchronized void release() {
+        awaitFrame();
+        if(renderPool != null) {
+            renderPool.shutdown();
+            renderPool = null;
+        }
+        bufferPool.release(pixels);
+        bufferPool.release(hdr);
+        bufferPool.release(keyPrev);
+        bufferPool.release(keyCur);
+        bufferPool.release(keyNext);
+        pixels = keyPrev = keyCur = keyNext = null;
+        hdr = null;
+    }
+
+    private static double median(List<Long> times) {
+        List<Long> sorted = new ArrayList<Long>(times);
+        Collections.sort(sorted);
+        return sorted.get(sorted.size()/2);
+    }
+
+    // Stop or restart the animation clock. A frozen image can be rendered
+    // again from cached tiles without any shading.
+    synchronized void setTimeFrozen(boolean frozen) {
+        if(frozen == timeFrozen) return;
+        if(frozen)
+            frozenTime = currentTime();
+        else // Continue from where we stopped
+            startTime = System.currentTimeMillis() - (long)(frozenTime*100.0);
+        timeFrozen = frozen;
+    }
+
+    synchronized boolean isTimeFrozen() {
+        return timeFrozen;
+    }
+
+    // The animation time for the current frame
+    private double currentTime() {
+        if(timeFrozen) return frozenTime;
+        return (double)(System.currentTimeMillis()-startTime)/100.0;
+    }
+
+    // The number of pixels that were actually shaded in the last frame
+    int getShadedPixels() {
+        return shadedPixels;
+    }
+
+    // Set the number of threads used to render each frame
+    synchronized void setRenderThreads(int n) {
+        renderThreads = Math.max(n, 1);
+        if(renderPool != null) {
+            renderPool.shutdown();
+            renderPool = null;
+        }
+    }
+
+    // Set the number of rows in each band of a frame that is rendered
+    // by one thread. The viewport has bands of tile rows instead.
+    synchronized void setBandHeight(int rows) {
+        awaitFrame();
+        bandHeight = Math.max(rows, 1);
+    }
+
+    synchronized int getBandHeight() {
+        return bandHeight;
+    }
+
+    // The rows in each band of a full frame, which are more than the band
+    // height for a curve order
+    synchronized int getFrameBandHeight() {
+        return traversalOrder != ORDER_ROWS && temporalMode == TEMPORAL_OFF
+            ? Math.max(bandHeight, CURVE_BAND) : bandHeight;
+    }
+
+    // Shade the pixels of each band in ORDER_ROWS, ORDER_MORTON or ORDER_HILBERT
+    synchronized void setTraversalOrder(int order) {
+        if(order < ORDER_ROWS || order > ORDER_HILBERT)
+            throw new IllegalArgumentException("Bad traversal order: " + order);
+        awaitFrame();
+        traversalOrder = order;
+    }
+
+    synchronized int getTraversalOrder() {
+        return traversalOrder;
+    }
+
+    synchronized int getRenderThreads() {
+        return renderThreads;
+    }
+
+    // Frame sinks receive every rendered frame, band by band
+    void addFrameSink(FrameSink sink) {
+        sinks.add(sink);
+    }
+
+    void removeFrameSink(FrameSink sink) {
+        sinks.remove(sink);
+    }
+
     // Render the pixels for the image
     void render()
     {
-        double[] pixelcolor = {0.0, 0.0, 0.0};
-        double u, v, t;
+        MemoryImageSource source;
+        int w, h;
+        synchronized(this) {
+            awaitFrame();
+            final List<int[]> bands = beginFrame();
+            int count = 0;
+            if(renderThreads <= 1 || bands.size() <= 1) {
+                for(int[] band : bands)
+                    count += renderBand(band[0], band[1]);
+            }
+            else {
+                List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>(bands.size());
+                for(final int[] band : bands)
+                    tasks.add(new Callable<Integer>() {
+                        public Integer call() {
+                            return renderBand(band[0], band[1]);
+                        }
+                    });
+                try {
+                    for(Future<Integer> f : renderPool().invokeAll(tasks))
+                        count += f.get();
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch(ExecutionException e) {
+                    throw new RuntimeException("Rendering failed", e.getCause());
+                }
+            }
+            if(!endFrame(count, renderThreads > 1 ? renderPool() : null)) return;
+            source = mySource;
+            w = width;
+            h = height;
+        }
+            // Mark the entire image as newly updated, and repaint
+       	    source.newPixels(0,0,w,h);
+           	repaint();
+    }
+
+    // Start a frame for a RenderService, if anything has changed since the
+    // last one and it would be seen. Returns the bands to render with
+    // renderBand(), none if the frame was replayed from the loop cache, or
+    // null if there is no frame to render. finishFrame() must follow.
+    synchronized List<int[]> startFrame() {
+        if(isHidden() && sinks.isEmpty()) return null;
+        if(!inputsChanged()) {
+            framesSkipped++;
+            metrics.skipped();
+            return null;
+        }
+        List<int[]> bands = beginFrame();
+        frameInFlight = true;
+        return bands;
+    }
+
+    // The bands of a frame from startFrame() are all done
+    void finishFrame(int count) {
+        MemoryImageSource source;
+        int w, h;
+        synchronized(this) {
+            try {
+                if(!endFrame(count, null)) return;
+            } finally {
+                frameInFlight = false;
+                notifyAll();
+            }
+            source = mySource;
+            w = width;
+            h = height;
+        }
+        source.newPixels(0, 0, w, h);
+        repaint();
+    }
+
+    // Wait until a frame that a RenderService is rendering is done,
+    // before anything it depends on is changed
+    private synchronized void awaitFrame() {
+        boolean interrupted = false;
+        while(frameInFlight) {
+            try {
+                wait();
+            } catch(InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted) Thread.currentThread().interrupt();
+    }
+
+    // Set up a frame and hand it to the frame sinks. Returns its bands,
+    // or none if it was replayed from the loop cache.
+    private List<int[]> beginFrame() {
+        frameEvent = new RenderEvents.Frame();
+        frameEvent.begin();
+        frameStart = System.nanoTime();
+        applyRequestedSize();
+        setupFrame();
+        for(FrameSink sink : sinks)
+            sink.beginFrame(width, height, frameTime);
+        frameReplayed = loopFrame >= 0 && loopCache.get(loopFrame, pixels);
+        if(frameReplayed) {
+            // Replayed, so the sinks get the whole frame at once
+            for(FrameSink sink : sinks)
+                sink.rows(pixels, width, 0, height);
+            return Collections.emptyList();
+        }
+        return frameBands();
+    }
+
+    // All bands of the frame are done. The post-processing, if any,
+    // runs on the pool, or in this thread if it is null. Returns false
+    // if the frame was cancelled, and should not be shown.
+    private boolean endFrame(int count, ExecutorService pool) {
+        if(frameCancelled) {
+            // Half done, and for the old size. The next frame will be at the new one.
+            for(FrameSink sink : sinks)
+                sink.cancelFrame();
+            framesCancelled++;
+            frameDirty = true;
+            return false;
+        }
+        if(frameHdr != null && count > 0) {
+            postProcessor.process(frameHdr, pixels, width, height, pool);
+            for(FrameSink sink : sinks)
+                sink.rows(pixels, width, 0, height);
+        }
+        if(loopFrame >= 0 && count > 0)
+            loopCache.put(loopFrame, pixels, frameShader);
+        for(FrameSink sink : sinks)
+            sink.endFrame();
+        frameNumber++;
+        framesRendered++;
+        shadedPixels = count;
+        metrics.frame(System.nanoTime() - frameStart, count);
+        RenderEvents.Frame event = frameEvent;
+        event.end();
+        if(event.shouldCommit()) {
+            event.frame = frameNumber - 1;
+            event.time = frameTime;
+            event.mode = frameMode == VIEWPORT ? "viewport" : MODE_NAMES[frameMode];
+            event.width = width;
+            event.height = height;
+            event.pixels = count;
+            event.replayed = frameReplayed;
+            event.commit();
+        }
+        return true;
+    }
+
+    private ExecutorService renderPool() {
+        if(renderPool == null) {
+            renderPool = Executors.newFixedThreadPool(renderThreads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "ShaderPanel render " + (++renderThreadCount));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return renderPool;
+    }
+
+    // Decide what to do in this frame, before any rendering starts
+    private void setupFrame() {
         // Get the current time in seconds
-		t = (double)(System.currentTimeMillis()-startTime)/100.0;
-
-        for(int y=0; y<height; y++)
-            {
-                for(int x = 0; x<width; x++)
-                    {
-                    	u = (double)x/width;
-                    	v = (double)y/height;
-                        // Render one pixel by invoking myShader.shader()
+        frameTime = currentTime();
+        frameShader = myShader.getIdentity();
+        frameMode = viewport != null ? VIEWPORT : temporalMode;
+        framePhase = frameNumber % temporalN;
+        firstKey = false;
+        loopFrame = -1;
+        if(frameMode != VIEWPORT && loopFits()) {
+            // The nearest frame of the loop, shaded for its own time
+            loopCache.setShader(frameShader); // Drops the frames of an older version
+            loopFrame = loopCache.frameIndex(frameTime);
+            frameTime = loopCache.frameTime(loopFrame);
+            frameMode = TEMPORAL_OFF;
+        }
+        frameHdr = frameMode == TEMPORAL_FRAMES || frameMode == VIEWPORT ? null : hdr;
+        if(frameMode == TEMPORAL_FRAMES) {
+            if(keyCur == null) {
+                // Start out with a complete keyframe, shaded all at once
+                keyPrev = bufferPool.ints(width*height);
+                keyCur = bufferPool.ints(width*height);
+                keyNext = bufferPool.ints(width*height);
+                firstKey = true;
+                keyTime = frameTime;
+                framePhase = 0;
+                frameNumber = 0;
+            }
+            else if(framePhase == 0) {
+                // The next keyframe is complete, so move everything one step
+                int[] tmp = keyPrev;
+                keyPrev = keyCur;
+                keyCur = keyNext;
+                keyNext = tmp;
+                keyTime = frameTime;
+            }
+        }
+        else if(frameMode == VIEWPORT) {
+            synchronized(viewport) {
+                vpZoom = viewport.getZoom();
+                vpX = viewport.getOriginX();
+                vpY = viewport.getOriginY();
+            }
+            vpScale = viewport.pixelsPerUnit(vpZoom);
+        }
+    }
+
+    // Split the image into bands of rows. For the viewport,
+    // the bands follow the tile rows.
+    private List<int[]> frameBands() {
+        List<int[]> bands = new ArrayList<int[]>();
+        int y1;
+        for(int y0 = 0; y0 < height; y0 = y1) {
+            if(frameMode == VIEWPORT)
+                y1 = y0 + Viewport.TILE_SIZE - (int)Math.floorMod(vpY + y0, (long)Viewport.TILE_SIZE);
+            else
+                y1 = y0 + getFrameBandHeight();
+            y1 = Math.min(y1, height);
+            bands.add(new int[] {y0, y1});
+        }
+        return bands;
+    }
+
+    // Render the rows y0 to y1-1 of the current frame.
+    // Returns the number of pixels that were shaded.
+    int renderBand(int y0, int y1) {
+        if(!NoiseStats.ENABLED) return shadeBand(y0, y1);
+        // Count the noise calls of the band as this panel's
+        NoiseStats outer = NoiseStats.enter(metrics.getNoiseStats());
+        try {
+            return shadeBand(y0, y1);
+        } finally {
+            NoiseStats.enter(outer);
+        }
+    }
+
+    private int shadeBand(int y0, int y1) {
+        RenderEvents.Band event = new RenderEvents.Band();
+        event.begin();
+        long start = System.nanoTime();
+        double[] pixelcolor = {0.0, 0.0, 0.0};
+        double[] colors = new double[3*Math.max(width, CURVE_TILE*CURVE_TILE)];
+        long[] conversion = {0};
+        double t = frameTime;
+        int n = temporalN;
+        int phase = framePhase;
+        int count = 0;
+        switch(frameMode) {
+        case VIEWPORT:
+            count = renderViewportBand(pixelcolor, y0, y1);
+            break;
+        case TEMPORAL_FRAMES:
+            if(firstKey) {
+                for(int y=y0; y<y1; y++)
+                    count += shadeRow(keyCur, null, colors, conversion, y, 0, 1, t, 256);
+                System.arraycopy(keyCur, y0*width, keyPrev, y0*width, (y1-y0)*width);
+            }
+            // Shade every n'th row of the next keyframe, all at the same time
+            for(int y = y0 + (phase - y0%n + n) % n; y<y1; y+=n)
+                count += shadeRow(keyNext, null, colors, conversion, y, 0, 1, keyTime, 256);
+            // Display a crossfade between the two latest complete keyframes
+            int w = phase*256/n;
+            for(int i=y0*width; i<y1*width; i++)
+                pixels[i] = blendRGB(keyPrev[i], keyCur[i], w);
+            break;
+        case TEMPORAL_ROWS:
+            for(int y = y0 + (phase - y0%n + n) % n; y<y1; y+=n)
+                count += shadeRow(pixels, frameHdr, colors, conversion, y, 0, 1, t, temporalBlend);
+            break;
+        case TEMPORAL_CHECKER:
+            // Shade the pixels where (x+y) mod n == phase
+            for(int y=y0; y<y1; y++)
+                count += shadeRow(pixels, frameHdr, colors, conversion, y, (phase + n - y%n) % n, n, t, temporalBlend);
+            break;
+        default:
+            if(traversalOrder != ORDER_ROWS)
+                count = shadeCurve(pixels, frameHdr, colors, conversion, y0, y1, t, traversalOrder);
+            else
+                for(int y=y0; y<y1; y++)
+                    count += shadeRow(pixels, frameHdr, colors, conversion, y, 0, 1, t, 256);
+        }
+        if(frameHdr == null) // Otherwise the sinks get the pixels after post-processing
+            for(FrameSink sink : sinks)
+                sink.rows(pixels, width, y0, y1);
+        metrics.band(System.nanoTime() - start, count, conversion[0]);
+        event.end();
+        if(event.shouldCommit()) {
+            event.frame = frameNumber;
+            event.y0 = y0;
+            event.y1 = y1;
+            event.pixels = count;
+            event.conversion = conversion[0];
+            event.commit();
+        }
+        return count;
+    }
+
+    // Render the rows y0 to y1-1 of the viewport, which all lie in the
+    // same row of tiles. Tiles are taken from the cache if possible,
+    // and shaded and stored in it otherwise.
+    private int renderViewportBand(double[] pixelcolor, int y0, int y1) {
+        final int T = Viewport.TILE_SIZE;
+        double t = frameTime;
+        long ox = vpX, oy = vpY;
+        long ty = Math.floorDiv(oy + y0, T);
+        int count = 0;
+        for(long tx = Math.floorDiv(ox, T); tx*T < ox+width; tx++) {
+            if(frameCancelled) break;
+            int[] tile = tileCache.get(frameShader, vpZoom, tx, ty, t);
+            if(tile == null) {
+                tile = new int[T*T];
+                for(int y=0; y<T; y++) {
+                    double v = (double)(ty*T+y)/vpScale;
+                    for(int x=0; x<T; x++) {
+                        double u = (double)(tx*T+x)/vpScale;
                         myShader.shader(pixelcolor, u,v,t);
-                        // Write the color to the pixels[] array
-                        pixels[y*width+x]=packRGB(pixelcolor);
+                        tile[y*T+x] = packRGB(pixelcolor);
                     }
+                }
+                count += T*T;
+                tileCache.put(frameShader, vpZoom, tx, ty, t, tile);
             }
-            // Mark the entire image as newly updated, and repaint
-       	    mySource.newPixels(0,0,width,height);
-           	repaint();
+            // Copy the visible part of the tile to the pixels[] array
+            int x0 = (int)Math.max(tx*T-ox, 0), x1 = (int)Math.min(tx*T+T-ox, width);
+            for(int y=y0; y<y1; y++)
+                System.arraycopy(tile, (int)(y+oy-ty*T)*T + (int)(x0+ox-tx*T),
+                                 pixels, y*width+x0, x1-x0);
+        }
+        return count;
+    }
+
+    // Shade every step'th pixel in row y of dst[], starting at x0, or
+    // of hdr[] as float colors (3 per pixel) if it is not null.
+    // A blend weight below 256 mixes the new color with the old pixel.
+    // The colors of the row are kept in colors[] (3 per pixel) until they
+    // are all converted to pixels, so that the time for the conversion can
+    // be added to conversion[0] without a clock reading for every pixel.
+    // Returns the number of pixels that were shaded.
+    private int shadeRow(int[] dst, float[] hdr, double[] colors, long[] conversion, int y,
+                         int x0, int step, double t, int blend) {
+        if(frameCancelled) return 0; // The rest of the frame is not needed
+        double u, v = (double)y/height;
+        double[] pixelcolor = {0.0, 0.0, 0.0};
+        int count = 0;
+        for(int x = x0; x<width; x+=step) {
+            u = (double)x/width;
+            // Render one pixel by invoking myShader.shader()
+            myShader.shader(pixelcolor, u,v,t);
+            colors[3*x] = pixelcolor[0];
+            colors[3*x+1] = pixelcolor[1];
+            colors[3*x+2] = pixelcolor[2];
+            count++;
+        }
+        long start = System.nanoTime();
+        if(hdr != null) {
+            float w = blend/256.0f;
+            for(int x = x0, i = 3*y*width; x<width; x+=step)
+                for(int c=0; c<3; c++) {
+                    if(blend >= 256)
+                        hdr[i+3*x+c] = (float)colors[3*x+c];
+                    else
+                        hdr[i+3*x+c] += w*((float)colors[3*x+c] - hdr[i+3*x+c]);
+                }
+            conversion[0] += System.nanoTime() - start;
+            return count;
+        }
+        for(int x = x0; x<width; x+=step) {
+            pixelcolor[0] = colors[3*x];
+            pixelcolor[1] = colors[3*x+1];
+            pixelcolor[2] = colors[3*x+2];
+            // Write the color to the pixel array
+            if(blend >= 256)
+                dst[y*width+x]=packRGB(pixelcolor);
+            else
+                dst[y*width+x]=blendRGB(dst[y*width+x], packRGB(pixelcolor), blend);
+        }
+        conversion[0] += System.nanoTime() - start;
+        return count;
+    }
+
+    // Shade the rows y0 to y1-1 into dst[], or into hdr[] as float colors
+    // if it is not null, tile by tile along the curve of the order. Like
+    // shadeRow(), the colors of a tile are converted all at once.
+    // Returns the number of pixels that were shaded.
+    private int shadeCurve(int[] dst, float[] hdr, double[] colors, long[] conversion,
+                           int y0, int y1, double t, int order) {
+        final int S = CURVE_TILE;
+        int[] steps = order == ORDER_MORTON ? MORTON_STEPS : HILBERT_STEPS;
+        int tilesX = (width + S - 1)/S, tilesY = (y1 - y0 + S - 1)/S;
+        int side = 1; // Of the square of tiles that the curve goes through
+        while(side < Math.max(tilesX, tilesY)) side <<= 1;
+        long[] tiles = new long[tilesX*tilesY]; // Position on the curve, and index
+        for(int ty=0; ty<tilesY; ty++)
+            for(int tx=0; tx<tilesX; tx++)
+                tiles[ty*tilesX + tx] = (long)curveIndex(order, side, tx, ty) << 32 | (ty*tilesX + tx);
+        Arrays.sort(tiles);
+        double[] pixelcolor = {0.0, 0.0, 0.0};
+        int count = 0;
+        for(long tile : tiles) {
+            if(frameCancelled) break; // The rest of the frame is not needed
+            int x0 = (int)tile % tilesX * S, ty0 = y0 + (int)tile / tilesX * S;
+            int n = 0;
+            for(int step : steps) {
+                int x = x0 + (step & 0xffff), y = ty0 + (step >>> 16);
+                if(x >= width || y >= y1) continue; // Outside a tile at the edge
+                myShader.shader(pixelcolor, (double)x/width, (double)y/height, t);
+                colors[3*n] = pixelcolor[0];
+                colors[3*n+1] = pixelcolor[1];
+                colors[3*n+2] = pixelcolor[2];
+                n++;
+            }
+            long start = System.nanoTime();
+            int k = 0;
+            for(int step : steps) {
+                int x = x0 + (step & 0xffff), y = ty0 + (step >>> 16);
+                if(x >= width || y >= y1) continue;
+                int i = y*width + x;
+                if(hdr != null) {
+                    hdr[3*i] = (float)colors[3*k];
+                    hdr[3*i+1] = (float)colors[3*k+1];
+                    hdr[3*i+2] = (float)colors[3*k+2];
+                }
+                else {
+                    pixelcolor[0] = colors[3*k];
+                    pixelcolor[1] = colors[3*k+1];
+                    pixelcolor[2] = colors[3*k+2];
+                    dst[i] = packRGB(pixelcolor);
+                }
+                k++;
+            }
+            conversion[0] += System.nanoTime() - start;
+            count += n;
+        }
+        return count;
+    }
+
+    // The position of (x,y) on the curve of the order through a square of
+    // side*side cells, where side is a power of two
+    static int curveIndex(int order, int side, int x, int y) {
+        int d = 0;
+        if(order == ORDER_MORTON) {
+            for(int b=0; (1 << b) < side; b++)
+                d |= ((x >> b & 1) << 2*b) | ((y >> b & 1) << 2*b + 1);
+            return d;
+        }
+        // Hilbert: find the quadrant at each level, and turn the rest to match it
+        for(int s = side/2; s > 0; s /= 2) {
+            int rx = (x & s) != 0 ? 1 : 0, ry = (y & s) != 0 ? 1 : 0;
+            d += s*s*((3*rx) ^ ry);
+            if(ry == 0) {
+                if(rx == 1) {
+                    x = side - 1 - x;
+                    y = side - 1 - y;
+                }
+                int tmp = x;
+                x = y;
+                y = tmp;
+            }
+        }
+        return d;
+    }
+
+    // The cells of a tile in the order of the curve, as (y << 16 | x)
+    private static int[] curveSteps(int order, int side) {
+        int[] steps = new int[side*side];
+        for(int y=0; y<side; y++)
+            for(int x=0; x<side; x++)
+                steps[curveIndex(order, side, x, y)] = y << 16 | x;
+        return steps;
+    }
+
+    // Linear interpolation between two packed ARGB colors, with the
+    // weight w for color b in 0..256. R and B are blended in one go.
+    static int blendRGB(int a, int b, int w) {
+        int rb = ((a & 0xff00ff)*(256-w) + (b & 0xff00ff)*w) >>> 8;
+        int g  = ((a & 0x00ff00)*(256-w) + (b & 0x00ff00)*w) >>> 8;
+        return 0xff000000 | (rb & 0xff00ff) | (g & 0x00ff00);
     }
 
 	// This is where we actually draw the image to the window
     public void paintComponent(Graphics g)
     {
-        if(myImage != null)
-            g.drawImage(myImage, 0, 0, width, height, this);
+        Image image = myImage; // At its own size, which may be behind a resize
+        if(image != null)
+            g.drawImage(image, 0, 0, this);
+        if(hudVisible)
+            paintHud(g);
+    }
+
+    // The render metrics as text on a dark background in the top left corner
+    private void paintHud(Graphics g) {
+        List<String> lines = metrics.summary();
+        g.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 11));
+        FontMetrics fm = g.getFontMetrics();
+        int w = 0;
+        for(String line : lines) w = Math.max(w, fm.stringWidth(line));
+        g.setColor(new Color(0, 0, 0, 160));
+        g.fillRect(4, 4, w + 8, lines.size()*fm.getHeight() + 6);
+        g.setColor(Color.WHITE);
+        int y = 7 + fm.getAscent();
+        for(String line : lines) {
+            g.drawString(line, 8, y);
+            y += fm.getHeight();
+        }
     }
 
 }
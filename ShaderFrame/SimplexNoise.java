@@ -5,6 +5,9 @@
  * Optimisations by Peter Eastman (peastman@drizzle.stanford.edu)
  *
  * This could be speeded up even further, but it's useful as it is.
+ * Flat gradient arrays instead of the Grad objects, and a branch-free
+ * ranking of the 4D corners instead of the simplex[][] table, have been
+ * tried, and neither was consistently faster in 2D, 3D or 4D.
  *
  * Version 2006-10-24
  *
@@ -85,6 +88,16 @@ public class SimplexNoise {  // Simplex noise in 2D, 3D and 4D
 
   // 2D simplex noise
   public static double noise(double xin, double yin) {
+    if(NoiseStats.ENABLED) {
+      long start = NoiseStats.start(NoiseStats.SIMPLEX_2D);
+      double n = uncounted(xin, yin);
+      NoiseStats.stop(NoiseStats.SIMPLEX_2D, start);
+      return n;
+    }
+    return uncounted(xin, yin);
+  }
+
+  private static double uncounted(double xin, double yin) {
     double n0, n1, n2; // Noise contributions from the three corners
     // Skew the input space to determine which simplex cell we're in
     double s = (xin+yin)*F2; // Hairy factor for 2D
@@ -139,6 +152,16 @@ public class SimplexNoise {  // Simplex noise in 2D, 3D and 4D
 
   // 3D simplex noise
   public static double noise(double xin, double yin, double zin) {
+    if(NoiseStats.ENABLED) {
+      long start = NoiseStats.start(NoiseStats.SIMPLEX_3D);
+      double n = uncounted(xin, yin, zin);
+      NoiseStats.stop(NoiseStats.SIMPLEX_3D, start);
+      return n;
+    }
+    return uncounted(xin, yin, zin);
+  }
+
+  private static double uncounted(double xin, double yin, double zin) {
     double n0, n1, n2, n3; // Noise contributions from the four corners
     // Skew the input space to determine which simplex cell we're in
     double s = (xin+yin+zin)*F3; // Very nice and simple skew factor for 3D
@@ -218,8 +241,128 @@ public class SimplexNoise {  // Simplex noise in 2D, 3D and 4D
     return 32.0*(n0 + n1 + n2 + n3);
   }
 
+  // 3D simplex noise that repeats with the periods px, py and pz, so that a
+  // texture made from it tiles without seams. The simplex lattice is skewed,
+  // and it only repeats along the x, y and z axes every 3 units, so the
+  // periods must be multiples of 3. Scale the input to get other periods.
+  // The wrapped corners reach almost twice the period along each axis, and
+  // the hash table has 256 entries, so the periods can be at most 126.
+  public static double noise(double xin, double yin, double zin, int px, int py, int pz) {
+    if(NoiseStats.ENABLED) {
+      long start = NoiseStats.start(NoiseStats.SIMPLEX_PERIODIC);
+      double n = uncounted(xin, yin, zin, px, py, pz);
+      NoiseStats.stop(NoiseStats.SIMPLEX_PERIODIC, start);
+      return n;
+    }
+    return uncounted(xin, yin, zin, px, py, pz);
+  }
+
+  private static double uncounted(double xin, double yin, double zin, int px, int py, int pz) {
+    if(!isPeriod(px) || !isPeriod(py) || !isPeriod(pz))
+      throw new IllegalArgumentException("The periods must be multiples of 3 up to 126, not "
+                                         + px + ", " + py + ", " + pz);
+    double n0, n1, n2, n3; // Noise contributions from the four corners
+    // The simplex cell and the corner offsets are found exactly as in noise(x,y,z)
+    double s = (xin+yin+zin)*F3;
+    int i = fastfloor(xin+s);
+    int j = fastfloor(yin+s);
+    int k = fastfloor(zin+s);
+    double t = (i+j+k)*G3;
+    double x0 = xin-(i-t);
+    double y0 = yin-(j-t);
+    double z0 = zin-(k-t);
+    int i1, j1, k1;
+    int i2, j2, k2;
+    if(x0>=y0) {
+      if(y0>=z0)
+        { i1=1; j1=0; k1=0; i2=1; j2=1; k2=0; }
+        else if(x0>=z0) { i1=1; j1=0; k1=0; i2=1; j2=0; k2=1; }
+        else { i1=0; j1=0; k1=1; i2=1; j2=0; k2=1; }
+      }
+    else {
+      if(y0<z0) { i1=0; j1=0; k1=1; i2=0; j2=1; k2=1; }
+      else if(x0<z0) { i1=0; j1=1; k1=0; i2=0; j2=1; k2=1; }
+      else { i1=0; j1=1; k1=0; i2=1; j2=1; k2=0; }
+    }
+    double x1 = x0 - i1 + G3;
+    double y1 = y0 - j1 + G3;
+    double z1 = z0 - k1 + G3;
+    double x2 = x0 - i2 + 2.0*G3;
+    double y2 = y0 - j2 + 2.0*G3;
+    double z2 = z0 - k2 + 2.0*G3;
+    double x3 = x0 - 1.0 + 3.0*G3;
+    double y3 = y0 - 1.0 + 3.0*G3;
+    double z3 = z0 - 1.0 + 3.0*G3;
+    // Only the hashing is different: the corners are wrapped first
+    int gi0 = wrappedGrad(i, j, k, px, py, pz);
+    int gi1 = wrappedGrad(i+i1, j+j1, k+k1, px, py, pz);
+    int gi2 = wrappedGrad(i+i2, j+j2, k+k2, px, py, pz);
+    int gi3 = wrappedGrad(i+1, j+1, k+1, px, py, pz);
+    double t0 = 0.6 - x0*x0 - y0*y0 - z0*z0;
+    if(t0<0) n0 = 0.0;
+    else {
+      t0 *= t0;
+      n0 = t0 * t0 * dot(grad3[gi0], x0, y0, z0);
+    }
+    double t1 = 0.6 - x1*x1 - y1*y1 - z1*z1;
+    if(t1<0) n1 = 0.0;
+    else {
+      t1 *= t1;
+      n1 = t1 * t1 * dot(grad3[gi1], x1, y1, z1);
+    }
+    double t2 = 0.6 - x2*x2 - y2*y2 - z2*z2;
+    if(t2<0) n2 = 0.0;
+    else {
+      t2 *= t2;
+      n2 = t2 * t2 * dot(grad3[gi2], x2, y2, z2);
+    }
+    double t3 = 0.6 - x3*x3 - y3*y3 - z3*z3;
+    if(t3<0) n3 = 0.0;
+    else {
+      t3 *= t3;
+      n3 = t3 * t3 * dot(grad3[gi3], x3, y3, z3);
+    }
+    return 32.0*(n0 + n1 + n2 + n3);
+  }
+
+  // 2D simplex noise that repeats with the periods px and py, both multiples
+  // of 3 up to 126. This is the z=0 slice of the periodic 3D noise, because the 2D
+  // simplex lattice never repeats along the x and y axes. It looks much
+  // the same as noise(x,y), but is not the same function.
+  public static double noise(double x, double y, int px, int py) {
+    // No corner near the plane z=0 is a period in z from another one,
+    // so the smallest period in z will do
+    return noise(x, y, 0.0, px, py, 3);
+  }
+
+  private static boolean isPeriod(int p) {
+    return p >= 3 && p <= 126 && p % 3 == 0;
+  }
+
+  // The gradient index of lattice corner (i,j,k), moved into one period.
+  // The corner's (x,y,z) position times 6 is an integer vector, which is
+  // wrapped like any other, and then skewed back to find the wrapped corner.
+  private static int wrappedGrad(int i, int j, int k, int px, int py, int pz) {
+    int s = i+j+k;
+    int x = Math.floorMod(6*i - s, 6*px);
+    int y = Math.floorMod(6*j - s, 6*py);
+    int z = Math.floorMod(6*k - s, 6*pz);
+    s = (x+y+z)/3;
+    return permMod12[((x+s)/6 & 255) + perm[((y+s)/6 & 255) + perm[(z+s)/6 & 255]]];
+  }
+
   // 4D simplex noise
   public static double noise(double x, double y, double z, double w) {
+    if(NoiseStats.ENABLED) {
+      long start = NoiseStats.start(NoiseStats.SIMPLEX_4D);
+      double n = uncounted(x, y, z, w);
+      NoiseStats.stop(NoiseStats.SIMPLEX_4D, start);
+      return n;
+    }
+    return uncounted(x, y, z, w);
+  }
+
+  private static double uncounted(double x, double y, double z, double w) {
 
     double n0, n1, n2, n3, n4; // Noise contributions from the five corners
     // Skew the (x,y,z,w) space to determine which cell of 24 simplices we're in
@@ -0,0 +1,173 @@
+/*
+ * Render a Shader to an image file of (almost) any size, without ever
+ * keeping the whole image in memory.
+ *
+ * The image is split into horizontal bands of full width, which are
+ * shaded in parallel and written straight to their place in the file
+ * through a FileChannel. Only a fixed number of bands are in flight at
+ * any one time, and their buffers are reused, so the memory use depends
+ * on the image width and the band height, not on the image size.
+ * File offsets are 64-bit, so the total number of pixels may well
+ * exceed Integer.MAX_VALUE.
+ *
+ * The output is a binary PPM file (P6, 8 bits per channel), which most
+ * image tools can read. The (u,v) mapping is the same as in ShaderPanel.
+ *
+ * Usage: java StreamingRenderer out.ppm width height [options]
+ *   -t <time>         animation time to render (default 0)
+ *   -shader <class>   Shader class to use (default DemoShader)
+ *   -threads <n>      number of render threads (default: all cores)
+ *   -inflight <n>     maximum number of bands in memory (default 2*threads)
+ *   -band <rows>      rows per band (default 16)
+ *
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class StreamingRenderer {
+
+    private final Shader shader;
+    private final int width, height;
+    private double time = 0.0;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int maxInFlight = 2*threads;
+    private int bandHeight = 16;
+
+    StreamingRenderer(Shader shader, int width, int height) {
+        // A single row must still fit in one ByteBuffer
+        if(width < 1 || height < 1 || 3L*width > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Bad image size: " + width + "x" + height);
+        this.shader = shader;
+        this.width = width;
+        this.height = height;
+    }
+
+    void setTime(double t) { time = t; }
+    void setThreads(int n) { threads = Math.max(n, 1); }
+    void setMaxInFlight(int n) { maxInFlight = Math.max(n, 1); }
+    void setBandHeight(int rows) { bandHeight = Math.max(rows, 1); }
+
+    // Render the whole image to a PPM file. The Shader is called from
+    // several threads at once, so it must not keep any state of its own
+    // between calls (none of the shaders and noise functions here do).
+    void render(Path file) throws IOException, InterruptedException {
+        // A band buffer must fit in one ByteBuffer, with at least one row
+        final int rows = (int)Math.max(Math.min(bandHeight, Integer.MAX_VALUE/(3L*width)), 1);
+        final int bands = (height + rows - 1)/rows;
+        final BlockingQueue<ByteBuffer> freeBuffers = new ArrayBlockingQueue<ByteBuffer>(maxInFlight);
+        for(int i=0; i<maxInFlight; i++)
+            freeBuffers.add(ByteBuffer.allocateDirect(3*width*rows));
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final AtomicInteger bandsDone = new AtomicInteger();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            byte[] header = ("P6\n" + width + " " + height + "\n255\n").getBytes("US-ASCII");
+            writeFully(channel, ByteBuffer.wrap(header), 0);
+            final long dataStart = header.length;
+            final FileChannel out = channel;
+
+            for(int band=0; band<bands && failure.get() == null; band++) {
+                // Wait for a free buffer, this is what limits the memory use
+                final ByteBuffer buffer = freeBuffers.take();
+                final int y0 = band*rows;
+                final int y1 = Math.min(y0 + rows, height);
+                pool.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            buffer.clear();
+                            shadeBand(buffer, y0, y1);
+                            buffer.flip();
+                            writeFully(out, buffer, dataStart + 3L*width*y0);
+                            bandsDone.incrementAndGet();
+                        } catch(Throwable e) {
+                            failure.compareAndSet(null, e);
+                        } finally {
+                            freeBuffers.add(buffer);
+                        }
+                    }
+                });
+            }
+            // When all buffers are back, all bands have been written
+            for(int i=0; i<maxInFlight; i++)
+                freeBuffers.take();
+        } finally {
+            pool.shutdownNow();
+            channel.close();
+        }
+        Throwable e = failure.get();
+        if(e instanceof IOException) throw (IOException)e;
+        if(e != null) throw new IOException("Rendering failed", e);
+    }
+
+    // Shade rows y0 to y1-1 into the buffer as 8-bit RGB triplets
+    private void shadeBand(ByteBuffer buffer, int y0, int y1) {
+        double[] pixelcolor = {0.0, 0.0, 0.0};
+        for(int y=y0; y<y1; y++) {
+            double v = (double)y/height;
+            for(int x=0; x<width; x++) {
+                double u = (double)x/width;
+                shader.shader(pixelcolor, u, v, time);
+                buffer.put(toByte(pixelcolor[0]));
+                buffer.put(toByte(pixelcolor[1]));
+                buffer.put(toByte(pixelcolor[2]));
+            }
+        }
+    }
+
+    // Rescale from 0..1 to 0..255, quantize and clamp, like ShaderPanel.packRGB()
+    private static byte toByte(double c) {
+        int i = (int)(c*255.0);
+        if(i>255) i = 255;
+        if(i<0) i = 0;
+        return (byte)i;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position)
+        throws IOException {
+        while(buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 3) {
+            System.err.println("Usage: java StreamingRenderer out.ppm width height"
+                + " [-t time] [-shader class] [-threads n] [-inflight n] [-band rows]");
+            System.exit(1);
+        }
+        int width = Integer.parseInt(args[1]);
+        int height = Integer.parseInt(args[2]);
+        String shaderName = "DemoShader";
+        double t = 0.0;
+        int threads = 0, inFlight = 0, band = 0;
+        for(int i=3; i+1<args.length; i+=2) {
+            if(args[i].equals("-t")) t = Double.parseDouble(args[i+1]);
+            else if(args[i].equals("-shader")) shaderName = args[i+1];
+            else if(args[i].equals("-threads")) threads = Integer.parseInt(args[i+1]);
+            else if(args[i].equals("-inflight")) inFlight = Integer.parseInt(args[i+1]);
+            else if(args[i].equals("-band")) band = Integer.parseInt(args[i+1]);
+        }
+        Shader shader = (Shader)Class.forName(shaderName).getDeclaredConstructor().newInstance();
+        StreamingRenderer renderer = new StreamingRenderer(shader, width, height);
+        renderer.setTime(t);
+        if(threads > 0) {
+            renderer.setThreads(threads);
+            renderer.setMaxInFlight(2*threads);
+        }
+        if(inFlight > 0) renderer.setMaxInFlight(inFlight);
+        if(band > 0) renderer.setBandHeight(band);
+
+        long start = System.currentTimeMillis();
+        renderer.render(Paths.get(args[0]));
+        long ms = System.currentTimeMillis() - start;
+        System.out.println("Rendered " + width + "x" + height + " pixels in " + ms + " ms ("
+            + (long)((double)width*height/Math.max(ms, 1)*1000.0) + " pixels/s)");
+    }
+}
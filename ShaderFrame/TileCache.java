@@ -0,0 +1,100 @@
+/*
+ * A memory-bounded LRU cache for rendered image tiles.
+ *
+ * Tiles are keyed by (shader, zoom level, tile x, tile y, t), where the
+ * shader is its Shader.getIdentity(), so a tile that was rendered once
+ * never needs to be shaded again as long as it stays in the cache, and a
+ * tile of a script that has since been reloaded is never shown.
+ * The tiles of an old version are left for the LRU to throw out. When the total size of the cached tiles exceeds the
+ * limit, the least recently used tiles are thrown out first.
+ * Hit, miss and eviction counts are kept for inspection.
+ *
+ */
+
+import java.util.*;
+
+class TileCache {
+
+    private final long maxBytes;
+    private long bytes;
+    private long hits, misses, evictions;
+
+    // A LinkedHashMap in access order keeps the least recently used entry first
+    private final LinkedHashMap<Key, int[]> tiles = new LinkedHashMap<Key, int[]>(64, 0.75f, true);
+
+    TileCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    // Look up a tile. Returns null and counts a miss if it is not cached.
+    synchronized int[] get(String shader, int zoom, long tx, long ty, double t) {
+        int[] tile = tiles.get(new Key(shader, zoom, tx, ty, t));
+        if(tile != null) hits++;
+        else misses++;
+        return tile;
+    }
+
+    // Store a tile, evicting old ones until the cache is within its limit
+    synchronized void put(String shader, int zoom, long tx, long ty, double t, int[] tile) {
+        int[] old = tiles.put(new Key(shader, zoom, tx, ty, t), tile);
+        if(old != null) bytes -= 4L*old.length;
+        bytes += 4L*tile.length;
+        Iterator<int[]> it = tiles.values().iterator();
+        while(bytes > maxBytes && it.hasNext()) {
+            int[] evicted = it.next();
+            if(evicted == tile) break; // Never evict the tile we just added
+            it.remove();
+            bytes -= 4L*evicted.length;
+            evictions++;
+        }
+    }
+
+    synchronized void clear() {
+        tiles.clear();
+        bytes = 0;
+    }
+
+    synchronized long getHits() { return hits; }
+    synchronized long getMisses() { return misses; }
+    synchronized long getEvictions() { return evictions; }
+    synchronized long getBytes() { return bytes; }
+    synchronized long getMaxBytes() { return maxBytes; }
+    synchronized int getTileCount() { return tiles.size(); }
+
+    public synchronized String toString() {
+        return "TileCache[" + tiles.size() + " tiles, " + (bytes >> 10) + " of "
+            + (maxBytes >> 10) + " kB, " + hits + " hits, " + misses + " misses, "
+            + evictions + " evictions]";
+    }
+
+    private static final class Key {
+        final String shader;
+        final int zoom;
+        final long tx, ty;
+        final long tbits;
+
+        Key(String shader, int zoom, long tx, long ty, double t) {
+            this.shader = shader;
+            this.zoom = zoom;
+            this.tx = tx;
+            this.ty = ty;
+            this.tbits = Double.doubleToLongBits(t);
+        }
+
+        public boolean equals(Object o) {
+            if(!(o instanceof Key)) return false;
+            Key k = (Key)o;
+            return zoom == k.zoom && tx == k.tx && ty == k.ty && tbits == k.tbits
+                && shader.equals(k.shader);
+        }
+
+        public int hashCode() {
+            long h = shader.hashCode();
+            h = h*31 + zoom;
+            h = h*31 + tx;
+            h = h*31 + ty;
+            h = h*31 + tbits;
+            return (int)(h ^ (h >>> 32));
+        }
+    }
+}
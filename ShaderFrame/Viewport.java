@@ -0,0 +1,64 @@
+/*
+ * A zoomable, pannable view of the infinite (u,v) texture plane.
+ *
+ * The view position is kept in integer pixel coordinates at the current
+ * zoom level, so that rendered tiles always line up exactly with the
+ * screen pixels and can be reused when the user pans back and forth.
+ * Each zoom level doubles the magnification.
+ *
+ */
+
+class Viewport {
+
+    // Side length in pixels of the square tiles that make up the view
+    static final int TILE_SIZE = 64;
+
+    static final int MIN_ZOOM = -8;
+    static final int MAX_ZOOM = 30;
+
+    private final int basePixels; // Pixels per unit of u and v at zoom level 0
+    private int zoom;
+    private long originX, originY; // Pixel position of the top left corner
+
+    // At zoom level 0 with the origin at (0,0), a window that is basePixels
+    // wide shows u in [0,1), just like the plain ShaderPanel mapping.
+    Viewport(int basePixels) {
+        this.basePixels = basePixels;
+    }
+
+    synchronized int getZoom() { return zoom; }
+    synchronized long getOriginX() { return originX; }
+    synchronized long getOriginY() { return originY; }
+
+    // Number of pixels per unit of u and v at the given zoom level
+    double pixelsPerUnit(int zoomLevel) {
+        return Math.scalb((double)basePixels, zoomLevel);
+    }
+
+    // Move the view contents by (dx,dy) pixels, as when dragging the image
+    synchronized void pan(int dx, int dy) {
+        originX -= dx;
+        originY -= dy;
+    }
+
+    // Zoom in (steps>0) or out (steps<0), keeping the point under the
+    // window pixel (px,py) in place
+    synchronized void zoom(int steps, int px, int py) {
+        for(; steps > 0 && zoom < MAX_ZOOM; steps--) {
+            zoom++;
+            originX = 2*originX + px;
+            originY = 2*originY + py;
+        }
+        for(; steps < 0 && zoom > MIN_ZOOM; steps++) {
+            zoom--;
+            originX = Math.floorDiv(originX + px, 2) - px;
+            originY = Math.floorDiv(originY + py, 2) - py;
+        }
+    }
+
+    // Go back to zoom level 0 at the origin
+    synchronized void reset() {
+        zoom = 0;
+        originX = originY = 0;
+    }
+}
@@ -46,6 +46,18 @@ public final class WorleyNoise {
   // The main function!
   public static void noise(double at[], int max_order, double F[],
                            double delta[][], int ID[])
+  {
+    if(NoiseStats.ENABLED) {
+      long start = NoiseStats.start(NoiseStats.WORLEY);
+      uncounted(at, max_order, F, delta, ID);
+      NoiseStats.stop(NoiseStats.WORLEY, start);
+      return;
+    }
+    uncounted(at, max_order, F, delta, ID);
+  }
+
+  private static void uncounted(double at[], int max_order, double F[],
+                                double delta[][], int ID[])
   {
     double x2,y2,z2, mx2,my2,mz2;
     double new_at[] = new double[3];
@@ -173,6 +185,52 @@ public final class WorleyNoise {
   
   
   
+  // Only the distance to the closest feature point, F1, which is by far
+  // the most common use. This gives the same value as F[0] from noise()
+  // with max_order=1, but needs no arrays.
+  public static double f1(double x, double y, double z)
+  {
+    if(NoiseStats.ENABLED) {
+      long start = NoiseStats.start(NoiseStats.WORLEY_F1);
+      double n = uncounted(x, y, z);
+      NoiseStats.stop(NoiseStats.WORLEY_F1, start);
+      return n;
+    }
+    return uncounted(x, y, z);
+  }
+
+  private static double uncounted(double x, double y, double z)
+  {
+    double ax=DENSITY_ADJUSTMENT*x, ay=DENSITY_ADJUSTMENT*y, az=DENSITY_ADJUSTMENT*z;
+    int xi=fastfloor(ax), yi=fastfloor(ay), zi=fastfloor(az);
+    double F1=999999.9;
+
+    for (int ii=-1; ii<=1; ii++)
+      for (int jj=-1; jj<=1; jj++)
+        for (int kk=-1; kk<=1; kk++)
+          {
+            int cx=xi+ii, cy=yi+jj, cz=zi+kk;
+            /* Same feature points as in AddSamples() */
+            int seed=702395077*cx + 915488749*cy + 2120969693*cz;
+            int count=Poisson_count[(seed>>24) & 0xFF];
+            seed=1402024253*seed+586950981;
+            for (int j=0; j<count; j++)
+              {
+                seed=1402024253*seed+586950981; /* skip the ID */
+                double fx=(seed+0.5)*(1.0/4294967296.0);
+                seed=1402024253*seed+586950981;
+                double fy=(seed+0.5)*(1.0/4294967296.0);
+                seed=1402024253*seed+586950981;
+                double fz=(seed+0.5)*(1.0/4294967296.0);
+                seed=1402024253*seed+586950981;
+                double dx=cx+fx-ax, dy=cy+fy-ay, dz=cz+fz-az;
+                double d2=dx*dx+dy*dy+dz*dz;
+                if (d2<F1) F1=d2;
+              }
+          }
+    return Math.sqrt(F1)*(1.0/DENSITY_ADJUSTMENT);
+  }
+  
   private static void AddSamples(int xi, int yi, int zi, int max_order,
   		       double at[], double F[],
   		       double delta[][], int ID[])
@@ -0,0 +1,173 @@
+/*
+ * A FrameSink that streams frames as uncompressed YUV4MPEG2 video,
+ * which can be piped straight into an encoder, for example:
+ *
+ *   java ShaderMain -y4m - | ffmpeg -i - -c:v libx264 out.mp4
+ *
+ * The RGB to YUV conversion is done band by band on the render threads,
+ * directly into direct ByteBuffers for the Y, U and V planes. A separate
+ * writer thread sends each finished frame to the output with a single
+ * gathering write. The render threads never wait for the output. If the
+ * writer falls behind and all frame buffers are busy, frames are dropped
+ * and counted instead, unless the writer is blocking (for offline
+ * rendering, where every frame counts and nobody is watching).
+ *
+ * The chroma planes are not subsampled (C444), because the bands are
+ * converted independently and need not start on an even row.
+ * The colors are converted to studio range YCbCr with the BT.601 matrix.
+ *
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+
+class Y4MWriter implements FrameSink, Closeable {
+
+    private final GatheringByteChannel out;
+    private final int width, height;
+    private final BlockingQueue<Frame> freeFrames;
+    private final BlockingQueue<Frame> filledFrames = new LinkedBlockingQueue<Frame>();
+    private final Thread writerThread;
+    private final ByteBuffer frameHeader;
+    private Frame current;
+    private volatile IOException failure;
+    private volatile long framesWritten, framesDropped;
+    private volatile boolean blocking;
+
+    // An empty frame to tell the writer thread to stop
+    private static final Frame END = new Frame(0);
+
+    // Open a Y4M file for writing, or use standard output if the name is "-"
+    static Y4MWriter open(String name, int width, int height, int fps) throws IOException {
+        GatheringByteChannel channel;
+        if(name.equals("-"))
+            channel = new FileOutputStream(FileDescriptor.out).getChannel();
+        else
+            channel = FileChannel.open(Paths.get(name), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        return new Y4MWriter(channel, width, height, fps, 4);
+    }
+
+    // Write frames of the given size to a channel, with at most
+    // 'buffers' frames waiting to be written at any one time
+    Y4MWriter(GatheringByteChannel out, int width, int height, int fps, int buffers)
+        throws IOException {
+        this.out = out;
+        this.width = width;
+        this.height = height;
+        String header = "YUV4MPEG2 W" + width + " H" + height + " F" + fps
+            + ":1 Ip A1:1 C444\n";
+        writeFully(new ByteBuffer[] {ByteBuffer.wrap(header.getBytes("US-ASCII"))});
+        frameHeader = ByteBuffer.allocateDirect(6);
+        frameHeader.put("FRAME\n".getBytes("US-ASCII"));
+        freeFrames = new ArrayBlockingQueue<Frame>(buffers);
+        for(int i=0; i<buffers; i++)
+            freeFrames.add(new Frame(width*height));
+        writerThread = new Thread(new Runnable() {
+            public void run() {
+                writeFrames();
+            }
+        }, "Y4MWriter");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public void beginFrame(int w, int h, double t) {
+        // Grab a free buffer, or drop the frame if there is none
+        current = null;
+        if(w == width && h == height) {
+            try {
+                current = blocking ? freeFrames.take() : freeFrames.poll();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if(current == null) framesDropped++;
+    }
+
+    public void rows(int[] pixels, int w, int y0, int y1) {
+        Frame frame = current;
+        if(frame == null) return;
+        ByteBuffer Y = frame.y, U = frame.u, V = frame.v;
+        for(int i=y0*w; i<y1*w; i++) {
+            int p = pixels[i];
+            int r = p>>16 & 255, g = p>>8 & 255, b = p & 255;
+            Y.put(i, (byte)(((66*r + 129*g + 25*b + 128) >> 8) + 16));
+            U.put(i, (byte)(((-38*r - 74*g + 112*b + 128) >> 8) + 128));
+            V.put(i, (byte)(((112*r - 94*g - 18*b + 128) >> 8) + 128));
+        }
+    }
+
+    public void endFrame() {
+        if(current != null) filledFrames.add(current);
+        current = null;
+    }
+
+    // Half converted, so give the buffer back without writing it
+    public void cancelFrame() {
+        if(current != null) freeFrames.add(current);
+        current = null;
+        framesDropped++;
+    }
+
+    // Wait for a free buffer in beginFrame() instead of dropping the frame
+    void setBlocking(boolean b) { blocking = b; }
+
+    long getFramesWritten() { return framesWritten; }
+    long getFramesDropped() { return framesDropped; }
+
+    // Write the remaining frames and close the output
+    public void close() throws IOException {
+        filledFrames.add(END);
+        try {
+            writerThread.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        out.close();
+        if(failure != null) throw failure;
+    }
+
+    // The writer thread: send each frame as "FRAME\n" and the three planes
+    private void writeFrames() {
+        try {
+            Frame frame;
+            while((frame = filledFrames.take()) != END) {
+                if(failure == null) {
+                    try {
+                        frameHeader.clear();
+                        frame.y.clear();
+                        frame.u.clear();
+                        frame.v.clear();
+                        writeFully(new ByteBuffer[] {frameHeader, frame.y, frame.u, frame.v});
+                        framesWritten++;
+                    } catch(IOException e) {
+                        failure = e;
+                    }
+                }
+                freeFrames.add(frame);
+            }
+        } catch(InterruptedException e) {
+            // Just stop
+        }
+    }
+
+    private void writeFully(ByteBuffer[] buffers) throws IOException {
+        while(buffers[buffers.length-1].hasRemaining())
+            out.write(buffers);
+    }
+
+    // The Y, U and V planes of one frame
+    private static final class Frame {
+        final ByteBuffer y, u, v;
+
+        Frame(int pixels) {
+            y = ByteBuffer.allocateDirect(pixels);
+            u = ByteBuffer.allocateDirect(pixels);
+            v = ByteBuffer.allocateDirect(pixels);
+        }
+    }
+}